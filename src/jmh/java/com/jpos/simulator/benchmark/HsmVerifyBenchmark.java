@@ -0,0 +1,81 @@
+package com.jpos.simulator.benchmark;
+
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.security.JceHsmEngine;
+
+import org.jpos.security.EncryptedPIN;
+import org.jpos.security.SMException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the host's CVV and PVV checks through {@link HsmSimulator},
+ * the calls the listeners make for every financial request. Run with the GC
+ * profiler to see the allocation per verification:
+ * <pre>
+ * gradle jmh -PjmhArgs="HsmVerifyBenchmark -prof gc"
+ * </pre>
+ * The engine variants call {@link JceHsmEngine} directly and show what the
+ * adapter layer adds on top of the cryptography.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class HsmVerifyBenchmark {
+
+    private static final String PAN = "4532115762087935";
+    private static final String EXPIRY = "2912";
+
+    private HsmSimulator hsm;
+    private JceHsmEngine engine;
+    private String cvv;
+    private String pvv;
+    private EncryptedPIN pin;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        engine = JceHsmEngine.getDefault();
+        hsm = new HsmSimulator(engine);
+        cvv = engine.cvv(PAN, EXPIRY, "101");
+        pvv = engine.pvv(PAN, "6571", engine.getPvki());
+        pin = new EncryptedPIN(engine.encryptPinBlock("6571", PAN, JceHsmEngine.FORMAT_ISO0),
+                JceHsmEngine.FORMAT_ISO0, PAN);
+    }
+
+    @Benchmark
+    public boolean verifyCvv() throws SMException {
+        return hsm.verifyCVV(PAN, null, null, "101", EXPIRY, cvv);
+    }
+
+    @Benchmark
+    public boolean verifyPvv() throws SMException {
+        return hsm.verifyPVV(pin, null, null, null, 0, pvv);
+    }
+
+    @Benchmark
+    public String engineCvv() {
+        return engine.cvv(PAN, EXPIRY, "101");
+    }
+
+    @Benchmark
+    public String enginePvv() {
+        return engine.pvv(pin.getAccountNumber(), engine.decryptPin(pin.getPINBlock(), pin.getAccountNumber(),
+                JceHsmEngine.FORMAT_ISO0), engine.getPvki());
+    }
+}
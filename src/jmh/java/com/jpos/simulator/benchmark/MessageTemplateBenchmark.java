@@ -0,0 +1,126 @@
+package com.jpos.simulator.benchmark;
+
+import com.jpos.simulator.card.CardInfo;
+import com.jpos.simulator.card.CardRepository;
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.core.MessageTemplate;
+import com.jpos.simulator.terminal.Terminal;
+import com.jpos.simulator.terminal.TerminalPool;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.packager.GenericPackager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building and packing a purchase for every send (the client builder
+ * path) with stamping a pre-packed {@link MessageTemplate}. The send variants
+ * write to a loopback socket whose peer discards everything.
+ * <p>
+ * Both variants send a complete purchase for the next card of the repository,
+ * PAN, expiry, PVV, CVV and PIN block included. The template path patches the
+ * card fields computed once per card, as template scenario steps do; the
+ * builder encrypts the PIN block for every message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageTemplateBenchmark {
+
+    private GenericPackager packager;
+    private ISOMsg prototype;
+    private MessageTemplate template;
+    private MessageTemplate framedTemplate;
+    private Terminal terminal;
+    private final Map<String, ISOMsg> cardFields = new HashMap<>();
+
+    private ServerSocket sink;
+    private ASCIIChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        prototype = ISO87ClientApp.createPurchaseMsg();
+        for (CardInfo card : CardRepository.getDefault().getCards()) {
+            cardFields.put(card.getPan(), ISO87ClientApp.createCardFields(card));
+        }
+        template = MessageTemplate.compile(prototype, packager);
+        terminal = TerminalPool.getDefault().next();
+
+        sink = new ServerSocket(0);
+        Thread drain = new Thread(() -> {
+            try (Socket s = sink.accept(); InputStream in = s.getInputStream()) {
+                byte[] buffer = new byte[64 * 1024];
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            } catch (Exception ignored) {
+            }
+        }, "benchmark-sink");
+        drain.setDaemon(true);
+        drain.start();
+
+        channel = new ASCIIChannel("localhost", sink.getLocalPort(), packager);
+        channel.connect();
+        framedTemplate = MessageTemplate.compile(prototype, channel);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.disconnect();
+        sink.close();
+    }
+
+    private ISOMsg buildPurchase() throws ISOException {
+        ISOMsg m = ISO87ClientApp.createPurchaseMsg();
+        m.setPackager(packager);
+        return m;
+    }
+
+    // All cards share one shape, so one template serves them
+    private ISOMsg nextCard() {
+        return cardFields.get(CardRepository.getDefault().next().getPan());
+    }
+
+    @Benchmark
+    public byte[] builderPack() throws ISOException {
+        return buildPurchase().pack();
+    }
+
+    @Benchmark
+    public byte[] templateStamp() {
+        return template.stamp(terminal, nextCard());
+    }
+
+    @Benchmark
+    public void builderSend() throws Exception {
+        channel.send(buildPurchase());
+    }
+
+    @Benchmark
+    public void templateSend() throws Exception {
+        channel.send(framedTemplate.stamp(terminal, nextCard()));
+    }
+}
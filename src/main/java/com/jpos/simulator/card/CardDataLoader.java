@@ -47,6 +47,7 @@ public class CardDataLoader {
         } catch (IOException e) {
             System.err.println("Error appending card to " + csvPath + ": " + e.getMessage());
         }
+        CardRepository.invalidate(csvPath);
     }
 
     public static void persistSelection(String csvPath, String selectedPan) {
@@ -75,6 +76,7 @@ public class CardDataLoader {
         } catch (IOException e) {
             System.err.println("Error persisting selection to " + csvPath + ": " + e.getMessage());
         }
+        CardRepository.invalidate(csvPath);
     }
 
     public static void updateCardStatus(String csvPath, String pan, String status) {
@@ -133,5 +135,6 @@ public class CardDataLoader {
         } catch (IOException e) {
             System.err.println("Error saving cards to " + csvPath + ": " + e.getMessage());
         }
+        CardRepository.invalidate(csvPath);
     }
 }
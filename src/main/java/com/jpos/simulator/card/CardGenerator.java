@@ -21,25 +21,10 @@ public class CardGenerator {
             // Generate CVV
             String cvv = hsm.calculateCVV(pan, null, null, expiryDate, "101");
 
-            // Generate PIN and PVV
-            System.out.println("1. PIN & PVV Operations");
-            EncryptedPIN encryptedPin = hsm.generatePIN(pan, pinLen);
-
-            // Get clear PIN from EncryptedPIN (Simulator approach)
-            // In our HsmSimulator, we log the clear PIN.
-            // For saving to CSV as requested "clear PIN", we'll generate it here or extract
-            // if possible.
-            // Since it's a simulator, we'll just generate the clear PIN directly for
-            // storage.
-            String pin = "1234"; // Default or generated
-            // Re-generating to match HSM behavior if needed, but let's just use what HSM
-            // logs.
-            // Actually, let's just generate a simple one for demo as requested.
-            pin = String.format("%04d", RANDOM.nextInt(10000));
-            // Ensure encryptedPin uses this pin for consistency in simulation
-            // But HsmSimulator.generatePIN already creates its own.
-            // Let's use a consistent approach:
-
+            // Generate PIN and PVV: the clear PIN is stored in the CSV, so the PVV
+            // is calculated from that same PIN under the HSM's PVK
+            String pin = String.format("%0" + pinLen + "d", RANDOM.nextInt(10000));
+            EncryptedPIN encryptedPin = hsm.encryptPIN(pin, pan);
             String pvv = hsm.calculatePVV(encryptedPin, null, null, 0);
             System.out.println("Generated PVV: " + pvv);
 
@@ -0,0 +1,151 @@
+package com.jpos.simulator.card;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared in-memory view of a cards CSV file. The file is parsed once and
+ * reloaded only when its modification time or size changes (checked at most
+ * once per second) or when {@link CardDataLoader} writes to it, so handing out
+ * a card is O(1) and never touches the disk.
+ */
+public class CardRepository {
+
+    public static final String DEFAULT_CSV = "src/main/resources/data/cards.csv";
+
+    public enum Selection {
+        /** Always the SELECTED=Y card (or the first card) */
+        SELECTED,
+        /** Every card in file order */
+        ROUND_ROBIN,
+        /** Uniformly random card */
+        RANDOM
+    }
+
+    private static final long CHECK_INTERVAL_NANOS = 1000000000L;
+    private static final Map<String, CardRepository> REPOSITORIES = new ConcurrentHashMap<>();
+
+    private final String csvPath;
+    private final File file;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private volatile Selection selection = Selection.SELECTED;
+    private volatile Snapshot snapshot;
+
+    private CardRepository(String csvPath) {
+        this.csvPath = csvPath;
+        this.file = new File(csvPath);
+    }
+
+    public static CardRepository get(String csvPath) {
+        return REPOSITORIES.computeIfAbsent(new File(csvPath).getAbsolutePath(), k -> new CardRepository(csvPath));
+    }
+
+    public static CardRepository getDefault() {
+        return get(DEFAULT_CSV);
+    }
+
+    /** Forces the next access to re-read the file, called after the file is written. */
+    public static void invalidate(String csvPath) {
+        CardRepository repository = REPOSITORIES.get(new File(csvPath).getAbsolutePath());
+        if (repository != null) {
+            repository.snapshot = null;
+        }
+    }
+
+    public void setSelection(Selection selection) {
+        this.selection = selection;
+        System.out.println("Card selection: " + selection + " (" + size() + " cards)");
+    }
+
+    public Selection getSelection() {
+        return selection;
+    }
+
+    /** Next card according to the selection mode, or null when the file has no cards. */
+    public CardInfo next() {
+        Snapshot s = current();
+        if (s.cards.length == 0) {
+            return null;
+        }
+        switch (selection) {
+        case ROUND_ROBIN:
+            return s.cards[(cursor.getAndIncrement() & Integer.MAX_VALUE) % s.cards.length];
+        case RANDOM:
+            return s.cards[ThreadLocalRandom.current().nextInt(s.cards.length)];
+        default:
+            return s.selected;
+        }
+    }
+
+    /** The SELECTED=Y card, or the first card when none is selected. */
+    public CardInfo getSelected() {
+        return current().selected;
+    }
+
+    public CardInfo findByPan(String pan) {
+        return current().byPan.get(pan);
+    }
+
+    public List<CardInfo> getCards() {
+        return Collections.unmodifiableList(Arrays.asList(current().cards));
+    }
+
+    public int size() {
+        return current().cards.length;
+    }
+
+    private Snapshot current() {
+        Snapshot s = snapshot;
+        if (s == null || System.nanoTime() - s.checkedAt >= CHECK_INTERVAL_NANOS) {
+            s = refresh(s);
+        }
+        return s;
+    }
+
+    private synchronized Snapshot refresh(Snapshot seen) {
+        Snapshot s = snapshot;
+        if (s != seen) {
+            return s; // refreshed by another thread meanwhile
+        }
+        long modified = file.lastModified();
+        long length = file.length();
+        if (s != null && s.lastModified == modified && s.length == length) {
+            s.checkedAt = System.nanoTime();
+            return s;
+        }
+        s = new Snapshot(CardDataLoader.loadCards(csvPath), modified, length);
+        snapshot = s;
+        return s;
+    }
+
+    private static final class Snapshot {
+        final CardInfo[] cards;
+        final CardInfo selected;
+        final Map<String, CardInfo> byPan;
+        final long lastModified;
+        final long length;
+        volatile long checkedAt = System.nanoTime();
+
+        Snapshot(List<CardInfo> list, long lastModified, long length) {
+            this.cards = list.toArray(new CardInfo[0]);
+            this.lastModified = lastModified;
+            this.length = length;
+            this.byPan = new HashMap<>();
+            CardInfo sel = null;
+            for (CardInfo card : cards) {
+                byPan.put(card.getPan(), card);
+                if (sel == null && card.isSelected()) {
+                    sel = card;
+                }
+            }
+            this.selected = sel != null ? sel : cards.length > 0 ? cards[0] : null;
+        }
+    }
+}
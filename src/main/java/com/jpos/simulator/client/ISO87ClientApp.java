@@ -3,9 +3,12 @@ package com.jpos.simulator.client;
 import com.jpos.simulator.core.ChannelFactory;
 import com.jpos.simulator.core.ISOTransaction;
 import com.jpos.simulator.client.base.ISO87Messages;
+import com.jpos.simulator.load.LoadGenerator;
+import com.jpos.simulator.metrics.LatencyRecorder;
 import com.jpos.simulator.card.CardInfo;
 import com.jpos.simulator.card.CardDataLoader;
 import com.jpos.simulator.card.CardGenerator;
+import com.jpos.simulator.card.CardRepository;
 
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOChannel;
@@ -23,8 +26,18 @@ import com.jpos.simulator.security.HsmSimulator;
 
 public class ISO87ClientApp extends ISO87Messages {
     private static final HsmSimulator hsm = new HsmSimulator();
+    private static final CardRepository cards = CardRepository.getDefault();
+    private static final LatencyRecorder latency = LatencyRecorder.get("iso87-client");
+    private static volatile boolean verbose = true;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // Headless load mode, see LoadGenerator for the supported options
+            setVerbose(false);
+            LoadGenerator.run("ISO87", "src/main/resources/xml/channel/iso87/client.xml", buildMenu(), args);
+            return;
+        }
+
         try {
             Logger logger = new Logger();
             logger.addListener(new SimpleLogListener(System.out));
@@ -42,26 +55,7 @@ public class ISO87ClientApp extends ISO87Messages {
                 ((org.jpos.util.LogSource) channel).setLogger(logger, "iso87-client-channel");
             }
 
-            Map<String, ISOTransaction> menu = new LinkedHashMap<>();
-            // Network Management
-            menu.put("Send Echo Request (0800/301)", ISO87ClientApp::sendEcho);
-            menu.put("Send Logon Request (0800/001)", ISO87ClientApp::sendLogon);
-            menu.put("Send Logoff Request (0800/002)", ISO87ClientApp::sendLogoff);
-            menu.put("Send Key Exchange (0800/161)", ISO87ClientApp::sendKeyExchange);
-
-            // File Action
-            menu.put("Send Create Card (0300/1)", ISO87ClientApp::sendCreateCard);
-            menu.put("Send Update Card Status (0300/2)", ISO87ClientApp::sendUpdateCardStatus);
-            menu.put("Generate & Sync New Card (0300)", ISO87ClientApp::generateAndSyncCard);
-
-            // Financial
-            menu.put("Send Pre-Authorization (0100)", ISO87ClientApp::sendPreAuth);
-            menu.put("Send Balance Inquiry (0200/31)", ISO87ClientApp::sendBalanceInquiry);
-            menu.put("Send Purchase (0200)", ISO87ClientApp::sendPurchase);
-            menu.put("Send Purchase Reversal (0420)", ISO87ClientApp::sendPurchaseReversal);
-            menu.put("Send Withdrawal (0200/01)", ISO87ClientApp::sendWithdrawal);
-            menu.put("Send Withdrawal Reversal (0420/01)", ISO87ClientApp::sendWithdrawalReversal);
-            menu.put("Send Refund (0200/20)", ISO87ClientApp::sendRefund);
+            Map<String, ISOTransaction> menu = buildMenu();
 
             try (Scanner scanner = new Scanner(System.in)) {
                 boolean running = true;
@@ -71,7 +65,8 @@ public class ISO87ClientApp extends ISO87Messages {
                     for (String desc : menu.keySet()) {
                         System.out.println(i++ + ". " + desc);
                     }
-                    System.out.println(i + ". Exit");
+                    System.out.println(i + ". Print Latency Report");
+                    System.out.println((i + 1) + ". Exit");
                     System.out.print("Select an option: ");
 
                     String choiceStr = scanner.nextLine();
@@ -84,6 +79,11 @@ public class ISO87ClientApp extends ISO87Messages {
                     }
 
                     if (choice == i) {
+                        latency.dump(System.out);
+                        continue;
+                    }
+
+                    if (choice == i + 1) {
                         running = false;
                         if (channel instanceof org.jpos.iso.BaseChannel) {
                             ((org.jpos.iso.BaseChannel) channel).disconnect();
@@ -110,22 +110,63 @@ public class ISO87ClientApp extends ISO87Messages {
         }
     }
 
+    public static Map<String, ISOTransaction> buildMenu() {
+        Map<String, ISOTransaction> menu = new LinkedHashMap<>();
+        // Network Management
+        menu.put("Send Echo Request (0800/301)", ISO87ClientApp::sendEcho);
+        menu.put("Send Logon Request (0800/001)", ISO87ClientApp::sendLogon);
+        menu.put("Send Logoff Request (0800/002)", ISO87ClientApp::sendLogoff);
+        menu.put("Send Key Exchange (0800/161)", ISO87ClientApp::sendKeyExchange);
+
+        // File Action
+        menu.put("Send Create Card (0300/1)", ISO87ClientApp::sendCreateCard);
+        menu.put("Send Update Card Status (0300/2)", ISO87ClientApp::sendUpdateCardStatus);
+        menu.put("Generate & Sync New Card (0300)", ISO87ClientApp::generateAndSyncCard);
+
+        // Financial
+        menu.put("Send Pre-Authorization (0100)", ISO87ClientApp::sendPreAuth);
+        menu.put("Send Balance Inquiry (0200/31)", ISO87ClientApp::sendBalanceInquiry);
+        menu.put("Send Purchase (0200)", ISO87ClientApp::sendPurchase);
+        menu.put("Send Purchase Reversal (0420)", ISO87ClientApp::sendPurchaseReversal);
+        menu.put("Send Withdrawal (0200/01)", ISO87ClientApp::sendWithdrawal);
+        menu.put("Send Withdrawal Reversal (0420/01)", ISO87ClientApp::sendWithdrawalReversal);
+        menu.put("Send Refund (0200/20)", ISO87ClientApp::sendRefund);
+        return menu;
+    }
+
     // Helper for transmission
     private static ISOMsg transmit(ISOChannel channel, ISOMsg m, String name) throws ISOException, IOException {
-        System.out.println("Sending " + name + " [" + m.getMTI() + "]...");
+        if (verbose)
+            System.out.println("Sending " + name + " [" + m.getMTI() + "]...");
 
-        channel.send(m);
-        ISOMsg r = channel.receive();
+        long start = System.nanoTime();
+        ISOMsg r;
+        try {
+            channel.send(m);
+            r = channel.receive();
+        } catch (ISOException | IOException e) {
+            latency.recordError(m, System.nanoTime() - start);
+            throw e;
+        }
+        latency.record(m, System.nanoTime() - start);
 
-        System.out.println("Received " + name + " response [" + r.getMTI() + "] (F39=" + r.getString(39) + ")");
+        if (verbose)
+            System.out.println("Received " + name + " response [" + r.getMTI() + "] (F39=" + r.getString(39) + ")");
         return r;
     }
 
+    public static void setVerbose(boolean enabled) {
+        verbose = enabled;
+    }
+
     // PIN / PVV helpers
     private static void addSecurityFields(ISOMsg m, CardInfo card) throws org.jpos.iso.ISOException {
         if (card != null) {
-            byte[] pinBlock = hsm.generateISO0PinBlock(card.getPin(), card.getPan());
-            m.set(52, pinBlock);
+            try {
+                m.set(52, hsm.encryptPinBlock(card.getPin(), card.getPan()));
+            } catch (org.jpos.security.SMException e) {
+                throw new ISOException("Cannot encrypt PIN block: " + e.getMessage(), e);
+            }
             m.set(44, card.getPvv());
             m.set(48, "CVV=" + card.getCvd());
         }
@@ -156,18 +197,31 @@ public class ISO87ClientApp extends ISO87Messages {
         return transmit(channel, createLogoffMsg(), "Logoff");
     }
 
+    // Card maintenance flows always act on the selected card
     private static CardInfo ensureCardSelectedInfo() {
-        java.util.List<CardInfo> cards = CardDataLoader.loadCards("src/main/resources/data/cards.csv");
-        for (CardInfo card : cards) {
-            if (card.isSelected()) {
-                return card;
-            }
-        }
-        return !cards.isEmpty() ? cards.get(0) : null;
+        return cards.getSelected();
+    }
+
+    // Financial messages follow the repository's selection mode (selected, round-robin or random)
+    private static CardInfo nextCard() {
+        return cards.next();
+    }
+
+    /**
+     * The card fields the financial builders set for {@code card}: PAN, expiry
+     * and the security fields. Template steps patch these into a pre-packed
+     * message instead of building one per request.
+     */
+    public static ISOMsg createCardFields(CardInfo card) throws ISOException {
+        ISOMsg m = new ISOMsg();
+        m.set(2, card.getPan());
+        m.set(14, card.getExpiry());
+        addSecurityFields(m, card);
+        return m;
     }
 
     public static ISOMsg createPurchaseMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("0200", "000000", pan, expiry);
@@ -198,7 +252,7 @@ public class ISO87ClientApp extends ISO87Messages {
     }
 
     public static ISOMsg createBalanceInquiryMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("0200", "310000", pan, expiry);
@@ -211,7 +265,7 @@ public class ISO87ClientApp extends ISO87Messages {
     }
 
     public static ISOMsg createWithdrawalMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("0200", "010000", pan, expiry);
@@ -242,7 +296,7 @@ public class ISO87ClientApp extends ISO87Messages {
     }
 
     public static ISOMsg createRefundMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("0200", "200000", pan, expiry);
@@ -256,7 +310,7 @@ public class ISO87ClientApp extends ISO87Messages {
     }
 
     public static ISOMsg createPreAuthMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("0100", "000000", pan, expiry);
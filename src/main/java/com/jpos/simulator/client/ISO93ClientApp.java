@@ -3,9 +3,12 @@ package com.jpos.simulator.client;
 import com.jpos.simulator.core.ChannelFactory;
 import com.jpos.simulator.core.ISOTransaction;
 import com.jpos.simulator.client.base.ISO93Messages;
+import com.jpos.simulator.load.LoadGenerator;
+import com.jpos.simulator.metrics.LatencyRecorder;
 import com.jpos.simulator.card.CardInfo;
 import com.jpos.simulator.card.CardDataLoader;
 import com.jpos.simulator.card.CardGenerator;
+import com.jpos.simulator.card.CardRepository;
 
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOChannel;
@@ -25,8 +28,18 @@ import com.jpos.simulator.security.HsmSimulator;
 public class ISO93ClientApp extends ISO93Messages {
 
     private static final HsmSimulator hsm = new HsmSimulator();
+    private static final CardRepository cards = CardRepository.getDefault();
+    private static final LatencyRecorder latency = LatencyRecorder.get("iso93-client");
+    private static volatile boolean verbose = true;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            // Headless load mode, see LoadGenerator for the supported options
+            setVerbose(false);
+            LoadGenerator.run("ISO93", "src/main/resources/xml/channel/iso93/client.xml", buildMenu(), args);
+            return;
+        }
+
         try {
             Logger logger = new Logger();
             logger.addListener(new SimpleLogListener(System.out));
@@ -44,26 +57,7 @@ public class ISO93ClientApp extends ISO93Messages {
                 ((org.jpos.util.LogSource) channel).setLogger(logger, "iso93-client-channel");
             }
 
-            Map<String, ISOTransaction> menu = new LinkedHashMap<>();
-            // Network Management
-            menu.put("Send Echo Request (1804/801)", ISO93ClientApp::sendEcho);
-            menu.put("Send Logon Request (1804/001)", ISO93ClientApp::sendLogon);
-            menu.put("Send Logoff Request (1804/002)", ISO93ClientApp::sendLogoff);
-            menu.put("Send Key Exchange (1804/161)", ISO93ClientApp::sendKeyExchange);
-
-            // File Action
-            menu.put("Send Create Card (1304/1)", ISO93ClientApp::sendCreateCard);
-            menu.put("Send Update Card Status (1304/2)", ISO93ClientApp::sendUpdateCardStatus);
-            menu.put("Generate & Sync New Card (1304)", ISO93ClientApp::generateAndSyncCard);
-
-            // Financial
-            menu.put("Send Pre-Authorization (1100/100)", ISO93ClientApp::sendPreAuth);
-            menu.put("Send Balance Inquiry (1100/31)", ISO93ClientApp::sendBalanceInquiry);
-            menu.put("Send Purchase (1100/100)", ISO93ClientApp::sendPurchase);
-            menu.put("Send Purchase Reversal (1420/400)", ISO93ClientApp::sendPurchaseReversal);
-            menu.put("Send Withdrawal (1100/01)", ISO93ClientApp::sendWithdrawal);
-            menu.put("Send Withdrawal Reversal (1420/400)", ISO93ClientApp::sendWithdrawalReversal);
-            menu.put("Send Refund (1100/200)", ISO93ClientApp::sendRefund);
+            Map<String, ISOTransaction> menu = buildMenu();
 
             try (Scanner scanner = new Scanner(System.in)) {
                 boolean running = true;
@@ -73,7 +67,8 @@ public class ISO93ClientApp extends ISO93Messages {
                     for (String desc : menu.keySet()) {
                         System.out.println(i++ + ". " + desc);
                     }
-                    System.out.println(i + ". Exit");
+                    System.out.println(i + ". Print Latency Report");
+                    System.out.println((i + 1) + ". Exit");
                     System.out.print("Select an option: ");
 
                     String choiceStr = scanner.nextLine();
@@ -86,6 +81,11 @@ public class ISO93ClientApp extends ISO93Messages {
                     }
 
                     if (choice == i) {
+                        latency.dump(System.out);
+                        continue;
+                    }
+
+                    if (choice == i + 1) {
                         running = false;
                         if (channel instanceof org.jpos.iso.BaseChannel) {
                             ((org.jpos.iso.BaseChannel) channel).disconnect();
@@ -112,27 +112,78 @@ public class ISO93ClientApp extends ISO93Messages {
         }
     }
 
+    public static Map<String, ISOTransaction> buildMenu() {
+        Map<String, ISOTransaction> menu = new LinkedHashMap<>();
+        // Network Management
+        menu.put("Send Echo Request (1804/801)", ISO93ClientApp::sendEcho);
+        menu.put("Send Logon Request (1804/001)", ISO93ClientApp::sendLogon);
+        menu.put("Send Logoff Request (1804/002)", ISO93ClientApp::sendLogoff);
+        menu.put("Send Key Exchange (1804/161)", ISO93ClientApp::sendKeyExchange);
+
+        // File Action
+        menu.put("Send Create Card (1304/1)", ISO93ClientApp::sendCreateCard);
+        menu.put("Send Update Card Status (1304/2)", ISO93ClientApp::sendUpdateCardStatus);
+        menu.put("Generate & Sync New Card (1304)", ISO93ClientApp::generateAndSyncCard);
+
+        // Financial
+        menu.put("Send Pre-Authorization (1100/100)", ISO93ClientApp::sendPreAuth);
+        menu.put("Send Balance Inquiry (1100/31)", ISO93ClientApp::sendBalanceInquiry);
+        menu.put("Send Purchase (1100/100)", ISO93ClientApp::sendPurchase);
+        menu.put("Send Purchase Reversal (1420/400)", ISO93ClientApp::sendPurchaseReversal);
+        menu.put("Send Withdrawal (1100/01)", ISO93ClientApp::sendWithdrawal);
+        menu.put("Send Withdrawal Reversal (1420/400)", ISO93ClientApp::sendWithdrawalReversal);
+        menu.put("Send Refund (1100/200)", ISO93ClientApp::sendRefund);
+        return menu;
+    }
+
+    // Card maintenance flows always act on the selected card
     private static CardInfo ensureCardSelectedInfo() {
-        java.util.List<CardInfo> cards = CardDataLoader.loadCards("src/main/resources/data/cards.csv");
-        for (CardInfo card : cards) {
-            if (card.isSelected()) {
-                return card;
-            }
-        }
-        return !cards.isEmpty() ? cards.get(0) : null;
+        return cards.getSelected();
+    }
+
+    // Financial messages follow the repository's selection mode (selected, round-robin or random)
+    private static CardInfo nextCard() {
+        return cards.next();
+    }
+
+    /**
+     * The card fields the financial builders set for {@code card}: PAN, expiry
+     * and the security fields. Template steps patch these into a pre-packed
+     * message instead of building one per request.
+     */
+    public static ISOMsg createCardFields(CardInfo card) throws ISOException {
+        ISOMsg m = new ISOMsg();
+        m.set(2, card.getPan());
+        m.set(14, card.getExpiry());
+        addSecurityFields(m, card);
+        return m;
     }
 
     // Helper for transmission
     private static ISOMsg transmit(ISOChannel channel, ISOMsg m, String name) throws ISOException, IOException {
-        System.out.println("Sending " + name + " [" + m.getMTI() + "]...");
+        if (verbose)
+            System.out.println("Sending " + name + " [" + m.getMTI() + "]...");
 
-        channel.send(m);
-        ISOMsg r = channel.receive();
+        long start = System.nanoTime();
+        ISOMsg r;
+        try {
+            channel.send(m);
+            r = channel.receive();
+        } catch (ISOException | IOException e) {
+            latency.recordError(m, System.nanoTime() - start);
+            throw e;
+        }
+        latency.record(m, System.nanoTime() - start);
 
-        System.out.println("Received " + name + " response [" + r.getMTI() + "] (F39=" + r.getString(39) + ")");
+        if (verbose)
+            System.out.println("Received " + name + " response [" + r.getMTI() + "] (F39=" + r.getString(39) + ")");
         return r;
     }
 
+    public static void setVerbose(boolean enabled) {
+        verbose = enabled;
+    }
+
     private static void addSecurityFields(ISOMsg m, CardInfo card) throws org.jpos.iso.ISOException {
         if (card != null) {
             String pan = card.getPan();
@@ -144,14 +195,8 @@ public class ISO93ClientApp extends ISO93Messages {
             // Add PIN Block in Field 52 if PIN exists
             if (pin != null && !pin.isEmpty()) {
                 try {
-                    // com.jpos.simulator.security.EncryptedPIN encryptedPin = hsm.generatePIN(pan,
-                    // pin.length());
-                    // NOTE: The above generates a RANDOM PIN. We want to use the card's PIN.
-                    // HsmSimulator.generatePIN(pan, length) generates a random PIN and returns
-                    // detailed object.
-                    // We need a way to form a PIN block from the EXISTING PIN in the card.
-                    // HsmSimulator has generateISO0PinBlock(pin, pan).
-                    byte[] pinBlock = hsm.generateISO0PinBlock(pin, pan);
+                    // The card's own PIN, encrypted under the TPK
+                    byte[] pinBlock = hsm.encryptPinBlock(pin, pan);
                     m.set(52, pinBlock);
                 } catch (Exception e) {
                     System.err.println("Error generating PIN block: " + e.getMessage());
@@ -197,7 +242,7 @@ public class ISO93ClientApp extends ISO93Messages {
 
     // Financial Methods
     public static ISOMsg createPurchaseMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("1100", "000000", "100", pan, expiry);
@@ -228,7 +273,7 @@ public class ISO93ClientApp extends ISO93Messages {
     }
 
     public static ISOMsg createBalanceInquiryMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("1100", "310000", "100", pan, expiry);
@@ -241,7 +286,7 @@ public class ISO93ClientApp extends ISO93Messages {
     }
 
     public static ISOMsg createWithdrawalMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("1100", "010000", "100", pan, expiry);
@@ -272,7 +317,7 @@ public class ISO93ClientApp extends ISO93Messages {
     }
 
     public static ISOMsg createPreAuthMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("1100", "000000", "104", pan, expiry);
@@ -286,7 +331,7 @@ public class ISO93ClientApp extends ISO93Messages {
     }
 
     public static ISOMsg createRefundMsg() throws ISOException {
-        CardInfo card = ensureCardSelectedInfo();
+        CardInfo card = nextCard();
         String pan = card != null ? card.getPan() : "1234567890123456";
         String expiry = card != null ? card.getExpiry() : "2912";
         ISOMsg m = createFinancialBase("1100", "200000", "200", pan, expiry);
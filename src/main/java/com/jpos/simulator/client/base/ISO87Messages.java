@@ -1,5 +1,8 @@
 package com.jpos.simulator.client.base;
 
+import com.jpos.simulator.terminal.Terminal;
+import com.jpos.simulator.terminal.TerminalPool;
+
 import org.jpos.iso.ISODate;
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
@@ -9,10 +12,19 @@ import java.util.Calendar;
 public class ISO87Messages {
 
     protected static ISOMsg createBase(String mti) throws ISOException {
+        return createBase(mti, TerminalPool.getDefault().next());
+    }
+
+    // STAN comes from the terminal's own sequence so it never repeats within a terminal.
+    // DE 41/42 name that terminal: STANs are only unique per terminal, so every
+    // message carries its terminal for responses to be matched (PipelinedChannel).
+    protected static ISOMsg createBase(String mti, Terminal terminal) throws ISOException {
         ISOMsg m = new ISOMsg();
         m.setMTI(mti);
         m.set(7, ISODate.getDateTime(new Date()));
-        m.set(11, String.format("%06d", (int) (Math.random() * 1000000)));
+        m.set(11, terminal.nextStanString());
+        m.set(41, terminal.getTerminalId());
+        m.set(42, terminal.getMerchantId());
         return m;
     }
 
@@ -24,7 +36,8 @@ public class ISO87Messages {
 
     protected static ISOMsg createFinancialBase(String mti, String procCode, String pan, String expiry)
             throws ISOException {
-        ISOMsg m = createBase(mti);
+        Terminal terminal = TerminalPool.getDefault().next();
+        ISOMsg m = createBase(mti, terminal);
         Date now = new Date();
         String stan = m.getString(11);
 
@@ -42,8 +55,6 @@ public class ISO87Messages {
         String julianDay = String.format("%03d", Calendar.getInstance().get(Calendar.DAY_OF_YEAR));
         String rrn = julianDay + ISODate.getTime(now).substring(0, 2) + stan + "1";
         m.set(37, rrn);
-        m.set(41, "TERM0001");
-        m.set(42, "MERCHANT0000001");
         m.set(49, "840");
         return m;
     }
@@ -57,7 +68,12 @@ public class ISO87Messages {
 
     protected static ISOMsg createReversalBase(String mti, String procCode, String pan, String amount, String rrn,
             ISOMsg original) throws ISOException {
-        ISOMsg m = createBase(mti);
+        // A reversal is sent by the terminal that performed the original transaction
+        Terminal terminal = TerminalPool.getDefault().get(original.getString(41));
+        if (terminal == null) {
+            terminal = TerminalPool.getDefault().next();
+        }
+        ISOMsg m = createBase(mti, terminal);
         Date now = new Date();
         m.set(2, pan);
         m.set(3, procCode);
@@ -70,8 +86,8 @@ public class ISO87Messages {
         if (original.hasField(38)) {
             m.set(38, original.getString(38));
         }
-        m.set(41, "TERM0001");
-        m.set(42, "MERCHANT0000001");
+        m.set(41, original.hasField(41) ? original.getString(41) : terminal.getTerminalId());
+        m.set(42, original.hasField(42) ? original.getString(42) : terminal.getMerchantId());
         m.set(49, "840");
 
         // F90: Original Data Elements (Original MTI + Original STAN + Original Trans DT
@@ -0,0 +1,242 @@
+package com.jpos.simulator.core;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOMsg;
+import org.jpos.util.LogEvent;
+import org.jpos.util.LogListener;
+import org.jpos.util.SimpleLogListener;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link LogListener} that hands events to a dedicated writer thread through a
+ * bounded ring buffer, so channels and listeners never wait on console or file
+ * I/O. Output is the same XML as {@link SimpleLogListener}, written in batches
+ * through a buffered stream that is flushed whenever the queue runs empty.
+ * <p>
+ * Events are classified as ERROR (exceptions, {@code error} tags), WARN
+ * ({@code warn} tags, responses with DE 39 other than {@code 00}) or INFO, and
+ * events below the configured level are discarded. With a sample rate of N,
+ * only one in N approved responses is logged, chosen by terminal and STAN.
+ * Requests are always kept, since whether the transaction is declined is not
+ * known yet when they are logged, and a replay of the log needs all of them.
+ * When the buffer is full INFO and WARN events are dropped and counted, while
+ * ERROR events wait for room.
+ * <p>
+ * Events are stamped when they are queued, so {@code at} is the time the
+ * event was logged, not the time the writer got to it. The output stream is
+ * closed with the listener unless it is the console.
+ */
+public class AsyncLogListener implements LogListener {
+
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+
+    public static final int DEFAULT_QUEUE_SIZE = 16384;
+
+    private static final int BATCH = 256;
+
+    /** An event as queued: the same payload, with a header stamped when it was logged. */
+    private static final class Queued extends LogEvent {
+        private final Instant at;
+
+        Queued(LogEvent ev, Instant at) {
+            super(ev.getSource(), ev.getTag());
+            for (Object o : ev.getPayLoad()) {
+                addMessage(o);
+            }
+            this.at = at;
+        }
+
+        @Override
+        protected String dumpHeader(PrintStream p, String indent) {
+            p.println(indent + "<log realm=\"" + getRealm() + "\" at=\""
+                    + LocalDateTime.ofInstant(at, ZoneId.systemDefault()) + "\">");
+            return indent + "  ";
+        }
+    }
+
+    private final PrintStream out;
+    private final boolean ownsStream;
+    private final Thread shutdownHook;
+    private final SimpleLogListener writer;
+    private final ArrayBlockingQueue<LogEvent> queue;
+    private final Level level;
+    private final int sampleRate;
+    private final Thread thread;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder sampledOut = new LongAdder();
+    private volatile boolean closed;
+
+    public AsyncLogListener(String name, OutputStream out, Level level, int sampleRate, int queueSize) {
+        this.out = new PrintStream(new BufferedOutputStream(out, 65536));
+        this.ownsStream = out != System.out && out != System.err;
+        this.writer = new SimpleLogListener(this.out);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.level = level;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.thread = new Thread(this::drain, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.shutdownHook = new Thread(this::close, name + "-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Builds the listener described by the {@code log-*} properties of a channel
+     * configuration: {@code log-mode} ({@code async} or {@code sync}),
+     * {@code log-level}, {@code log-sample} and {@code log-queue-size}. In sync
+     * mode this is a plain {@link SimpleLogListener}.
+     */
+    public static LogListener forConfiguration(String name, OutputStream out, Configuration cfg) {
+        if ("sync".equalsIgnoreCase(cfg.get("log-mode", "async"))) {
+            return new SimpleLogListener(out instanceof PrintStream ? (PrintStream) out : new PrintStream(out));
+        }
+        return new AsyncLogListener(name, out, Level.valueOf(cfg.get("log-level", "info").trim().toUpperCase()),
+                cfg.getInt("log-sample", 1), cfg.getInt("log-queue-size", DEFAULT_QUEUE_SIZE));
+    }
+
+    @Override
+    public LogEvent log(LogEvent ev) {
+        Level eventLevel = levelOf(ev);
+        if (eventLevel.compareTo(level) < 0) {
+            return ev;
+        }
+        if (eventLevel == Level.INFO && sampleRate > 1 && !sampled(ev)) {
+            sampledOut.increment();
+            return ev;
+        }
+        if (closed) {
+            writer.log(ev);
+            out.flush();
+            return ev;
+        }
+        Queued queued = new Queued(ev, Instant.now());
+        if (!queue.offer(queued)) {
+            if (eventLevel == Level.ERROR) {
+                try {
+                    queue.put(queued);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                dropped.increment();
+            }
+        }
+        return ev;
+    }
+
+    /** Writes out everything still queued, stops the writer thread and closes the stream. */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down: this is the hook
+        }
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Events queued while the writer was stopping
+        LogEvent ev;
+        while ((ev = queue.poll()) != null) {
+            writer.log(ev);
+        }
+        if (ownsStream) {
+            out.close();
+        } else {
+            out.flush();
+        }
+        if (dropped.sum() > 0) {
+            System.out.println(thread.getName() + ": dropped " + dropped.sum() + " log events (buffer full)");
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    private void drain() {
+        List<LogEvent> batch = new ArrayList<>(BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                LogEvent ev = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (ev == null) {
+                    continue;
+                }
+                writer.log(ev);
+                while (queue.drainTo(batch, BATCH) > 0) {
+                    for (LogEvent e : batch) {
+                        writer.log(e);
+                    }
+                    batch.clear();
+                }
+                out.flush();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                // A broken event must not stop the writer
+                e.printStackTrace();
+            }
+        }
+        out.flush();
+    }
+
+    static Level levelOf(LogEvent ev) {
+        String tag = ev.getTag();
+        if ("error".equals(tag)) {
+            return Level.ERROR;
+        }
+        Level result = "warn".equals(tag) ? Level.WARN : Level.INFO;
+        for (Object o : ev.getPayLoad()) {
+            if (o instanceof Throwable) {
+                return Level.ERROR;
+            }
+            if (o instanceof ISOMsg && result == Level.INFO) {
+                String rc = ((ISOMsg) o).getString(39);
+                if (rc != null && !"00".equals(rc)) {
+                    result = Level.WARN;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Keeps every request and 1 in sampleRate responses, deciding on DE 41 and DE 11
+    private boolean sampled(LogEvent ev) {
+        for (Object o : ev.getPayLoad()) {
+            if (o instanceof ISOMsg) {
+                ISOMsg m = (ISOMsg) o;
+                String mti = m.getString(0);
+                if (mti == null || mti.length() != 4 || (mti.charAt(2) - '0') % 2 == 0) {
+                    return true;
+                }
+                String tid = m.getString(41);
+                String stan = m.getString(11);
+                int h = (tid != null ? tid.hashCode() : 0) * 31 + (stan != null ? stan.hashCode() : 0);
+                return Math.floorMod(h * 0x9E3779B9, sampleRate) == 0;
+            }
+        }
+        return true;
+    }
+}
@@ -9,17 +9,44 @@ import org.jpos.iso.ISOChannel;
 import org.jpos.iso.ISOPackager;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ChannelFactory {
 
+    // Channels that can wait for data outside their receive lock (see VirtualThreads.awaitReadable)
+    private static final Map<String, String> UNPINNED_CHANNELS = new HashMap<>();
+
+    static {
+        UNPINNED_CHANNELS.put("org.jpos.iso.channel.ASCIIChannel",
+                "com.jpos.simulator.core.channel.UnpinnedASCIIChannel");
+        UNPINNED_CHANNELS.put("org.jpos.iso.channel.PostChannel",
+                "com.jpos.simulator.core.channel.UnpinnedPostChannel");
+    }
+
     public static ISOChannel createChannel(String xmlFile) throws Exception {
+        return createChannel(xmlFile, false);
+    }
+
+    /**
+     * Creates the channel described by the XML file. With {@code virtualThreads}
+     * (or {@code thread-mode=virtual} in the file) standard channels are replaced
+     * by subclasses that do not pin virtual threads while waiting for a message.
+     */
+    public static ISOChannel createChannel(String xmlFile, boolean virtualThreads) throws Exception {
         SAXBuilder builder = new SAXBuilder();
         Document document = builder.build(new File(xmlFile));
         Element root = document.getRootElement();
 
+        Configuration config = readProperties(root);
+
         // Instantiate Channel
         String channelClass = root.getAttributeValue("class");
+        if (virtualThreads || "virtual".equalsIgnoreCase(config.get("thread-mode"))) {
+            String unpinned = UNPINNED_CHANNELS.get(channelClass);
+            channelClass = unpinned != null ? unpinned : channelClass;
+        }
         ISOChannel channel = (ISOChannel) Class.forName(channelClass).getDeclaredConstructor().newInstance();
 
         // Instantiate Packager
@@ -29,15 +56,6 @@ public class ChannelFactory {
             channel.setPackager(packager);
         }
 
-        // Configure
-        Configuration config = new SimpleConfiguration();
-        List<Element> properties = root.getChildren("property");
-        for (Element prop : properties) {
-            String name = prop.getAttributeValue("name");
-            String value = prop.getAttributeValue("value");
-            config.put(name, value);
-        }
-
         // Configure Packager if it's GenericPackager and packager-config is present
         if (channel.getPackager() instanceof org.jpos.iso.packager.GenericPackager) {
             String packagerConfig = config.get("packager-config");
@@ -63,4 +81,20 @@ public class ChannelFactory {
 
         return channel;
     }
+
+    /** Reads only the {@code property} elements of a channel XML file. */
+    public static Configuration loadConfiguration(String xmlFile) throws Exception {
+        return readProperties(new SAXBuilder().build(new File(xmlFile)).getRootElement());
+    }
+
+    private static Configuration readProperties(Element root) {
+        Configuration config = new SimpleConfiguration();
+        List<Element> properties = root.getChildren("property");
+        for (Element prop : properties) {
+            String name = prop.getAttributeValue("name");
+            String value = prop.getAttributeValue("value");
+            config.put(name, value);
+        }
+        return config;
+    }
 }
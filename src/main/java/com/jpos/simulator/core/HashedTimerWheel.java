@@ -0,0 +1,118 @@
+package com.jpos.simulator.core;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs delayed tasks from a single thread using a hashed timer wheel: a ring
+ * of buckets, one per tick, where each task waits in the bucket of its
+ * deadline. Scheduling is a lock-free enqueue and each tick only looks at one
+ * bucket, so hundreds of thousands of pending timeouts cost no threads and no
+ * heap reordering. Tasks run on the wheel thread, so they should only hand
+ * work over (to an executor or a session's write queue), never do I/O.
+ */
+public class HashedTimerWheel {
+
+    private static final class Timeout {
+        final long deadline;
+        final Runnable task;
+        long rounds;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Thread thread;
+    private final long start = System.nanoTime();
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize  number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void schedule(Runnable task, long delayMillis) {
+        if (!running) {
+            throw new IllegalStateException("Timer wheel stopped");
+        }
+        pending.incrementAndGet();
+        incoming.add(new Timeout(System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(delayMillis), task));
+    }
+
+    /** Tasks scheduled but not yet run. */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /** Stops the wheel; tasks not yet due are discarded. */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long next = start + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) < next && running) {
+                LockSupport.parkNanos(next - now);
+            }
+            transferIncoming();
+            expire(buckets[(int) (tick & mask)], now - start);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout t;
+        while ((t = incoming.poll()) != null) {
+            // Bucket k is expired at the end of tick k, so it holds deadlines up to (k + 1) * tick
+            long ticks = Math.max(tick, (t.deadline + tickNanos - 1) / tickNanos - 1);
+            t.rounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket, long elapsed) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout t = it.next();
+            if (t.rounds <= 0 && t.deadline <= elapsed) {
+                it.remove();
+                pending.decrementAndGet();
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                t.rounds--;
+            }
+        }
+    }
+}
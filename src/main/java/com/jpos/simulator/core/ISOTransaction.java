@@ -2,9 +2,10 @@ package com.jpos.simulator.core;
 
 import org.jpos.iso.ISOChannel;
 import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
 import java.io.IOException;
 
 @FunctionalInterface
 public interface ISOTransaction {
-    void execute(ISOChannel channel) throws ISOException, IOException;
+    ISOMsg execute(ISOChannel channel) throws ISOException, IOException;
 }
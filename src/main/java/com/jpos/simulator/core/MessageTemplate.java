@@ -0,0 +1,388 @@
+package com.jpos.simulator.core;
+
+import com.jpos.simulator.terminal.Terminal;
+
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOPackager;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.PostChannel;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A message packed once into a byte image whose variable fields are patched in
+ * place before every send, so the hot path skips building an {@link ISOMsg},
+ * date formatting and the packager altogether.
+ * <p>
+ * Field offsets are found when the template is compiled: the prototype is packed
+ * again with every character of a field changed and the two images are diffed.
+ * This works for fields encoded one byte per character (the ASCII packagers used
+ * by the simulator) and for binary fields sent raw or as hex (IFA_BINARY).
+ * Patched values must have the same length as the prototype's, so the length
+ * prefixes and bitmap never change.
+ * <p>
+ * {@link #stamp(Terminal)} only changes the terminal, STAN, RRN and times. A
+ * prototype carrying card data ({@link #CARD_FIELDS}) is stamped with
+ * {@link #stamp(Terminal, ISOMsg)} instead, which also patches the PAN,
+ * expiry, PVV, CVV (DE 48) and PIN block of the next card. Those values must
+ * have the prototype's lengths, so cards of several PAN lengths or PIN block
+ * formats need one template per {@link #shape(ISOMsg) shape}.
+ * <p>
+ * {@link BaseChannel#send(byte[])} writes raw bytes, so templates compiled for
+ * a channel carry its length prefix and header in the image as well.
+ */
+public class MessageTemplate {
+
+    /** Fields that change for every transaction and are patched when present. */
+    public static final int[] VARIABLE_FIELDS = { 2, 7, 11, 12, 13, 14, 35, 37, 41, 42, 44, 45, 48, 52 };
+
+    /** Fields that belong to the card: PAN, expiry, track 2, PVV, track 1, CVV (DE 48) and PIN block. */
+    public static final int[] CARD_FIELDS = { 2, 14, 35, 44, 45, 48, 52 };
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private final String mti;
+    private final byte[] image;
+    private final int[] offsets = new int[129];
+    private final int[] lengths = new int[129];
+    private final boolean[] hex = new boolean[129];
+    private int[] cardFields = new int[0]; // card fields present in the prototype
+    private String unstampable; // why stamp() cannot be used, null when it can
+
+    private MessageTemplate(String mti, byte[] image) {
+        this.mti = mti;
+        this.image = image;
+        Arrays.fill(offsets, -1);
+    }
+
+    public static MessageTemplate compile(ISOMsg prototype, ISOPackager packager) throws ISOException {
+        return compile(prototype, packager, VARIABLE_FIELDS);
+    }
+
+    /**
+     * Compiles a template framed for the channel, ready for
+     * {@link BaseChannel#send(byte[])}. Supports the ASCII and Postilion
+     * length prefixes used by the simulator's channels.
+     */
+    public static MessageTemplate compile(ISOMsg prototype, ISOChannel channel) throws ISOException {
+        MessageTemplate body = compile(prototype, channel.getPackager(), VARIABLE_FIELDS);
+        if (body.unstampable != null) {
+            throw new ISOException(body.unstampable);
+        }
+        byte[] header = channel instanceof BaseChannel ? ((BaseChannel) channel).getHeader() : null;
+        int headerLength = header != null ? header.length : 0;
+        byte[] prefix = lengthPrefix(channel, headerLength + body.image.length);
+
+        byte[] frame = new byte[prefix.length + headerLength];
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        if (header != null) {
+            System.arraycopy(header, 0, frame, prefix.length, headerLength);
+        }
+        return body.framed(frame);
+    }
+
+    public static MessageTemplate compile(ISOMsg prototype, ISOPackager packager, int... fields)
+            throws ISOException {
+        ISOMsg base = (ISOMsg) prototype.clone();
+        base.setPackager(packager);
+        MessageTemplate template = new MessageTemplate(base.getMTI(), base.pack());
+
+        for (int field : fields) {
+            if (!base.hasField(field)) {
+                continue;
+            }
+            Object value = base.getValue(field);
+            int length;
+            ISOMsg probe = (ISOMsg) base.clone();
+            probe.setPackager(packager);
+            if (value instanceof byte[]) {
+                byte[] alt = ((byte[]) value).clone();
+                for (int i = 0; i < alt.length; i++) {
+                    alt[i] ^= (byte) 0xFF;
+                }
+                probe.set(field, alt);
+                length = alt.length;
+            } else {
+                String s = String.valueOf(value);
+                probe.set(field, alternate(s));
+                length = s.length();
+            }
+
+            byte[] probed = probe.pack();
+            if (probed.length != template.image.length) {
+                throw new ISOException("Field " + field + " changes the message length and cannot be patched");
+            }
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < probed.length; i++) {
+                if (probed[i] != template.image[i]) {
+                    if (first < 0) {
+                        first = i;
+                    }
+                    last = i;
+                }
+            }
+            int span = last - first + 1;
+            boolean hexEncoded = value instanceof byte[] && span == 2 * length;
+            if (first < 0 || span != length && !hexEncoded) {
+                throw new ISOException("Field " + field + " is not encoded one byte per character and cannot be patched");
+            }
+            template.offsets[field] = first;
+            template.lengths[field] = length;
+            template.hex[field] = hexEncoded;
+        }
+        template.cardFields = Arrays.stream(CARD_FIELDS).filter(base::hasField).toArray();
+        template.unstampable = unstampable(template);
+        return template;
+    }
+
+    private static String unstampable(MessageTemplate template) {
+        int[][] stamped = { { 7, 10 }, { 12, 6 }, { 13, 4 }, { 37, 12 } };
+        for (int[] f : stamped) {
+            if (template.isPatchable(f[0]) && template.lengths[f[0]] != f[1]) {
+                return "DE " + f[0] + " is " + template.lengths[f[0]] + " long, stamping writes " + f[1];
+            }
+        }
+        return null;
+    }
+
+    private MessageTemplate framed(byte[] frame) {
+        byte[] framedImage = new byte[frame.length + image.length];
+        System.arraycopy(frame, 0, framedImage, 0, frame.length);
+        System.arraycopy(image, 0, framedImage, frame.length, image.length);
+        MessageTemplate t = new MessageTemplate(mti, framedImage);
+        t.cardFields = cardFields;
+        t.unstampable = unstampable;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] >= 0) {
+                t.offsets[i] = offsets[i] + frame.length;
+                t.lengths[i] = lengths[i];
+                t.hex[i] = hex[i];
+            }
+        }
+        return t;
+    }
+
+    private static byte[] lengthPrefix(ISOChannel channel, int length) throws ISOException {
+        if (channel instanceof ASCIIChannel) {
+            int digits = ((ASCIIChannel) channel).getLengthDigits();
+            String len = Integer.toString(length);
+            if (len.length() > digits) {
+                throw new ISOException("Message length " + length + " exceeds " + digits + " digits");
+            }
+            StringBuilder sb = new StringBuilder(digits);
+            for (int i = len.length(); i < digits; i++) {
+                sb.append('0');
+            }
+            return sb.append(len).toString().getBytes();
+        } else if (channel instanceof PostChannel) {
+            if (length > 0xFFFF) {
+                throw new ISOException("Message length " + length + " exceeds 2 bytes");
+            }
+            return new byte[] { (byte) (length >> 8), (byte) length };
+        }
+        throw new ISOException(channel.getClass().getSimpleName() + " framing is not supported by message templates");
+    }
+
+    public String getMTI() {
+        return mti;
+    }
+
+    /** Whether the prototype carries card data, so that it must be stamped with a card. */
+    public boolean hasCardFields() {
+        return cardFields.length > 0;
+    }
+
+    public boolean isPatchable(int field) {
+        return field >= 0 && field < offsets.length && offsets[field] >= 0;
+    }
+
+    /** A fresh copy of the packed prototype, including the frame when compiled for a channel. */
+    public byte[] newImage() {
+        return image.clone();
+    }
+
+    public void patch(byte[] target, int field, String value) {
+        int offset = offset(field, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            target[offset + i] = (byte) value.charAt(i);
+        }
+    }
+
+    public void patch(byte[] target, int field, byte[] value) {
+        int offset = offset(field, value.length);
+        if (hex[field]) {
+            for (int i = 0; i < value.length; i++) {
+                target[offset + 2 * i] = HEX[(value[i] >> 4) & 0x0F];
+                target[offset + 2 * i + 1] = HEX[value[i] & 0x0F];
+            }
+        } else {
+            System.arraycopy(value, 0, target, offset, value.length);
+        }
+    }
+
+    /**
+     * Copies the template and stamps it for the next transaction of the given
+     * terminal: transmission date/time, local time and date, a new STAN, an RRN
+     * in the same layout as the message bases and the terminal and merchant ids.
+     *
+     * @throws IllegalStateException when the prototype carries card data or a
+     *                               stamped field has an unexpected length
+     */
+    public byte[] stamp(Terminal terminal) {
+        if (cardFields.length > 0) {
+            throw new IllegalStateException("DE " + cardFields[0] + " carries card data, stamp with a card");
+        }
+        return stampTerminal(terminal);
+    }
+
+    /**
+     * Stamps the template like {@link #stamp(Terminal)} and patches the card
+     * fields of the prototype with those of {@code card}, a message holding
+     * the next card's {@link #CARD_FIELDS}.
+     *
+     * @throws IllegalArgumentException when the card lacks one of the
+     *                                  prototype's card fields or its
+     *                                  {@link #shape(ISOMsg) shape} differs
+     */
+    public byte[] stamp(Terminal terminal, ISOMsg card) {
+        byte[] b = stampTerminal(terminal);
+        for (int field : cardFields) {
+            Object value = card.getValue(field);
+            if (value instanceof byte[]) {
+                patch(b, field, (byte[]) value);
+            } else if (value != null) {
+                patch(b, field, value.toString());
+            } else {
+                throw new IllegalArgumentException("Card has no DE " + field);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * The lengths of the card fields of {@code card}, for example
+     * {@code 2:16 14:4 48:7 52:8}. Cards of the same shape can be stamped
+     * into the same template.
+     */
+    public static String shape(ISOMsg card) {
+        StringBuilder sb = new StringBuilder();
+        for (int field : CARD_FIELDS) {
+            Object value = card.getValue(field);
+            if (value != null) {
+                int length = value instanceof byte[] ? ((byte[]) value).length : value.toString().length();
+                sb.append(sb.length() > 0 ? " " : "").append(field).append(':').append(length);
+            }
+        }
+        return sb.toString();
+    }
+
+    private byte[] stampTerminal(Terminal terminal) {
+        if (unstampable != null) {
+            throw new IllegalStateException(unstampable);
+        }
+        byte[] b = image.clone();
+        TimeFields now = TimeFields.now();
+        int stan = terminal.nextStan();
+
+        copy(now.dateTime, b, 7);
+        copy(now.time, b, 12);
+        copy(now.date, b, 13);
+        if (isPatchable(11)) {
+            writeDigits(b, offsets[11], lengths[11], stan);
+        }
+        if (isPatchable(37)) {
+            // Julian Day (3) + Hour (2) + STAN (6) + suffix (1)
+            int off = offset(37, 12);
+            System.arraycopy(now.rrnPrefix, 0, b, off, now.rrnPrefix.length);
+            writeDigits(b, off + 5, 6, stan);
+            b[off + 11] = '1';
+        }
+        if (isPatchable(41)) {
+            patch(b, 41, terminal.getTerminalId());
+        }
+        if (isPatchable(42)) {
+            patch(b, 42, terminal.getMerchantId());
+        }
+        return b;
+    }
+
+    private void copy(byte[] value, byte[] target, int field) {
+        if (isPatchable(field)) {
+            System.arraycopy(value, 0, target, offset(field, value.length), value.length);
+        }
+    }
+
+    private int offset(int field, int length) {
+        if (!isPatchable(field)) {
+            throw new IllegalArgumentException("Field " + field + " is not patchable in this template");
+        }
+        if (length != lengths[field]) {
+            throw new IllegalArgumentException("Field " + field + " must be " + lengths[field] + " long, got " + length);
+        }
+        return offsets[field];
+    }
+
+    private static void writeDigits(byte[] b, int offset, int length, int value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            b[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static String alternate(String s) {
+        char[] c = s.toCharArray();
+        for (int i = 0; i < c.length; i++) {
+            if (Character.isDigit(c[i])) {
+                c[i] = c[i] == '0' ? '1' : '0';
+            } else {
+                c[i] = c[i] == 'A' ? 'B' : 'A';
+            }
+        }
+        return new String(c);
+    }
+
+    /** Date and time fields, formatted once per second and shared by all senders. */
+    private static final class TimeFields {
+        private static volatile TimeFields current = new TimeFields(System.currentTimeMillis() / 1000);
+
+        final long second;
+        final byte[] dateTime; // F7 MMDDhhmmss
+        final byte[] time;     // F12 hhmmss
+        final byte[] date;     // F13 MMDD
+        final byte[] rrnPrefix; // Julian day + hour
+
+        private TimeFields(long second) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(second * 1000);
+            this.second = second;
+            String mmdd = two(cal.get(Calendar.MONTH) + 1) + two(cal.get(Calendar.DAY_OF_MONTH));
+            String hhmmss = two(cal.get(Calendar.HOUR_OF_DAY)) + two(cal.get(Calendar.MINUTE))
+                    + two(cal.get(Calendar.SECOND));
+            this.dateTime = (mmdd + hhmmss).getBytes();
+            this.time = hhmmss.getBytes();
+            this.date = mmdd.getBytes();
+            this.rrnPrefix = (String.format("%03d", cal.get(Calendar.DAY_OF_YEAR)) + hhmmss.substring(0, 2))
+                    .getBytes();
+        }
+
+        static TimeFields now() {
+            long second = System.currentTimeMillis() / 1000;
+            TimeFields t = current;
+            if (t.second != second) {
+                // Racing threads may both recompute, which is harmless
+                t = new TimeFields(second);
+                current = t;
+            }
+            return t;
+        }
+
+        private static String two(int v) {
+            return v < 10 ? "0" + v : String.valueOf(v);
+        }
+    }
+}
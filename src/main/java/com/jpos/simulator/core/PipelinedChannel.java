@@ -0,0 +1,181 @@
+package com.jpos.simulator.core;
+
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous wrapper around an {@link ISOChannel} that allows many requests
+ * to be in flight on a single connection. A dedicated reader thread matches
+ * responses back to their request by F41/F11/F37, and every request carries
+ * its own timeout.
+ */
+public class PipelinedChannel {
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "pipelined-channel-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final ISOChannel channel;
+    private final long defaultTimeoutMillis;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Object sendLock = new Object();
+    private final AtomicLong unmatched = new AtomicLong();
+    private volatile boolean running;
+    private Thread reader;
+
+    public PipelinedChannel(ISOChannel channel, long defaultTimeoutMillis) {
+        this.channel = channel;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (channel instanceof BaseChannel && !((BaseChannel) channel).isConnected()) {
+            ((BaseChannel) channel).connect();
+        }
+        running = true;
+        reader = new Thread(this::readLoop, "pipelined-reader-" + channel.getName());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public CompletableFuture<ISOMsg> send(ISOMsg m) {
+        return send(m, defaultTimeoutMillis);
+    }
+
+    public CompletableFuture<ISOMsg> send(ISOMsg m, long timeoutMillis) {
+        CompletableFuture<ISOMsg> future = new CompletableFuture<>();
+        String key = correlationKey(m);
+        Pending p = new Pending(future);
+        if (pending.putIfAbsent(key, p) != null) {
+            future.completeExceptionally(new IllegalStateException("Duplicate in-flight request " + key));
+            return future;
+        }
+        p.timeout = TIMER.schedule(() -> {
+            if (pending.remove(key, p)) {
+                future.completeExceptionally(
+                        new TimeoutException("No response for " + key + " within " + timeoutMillis + "ms"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        try {
+            synchronized (sendLock) {
+                channel.send(m);
+            }
+        } catch (IOException | ISOException e) {
+            pending.remove(key, p);
+            p.cancelTimeout();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    public long getUnmatched() {
+        return unmatched.get();
+    }
+
+    public ISOChannel getChannel() {
+        return channel;
+    }
+
+    public synchronized void close() {
+        running = false;
+        try {
+            if (channel instanceof BaseChannel) {
+                ((BaseChannel) channel).disconnect();
+            }
+        } catch (IOException ignored) {
+        }
+        failAll(new IOException("Channel closed"));
+    }
+
+    /**
+     * Builds the correlation key shared by a request and its response: terminal
+     * (F41), STAN (F11) and RRN (F37) when present. Values are trimmed because
+     * fixed-length character fields come back space padded.
+     */
+    public static String correlationKey(ISOMsg m) {
+        StringBuilder sb = new StringBuilder(32);
+        appendTrimmed(sb, m.getString(41)).append('|');
+        appendTrimmed(sb, m.getString(11)).append('|');
+        appendTrimmed(sb, m.getString(37));
+        return sb.toString();
+    }
+
+    private static StringBuilder appendTrimmed(StringBuilder sb, String value) {
+        return value != null ? sb.append(value.trim()) : sb;
+    }
+
+    private void readLoop() {
+        while (running) {
+            try {
+                ISOMsg r = channel.receive();
+                Pending p = pending.remove(correlationKey(r));
+                if (p != null) {
+                    p.cancelTimeout();
+                    p.future.complete(r);
+                } else {
+                    // Late response for a request that already timed out
+                    unmatched.incrementAndGet();
+                }
+            } catch (IOException | ISOException e) {
+                if (running) {
+                    running = false;
+                    failAll(e);
+                }
+            }
+        }
+    }
+
+    private void failAll(Exception cause) {
+        for (String key : pending.keySet()) {
+            Pending p = pending.remove(key);
+            if (p != null) {
+                p.cancelTimeout();
+                p.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private static class Pending {
+        final CompletableFuture<ISOMsg> future;
+        volatile ScheduledFuture<?> timeout;
+
+        Pending(CompletableFuture<ISOMsg> future) {
+            this.future = future;
+        }
+
+        // The response can beat the timeout registration, in which case the
+        // timeout task later finds nothing to remove and is a no-op
+        void cancelTimeout() {
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+}
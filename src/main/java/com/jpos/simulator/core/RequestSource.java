@@ -0,0 +1,39 @@
+package com.jpos.simulator.core;
+
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+/**
+ * The source a host answers one request through. Besides the response it is
+ * told when the request will not be answered at all (dropped on purpose or
+ * failed), so whoever tracks the request can stop waiting for it. Wrappers
+ * around a request source pass the notifications on to the source they wrap.
+ */
+public interface RequestSource extends ISOSource {
+
+    /** The request ends without a response. Ignored once a response was sent. */
+    void noResponse();
+
+    /**
+     * The request was processed and its response built, but it is not sent:
+     * an issuer latency profile drops it, or it could not be delivered. By
+     * default this is the same as {@link #noResponse()}.
+     */
+    default void withheld(ISOMsg response) {
+        noResponse();
+    }
+
+    /** Calls {@link #withheld(ISOMsg)} when {@code source} is a request source. */
+    static void withheld(ISOSource source, ISOMsg response) {
+        if (source instanceof RequestSource) {
+            ((RequestSource) source).withheld(response);
+        }
+    }
+
+    /** Calls {@link #noResponse()} when {@code source} is a request source. */
+    static void noResponse(ISOSource source) {
+        if (source instanceof RequestSource) {
+            ((RequestSource) source).noResponse();
+        }
+    }
+}
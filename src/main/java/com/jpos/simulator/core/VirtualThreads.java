@@ -0,0 +1,76 @@
+package com.jpos.simulator.core;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to Java 21 virtual threads from code compiled for Java 8. The
+ * builder API is looked up reflectively once; on older runtimes
+ * {@link #isSupported()} is false and callers fall back to platform threads.
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = Class.forName("java.lang.Thread$Builder").getMethod("name", String.class, long.class);
+            factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Factory for virtual threads named {@code prefix0}, {@code prefix1}, ...
+     *
+     * @throws UnsupportedOperationException when the runtime has no virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or newer (running "
+                    + System.getProperty("java.version") + ")");
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Could not create virtual thread factory", e);
+        }
+    }
+
+    /**
+     * Blocks until at least one byte can be read, without consuming it.
+     * jPOS channels read under a monitor, which pins a virtual thread to its
+     * carrier on Java 21; waiting here first keeps idle connections unpinned.
+     */
+    public static void awaitReadable(DataInputStream in) throws IOException {
+        if (in == null || !in.markSupported()) {
+            return;
+        }
+        in.mark(1);
+        if (in.read() < 0) {
+            throw new EOFException();
+        }
+        in.reset();
+    }
+}
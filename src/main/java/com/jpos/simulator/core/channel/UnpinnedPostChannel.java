@@ -0,0 +1,22 @@
+package com.jpos.simulator.core.channel;
+
+import com.jpos.simulator.core.VirtualThreads;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.channel.PostChannel;
+
+import java.io.IOException;
+
+/**
+ * {@link PostChannel} that waits for data before entering the channel's
+ * receive lock, so idle sessions on virtual threads do not pin carriers.
+ */
+public class UnpinnedPostChannel extends PostChannel {
+
+    @Override
+    public ISOMsg receive() throws IOException, ISOException {
+        VirtualThreads.awaitReadable(serverIn);
+        return super.receive();
+    }
+}
@@ -0,0 +1,230 @@
+package com.jpos.simulator.load;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOUtil;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Streams the requests captured in a jPOS {@link org.jpos.util.SimpleLogListener}
+ * log such as {@code log/ISO87HOST.log}. Every {@code <receive>} event holding a
+ * request MTI (third digit even: request, advice, notification) is rebuilt into
+ * an {@link ISOMsg} together with the event's {@code at} timestamp. Logs are
+ * read with StAX, so files of any size are processed in constant memory, and a
+ * truncated last entry (a log still being written) simply ends the stream;
+ * malformed XML anywhere before the end is reported as an {@link IOException}.
+ * Only the bytes present when the reader is opened are read, so replaying into
+ * the server that writes the log does not feed back into the replay.
+ */
+public class HostLogReader implements Closeable {
+
+    /** A captured request and the time it was logged, in nanoseconds on an arbitrary epoch. */
+    public static class Captured {
+        private final long atNanos;
+        private final String realm;
+        private final ISOMsg message;
+
+        Captured(long atNanos, String realm, ISOMsg message) {
+            this.atNanos = atNanos;
+            this.realm = realm;
+            this.message = message;
+        }
+
+        /** Capture time, or -1 when the log entry had no usable timestamp. */
+        public long getAtNanos() {
+            return atNanos;
+        }
+
+        public String getRealm() {
+            return realm;
+        }
+
+        public ISOMsg getMessage() {
+            return message;
+        }
+    }
+
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final String realmPrefix;
+    private final String logFile;
+    // Character offset of the closing wrapper, where a truncated last entry fails
+    private final long endOffset;
+    private long skipped;
+
+    /**
+     * @param realmPrefix only events whose realm starts with this prefix (for
+     *                    example {@code iso87-channel}), or null for all
+     */
+    public HostLogReader(String logFile, String realmPrefix) throws IOException {
+        this.realmPrefix = realmPrefix;
+        this.logFile = logFile;
+        long length = new File(logFile).length();
+        this.endOffset = "<logs>".length() + length;
+        // The log is a sequence of <log> elements without a root, so wrap it in one
+        this.in = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream("<logs>".getBytes()), limited(new FileInputStream(logFile), length),
+                new ByteArrayInputStream("</logs>".getBytes()))));
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            this.xml = factory.createXMLStreamReader(in);
+        } catch (XMLStreamException e) {
+            in.close();
+            throw new IOException("Cannot read " + logFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The next captured request, or null at the end of the log. Entries that
+     * cannot be rebuilt into a message are skipped and counted.
+     *
+     * @throws IOException if the log is malformed before its last entry
+     */
+    public Captured next() throws IOException {
+        String realm = null;
+        long at = -1;
+        boolean inReceive = false;
+        while (true) {
+            try {
+                while (xml.hasNext()) {
+                    int event = xml.next();
+                    if (event == XMLStreamReader.START_ELEMENT) {
+                        String name = xml.getLocalName();
+                        if ("log".equals(name)) {
+                            realm = xml.getAttributeValue(null, "realm");
+                            at = parseAt(xml.getAttributeValue(null, "at"));
+                            inReceive = false;
+                        } else if ("receive".equals(name)) {
+                            inReceive = realmPrefix == null || (realm != null && realm.startsWith(realmPrefix));
+                        } else if ("isomsg".equals(name) && inReceive) {
+                            inReceive = false;
+                            ISOMsg m = readMessage(-1);
+                            if (isRequest(m)) {
+                                return new Captured(at, realm, m);
+                            }
+                        }
+                    } else if (event == XMLStreamReader.END_ELEMENT && "receive".equals(xml.getLocalName())) {
+                        inReceive = false;
+                    }
+                }
+                return null;
+            } catch (XMLStreamException e) {
+                Location location = e.getLocation();
+                if (location != null && location.getCharacterOffset() >= endOffset) {
+                    // Truncated last entry, the log is still being written
+                    return null;
+                }
+                throw new IOException("Malformed log " + logFile
+                        + (location != null ? " at line " + location.getLineNumber() : "") + ": " + e.getMessage(), e);
+            } catch (ISOException | NumberFormatException e) {
+                // The rest of this entry is passed over by the loop
+                skipped++;
+            }
+        }
+    }
+
+    /** Number of entries that could not be rebuilt into a message. */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            xml.close();
+        } catch (XMLStreamException ignored) {
+        }
+        in.close();
+    }
+
+    // Positioned on an <isomsg> start element; consumes it up to its end element
+    private ISOMsg readMessage(int fieldNumber) throws XMLStreamException, ISOException {
+        ISOMsg m = fieldNumber >= 0 ? new ISOMsg(fieldNumber) : new ISOMsg();
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamReader.START_ELEMENT) {
+                String name = xml.getLocalName();
+                if ("field".equals(name)) {
+                    int id = Integer.parseInt(xml.getAttributeValue(null, "id"));
+                    String value = xml.getAttributeValue(null, "value");
+                    if ("binary".equals(xml.getAttributeValue(null, "type"))) {
+                        m.set(id, ISOUtil.hex2byte(value));
+                    } else {
+                        m.set(id, value);
+                    }
+                } else if ("isomsg".equals(name)) {
+                    String id = xml.getAttributeValue(null, "id");
+                    m.set(readMessage(id != null ? Integer.parseInt(id) : 0));
+                }
+            } else if (event == XMLStreamReader.END_ELEMENT && "isomsg".equals(xml.getLocalName())) {
+                break;
+            }
+        }
+        return m;
+    }
+
+    private static boolean isRequest(ISOMsg m) {
+        String mti = m.getString(0);
+        return mti != null && mti.length() == 4 && (mti.charAt(2) - '0') % 2 == 0;
+    }
+
+    private static long parseAt(String at) {
+        if (at == null) {
+            return -1;
+        }
+        try {
+            LocalDateTime t = LocalDateTime.parse(at);
+            return t.toEpochSecond(ZoneOffset.UTC) * 1000000000L + t.getNano();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static InputStream limited(InputStream in, long length) {
+        return new FilterInputStream(in) {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int b = super.read();
+                if (b >= 0) {
+                    remaining--;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int n = super.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) {
+                    remaining -= n;
+                }
+                return n;
+            }
+        };
+    }
+}
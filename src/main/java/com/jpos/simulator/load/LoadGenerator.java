@@ -0,0 +1,384 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.card.CardRepository;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.ISOTransaction;
+import com.jpos.simulator.core.VirtualThreads;
+import com.jpos.simulator.terminal.TerminalPool;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator. Opens N channels through {@link ChannelFactory} and
+ * drives the client menu transactions from one worker per connection at a
+ * target aggregate TPS.
+ * <p>
+ * By default every worker paces itself (closed loop: the next request waits
+ * for the previous response). With {@code --open-loop} all workers share an
+ * {@link OpenLoopScheduler} so send times follow the target rate regardless of
+ * response times, and latency is measured from the intended send time.
+ *
+ * <pre>
+ *   ./gradlew runISO87Client --args="-c 20 -t 2000 -d 60 -x 10,9"
+ *   ./gradlew runISO87Client --args="-c 50 -t 2000 -d 60 -x 10 --open-loop"
+ *   ./gradlew runISO87Client --args="-c 20 -t 2000 -d 60 -x 2 --terminals 5000 --terminals-per-merchant 4"
+ *   ./gradlew runISO87Client --args="-c 20 -t 2000 -d 60 -x 10 --cards round-robin"
+ *   ./gradlew runISO87Client -PruntimeJava=21 --args="-c 10000 -t 2000 -d 60 -x 1 --virtual-threads"
+ *   ./gradlew runISO87Client --args="-c 20 -t 0 -d 60 -s src/main/resources/xml/scenario/iso87-production-mix.xml --template"
+ *   ./gradlew runISO87Client --args="-c 20 -t 1000 -d 60 -s src/main/resources/xml/scenario/iso87-production-mix.xml"
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private final String name;
+    private final String configPath;
+    private final List<ISOTransaction> transactions;
+    private final int connections;
+    private final double tps;
+    private final long durationMillis;
+    private final OpenLoopScheduler scheduler;
+    private boolean virtualThreads;
+    private final LoadStats stats = new LoadStats();
+    private final CountDownLatch go = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    public LoadGenerator(String name, String configPath, List<ISOTransaction> transactions, int connections,
+            double tps, long durationMillis) {
+        this(name, configPath, transactions, connections, tps, durationMillis, false);
+    }
+
+    public LoadGenerator(String name, String configPath, List<ISOTransaction> transactions, int connections,
+            double tps, long durationMillis, boolean openLoop) {
+        this.name = name;
+        this.configPath = configPath;
+        this.transactions = transactions;
+        this.connections = connections;
+        this.tps = tps;
+        this.durationMillis = durationMillis;
+        this.scheduler = openLoop ? new OpenLoopScheduler(tps) : null;
+    }
+
+    /** Runs workers on virtual threads (Java 21+), so thousands of connections do not need OS threads. */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new IllegalArgumentException("--virtual-threads needs Java 21 or newer (running "
+                    + System.getProperty("java.version") + ")");
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    public static void run(String name, String configPath, Map<String, ISOTransaction> menu, String[] args) {
+        try {
+            LoadGenerator generator = parse(name, configPath, menu, args);
+            if (generator == null) {
+                return;
+            }
+            generator.start();
+            for (ISOTransaction txn : generator.transactions) {
+                if (txn instanceof ScenarioPlan) {
+                    ((ScenarioPlan) txn).printSummary(System.out);
+                }
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp(name + " load mode", options());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The generator described by the load mode arguments, or null when they
+     * only ask for help or the menu, or when the scenario cannot be loaded
+     * (reported on the console).
+     *
+     * @throws ParseException           for unknown options or menu numbers
+     * @throws IllegalArgumentException for invalid values, such as
+     *                                  {@code --open-loop} without a rate
+     */
+    public static LoadGenerator parse(String name, String configPath, Map<String, ISOTransaction> menu,
+            String[] args) throws ParseException {
+        Options options = options();
+        List<String> names = new ArrayList<>(menu.keySet());
+        CommandLine cmd = new DefaultParser().parse(options, args);
+        if (cmd.hasOption("h")) {
+            new HelpFormatter().printHelp(name + " load mode", options);
+            return null;
+        }
+        if (cmd.hasOption("l")) {
+            for (int i = 0; i < names.size(); i++) {
+                System.out.println((i + 1) + ". " + names.get(i));
+            }
+            return null;
+        }
+
+        if (cmd.hasOption("T") || cmd.hasOption("m")) {
+            TerminalPool.configure(Integer.parseInt(cmd.getOptionValue("T", "1")),
+                    Integer.parseInt(cmd.getOptionValue("m", "1")));
+        }
+
+        if (cmd.hasOption("r")) {
+            CardRepository.getDefault().setSelection(
+                    CardRepository.Selection.valueOf(cmd.getOptionValue("r").trim().toUpperCase().replace('-', '_')));
+        }
+
+        List<ISOTransaction> selected = new ArrayList<>();
+        if (cmd.hasOption("s")) {
+            ScenarioPlan plan;
+            try {
+                plan = ScenarioLoader.load(cmd.getOptionValue("s"), cmd.hasOption("p"));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not load scenario " + cmd.getOptionValue("s") + ": " + e.getMessage());
+                return null;
+            }
+            selected.add(plan);
+            for (ScenarioStep step : plan.getSteps()) {
+                System.out.println("Load mix: " + step.getName() + " (weight " + step.getWeight() + ")"
+                        + (step.isTemplate() ? " [template]" : ""));
+            }
+        } else {
+            if (cmd.hasOption("p")) {
+                System.out.println("Template mode applies to scenario steps only (-s), ignoring --template");
+            }
+            for (String idx : cmd.getOptionValue("x", "1").split(",")) {
+                int choice = Integer.parseInt(idx.trim());
+                if (choice < 1 || choice > names.size()) {
+                    throw new ParseException("Invalid transaction number: " + choice);
+                }
+                selected.add(menu.get(names.get(choice - 1)));
+                System.out.println("Load mix: " + names.get(choice - 1));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(name, configPath, selected,
+                Integer.parseInt(cmd.getOptionValue("c", "1")),
+                Double.parseDouble(cmd.getOptionValue("t", "100")),
+                Long.parseLong(cmd.getOptionValue("d", "60")) * 1000L,
+                cmd.hasOption("o"));
+        generator.setVirtualThreads(cmd.hasOption("V"));
+        return generator;
+    }
+
+    private static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder("c").longOpt("connections").hasArg().argName("n")
+                .desc("number of channels / workers (default 1)").build());
+        options.addOption(Option.builder("t").longOpt("tps").hasArg().argName("rate")
+                .desc("target aggregate transactions per second, 0 = unthrottled (default 100)").build());
+        options.addOption(Option.builder("d").longOpt("duration").hasArg().argName("seconds")
+                .desc("run duration in seconds (default 60)").build());
+        options.addOption(Option.builder("x").longOpt("transactions").hasArg().argName("list")
+                .desc("comma separated menu numbers to cycle through (default 1)").build());
+        options.addOption(Option.builder("s").longOpt("scenario").hasArg().argName("file")
+                .desc("weighted transaction mix scenario XML (replaces -x)").build());
+        options.addOption(Option.builder("p").longOpt("template")
+                .desc("send scenario steps from pre-packed message templates").build());
+        options.addOption(Option.builder("o").longOpt("open-loop")
+                .desc("send on a fixed schedule and measure latency from the intended send time").build());
+        options.addOption(Option.builder("T").longOpt("terminals").hasArg().argName("n")
+                .desc("number of simulated terminals, each with its own STAN sequence (default 1)").build());
+        options.addOption(Option.builder("m").longOpt("terminals-per-merchant").hasArg().argName("n")
+                .desc("terminals sharing one merchant id (default 1)").build());
+        options.addOption(Option.builder("V").longOpt("virtual-threads")
+                .desc("run each connection's worker on a virtual thread (Java 21+)").build());
+        options.addOption(Option.builder("r").longOpt("cards").hasArg().argName("mode")
+                .desc("card selection: selected, round-robin or random (default selected)").build());
+        options.addOption(Option.builder("l").longOpt("list").desc("list menu transactions and exit").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("show this help").build());
+        return options;
+    }
+
+    public LoadStats start() throws InterruptedException {
+        System.out.println(String.format("%s load: connections=%d tps=%s duration=%ds mode=%s threads=%s", name,
+                connections, tps > 0 ? String.valueOf(tps) : "unthrottled", durationMillis / 1000,
+                scheduler != null ? "open-loop" : "closed-loop", virtualThreads ? "virtual" : "platform"));
+
+        // Each worker owns one channel and paces itself at its share of the target rate
+        long intervalNanos = tps > 0 ? (long) (1e9 * connections / tps) : 0;
+        ThreadFactory virtual = virtualThreads ? VirtualThreads.newThreadFactory("load-worker-") : null;
+        CountDownLatch connected = new CountDownLatch(connections);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            long offset = intervalNanos * i / connections;
+            Worker worker = new Worker(i, intervalNanos, offset, connected);
+            Thread t = virtual != null ? virtual.newThread(worker) : new Thread(worker, "load-worker-" + i);
+            workers.add(t);
+            t.start();
+        }
+
+        // The run, and the open-loop schedule, start once every worker has connected (or failed to)
+        try {
+            connected.await();
+        } catch (InterruptedException e) {
+            running = false;
+            go.countDown();
+            throw e;
+        }
+        if (scheduler != null) {
+            scheduler.start();
+        }
+        go.countDown();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> stats.printProgress(System.out), 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(durationMillis);
+        running = false;
+        for (Thread t : workers) {
+            t.join();
+        }
+        reporter.shutdownNow();
+        stats.printSummary(System.out);
+        return stats;
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    public List<ISOTransaction> getTransactions() {
+        return transactions;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /** Target aggregate rate, 0 = unthrottled. */
+    public double getTps() {
+        return tps;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public boolean isOpenLoop() {
+        return scheduler != null;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private class Worker implements Runnable {
+        private final int id;
+        private final long intervalNanos;
+        private final long offsetNanos;
+        private final CountDownLatch connected;
+
+        Worker(int id, long intervalNanos, long offsetNanos, CountDownLatch connected) {
+            this.id = id;
+            this.intervalNanos = intervalNanos;
+            this.offsetNanos = offsetNanos;
+            this.connected = connected;
+        }
+
+        @Override
+        public void run() {
+            ISOChannel channel;
+            try {
+                channel = ChannelFactory.createChannel(configPath, virtualThreads);
+                connect(channel);
+            } catch (Exception e) {
+                System.err.println("Worker " + id + " could not connect: " + e.getMessage());
+                return;
+            } finally {
+                connected.countDown();
+            }
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            int next = id % transactions.size();
+            long nextSend = System.nanoTime() + offsetNanos;
+            while (running) {
+                ISOTransaction txn = transactions.get(next);
+                next = (next + 1) % transactions.size();
+                // The step is picked here so that its think time is waited outside the timed call
+                ScenarioStep step = txn instanceof ScenarioPlan ? ((ScenarioPlan) txn).next() : null;
+                try {
+                    ISOMsg response;
+                    if (scheduler != null) {
+                        response = scheduler.execute(step != null ? step : txn, channel, stats);
+                    } else {
+                        if (intervalNanos > 0) {
+                            OpenLoopScheduler.waitUntil(nextSend);
+                            nextSend += intervalNanos;
+                        }
+                        response = OpenLoopScheduler.timed(step != null ? step : txn, channel, stats,
+                                System.nanoTime());
+                    }
+                    stats.recordResponse(response != null ? response.getString(39) : null);
+                } catch (ISOException e) {
+                    stats.recordError();
+                } catch (IOException e) {
+                    stats.recordError();
+                    reconnect(channel);
+                }
+                // In open loop the schedule sets the pace, a pause would only make the worker late
+                if (step != null && step.getThinkMillis() > 0 && scheduler == null) {
+                    try {
+                        Thread.sleep(step.getThinkMillis());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+            }
+
+            try {
+                if (channel instanceof BaseChannel) {
+                    ((BaseChannel) channel).disconnect();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void connect(ISOChannel channel) throws IOException {
+            if (channel instanceof BaseChannel && !((BaseChannel) channel).isConnected()) {
+                ((BaseChannel) channel).connect();
+            }
+        }
+
+        private void reconnect(ISOChannel channel) {
+            try {
+                if (channel instanceof BaseChannel) {
+                    ((BaseChannel) channel).disconnect();
+                }
+                Thread.sleep(100);
+                connect(channel);
+            } catch (IOException e) {
+                System.err.println("Worker " + id + " reconnect failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.metrics.LatencyHistogram;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free throughput and outcome counters shared by all load workers.
+ */
+public class LoadStats {
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder approved = new LongAdder();
+    private final LongAdder declined = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Map<String, LongAdder> responseCodes = new ConcurrentHashMap<>();
+    private final LatencyHistogram responseTime = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+    private long lastReportSent;
+
+    public void recordResponse(String responseCode) {
+        sent.increment();
+        String rc = responseCode != null ? responseCode : "--";
+        if ("00".equals(rc)) {
+            approved.increment();
+        } else {
+            declined.increment();
+        }
+        responseCodes.computeIfAbsent(rc, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records one transaction. {@code responseNanos} is measured from the
+     * intended send time and {@code serviceNanos} from the actual send; in a
+     * closed loop both are the same.
+     */
+    public void recordLatency(long responseNanos, long serviceNanos) {
+        responseTime.record(responseNanos);
+        serviceTime.record(serviceNanos);
+    }
+
+    public void recordError() {
+        sent.increment();
+        errors.increment();
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getApproved() {
+        return approved.sum();
+    }
+
+    public long getDeclined() {
+        return declined.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public LatencyHistogram getResponseTime() {
+        return responseTime;
+    }
+
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    // Called from the single reporter thread only
+    public void printProgress(PrintStream out) {
+        long now = System.nanoTime();
+        long total = getSent();
+        double interval = (now - lastReportNanos) / 1e9;
+        double tps = interval > 0 ? (total - lastReportSent) / interval : 0;
+        lastReportNanos = now;
+        lastReportSent = total;
+
+        out.println(String.format("[%6.1fs] tps=%.1f sent=%d approved=%d declined=%d errors=%d",
+                (now - startNanos) / 1e9, tps, total, getApproved(), getDeclined(), getErrors()));
+    }
+
+    public void printSummary(PrintStream out) {
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        long total = getSent();
+        out.println("--- Load Summary ---");
+        out.println(String.format("Elapsed      : %.1fs", elapsed));
+        out.println(String.format("Sent         : %d", total));
+        out.println(String.format("Throughput   : %.1f tps", elapsed > 0 ? total / elapsed : 0));
+        out.println(String.format("Approved     : %d", getApproved()));
+        out.println(String.format("Declined     : %d", getDeclined()));
+        out.println(String.format("Errors       : %d", getErrors()));
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(responseCodes).entrySet()) {
+            out.println(String.format("  F39=%s     : %d", e.getKey(), e.getValue().sum()));
+        }
+        out.println(String.format("%-13s %9s %9s %9s %9s %9s %9s", "Latency (ms)", "mean", "p50", "p90", "p99",
+                "p99.9", "max"));
+        printLatency(out, "Response", responseTime);
+        printLatency(out, "Service", serviceTime);
+    }
+
+    private static void printLatency(PrintStream out, String label, LatencyHistogram h) {
+        out.println(String.format("%-13s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", label, h.getMean() / 1e6,
+                h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+                h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6));
+    }
+}
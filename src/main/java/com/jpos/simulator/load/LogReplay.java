@@ -0,0 +1,254 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.PipelinedChannel;
+import com.jpos.simulator.terminal.Terminal;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.jpos.iso.ISODate;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the requests captured in host logs (see {@link HostLogReader})
+ * against a server. Messages keep their original inter-arrival times, scaled
+ * by {@code --speed} ({@code 2} = twice as fast, {@code max} = as fast as
+ * possible), and are sent over pipelined channels so the replay is not slowed
+ * down by response times. The exit status is non-zero when the arguments are
+ * invalid, a log cannot be read or requests fail or stay unanswered.
+ *
+ * <pre>
+ *   ./gradlew runReplay --args="-f log/ISO87HOST.log"
+ *   ./gradlew runReplay --args="-f log/ISO87HOST.log -S 10 -c 4 --restamp"
+ *   ./gradlew runReplay --args="-f log/ISO93HOST.log -C src/main/resources/xml/channel/iso93/client.xml -S max"
+ * </pre>
+ */
+public class LogReplay {
+
+    private static final int RESTAMP_MEMORY = 100000;
+
+    private final String configPath;
+    private final int connections;
+    private final double speed;
+    private final String realmPrefix;
+    private final long timeoutMillis;
+    private final int maxInFlight;
+    private final boolean restamp;
+    private final LoadStats stats = new LoadStats();
+    private long unanswered;
+    private boolean logError;
+
+    // Restamping state, only touched by the replay thread
+    private final Map<String, Terminal> stanSequences = new HashMap<>();
+    private final Map<String, String> restamped = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > RESTAMP_MEMORY;
+        }
+    };
+
+    public LogReplay(String configPath, int connections, double speed, String realmPrefix, long timeoutMillis,
+            int maxInFlight, boolean restamp) {
+        this.configPath = configPath;
+        this.connections = connections;
+        this.speed = speed;
+        this.realmPrefix = realmPrefix;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+        this.restamp = restamp;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("f").longOpt("file").hasArgs().argName("log")
+                .desc("host log file(s) to replay, in order").build());
+        options.addOption(Option.builder("C").longOpt("config").hasArg().argName("xml")
+                .desc("client channel config (default ISO87 client.xml)").build());
+        options.addOption(Option.builder("c").longOpt("connections").hasArg().argName("n")
+                .desc("number of pipelined channels (default 1)").build());
+        options.addOption(Option.builder("S").longOpt("speed").hasArg().argName("factor")
+                .desc("replay speed: 1 = original timing, 2, 10, ... or max (default 1)").build());
+        options.addOption(Option.builder("R").longOpt("realm").hasArg().argName("prefix")
+                .desc("only replay events whose log realm starts with this prefix").build());
+        options.addOption(Option.builder("w").longOpt("timeout").hasArg().argName("ms")
+                .desc("response timeout per request (default 30000)").build());
+        options.addOption(Option.builder("m").longOpt("max-in-flight").hasArg().argName("n")
+                .desc("maximum outstanding requests (default 1000)").build());
+        options.addOption(Option.builder().longOpt("restamp")
+                .desc("assign fresh STAN (F11) and F7 values, relinking reversals (F90)").build());
+        options.addOption(Option.builder("h").longOpt("help").desc("show this help").build());
+
+        int status = 0;
+        try {
+            CommandLine cmd = new DefaultParser().parse(options, args);
+            if (cmd.hasOption("h") || !cmd.hasOption("f")) {
+                new HelpFormatter().printHelp("LogReplay", options);
+                return;
+            }
+            String speedValue = cmd.getOptionValue("S", "1");
+            double speed = "max".equalsIgnoreCase(speedValue) ? 0 : Double.parseDouble(speedValue);
+            if (speed < 0) {
+                throw new ParseException("Speed must be positive or max");
+            }
+
+            LogReplay replay = new LogReplay(
+                    cmd.getOptionValue("C", "src/main/resources/xml/channel/iso87/client.xml"),
+                    Integer.parseInt(cmd.getOptionValue("c", "1")), speed, cmd.getOptionValue("R"),
+                    Long.parseLong(cmd.getOptionValue("w", "30000")),
+                    Integer.parseInt(cmd.getOptionValue("m", "1000")), cmd.hasOption("restamp"));
+            LoadStats stats = replay.replay(Arrays.asList(cmd.getOptionValues("f")));
+            if (stats.getErrors() > 0 || replay.getUnanswered() > 0 || replay.hasLogError()) {
+                status = 1;
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("LogReplay", options);
+            status = 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 1;
+        } catch (Exception e) {
+            System.err.println("Replay failed: " + e.getMessage());
+            status = 1;
+        }
+        System.exit(status);
+    }
+
+    public LoadStats replay(List<String> logFiles) throws Exception {
+        System.out.println(String.format("Replay: files=%s connections=%d speed=%s restamp=%s", logFiles, connections,
+                speed > 0 ? speed + "x" : "max", restamp));
+
+        List<PipelinedChannel> channels = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            PipelinedChannel channel = new PipelinedChannel(ChannelFactory.createChannel(configPath), timeoutMillis);
+            channel.start();
+            channels.add(channel);
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "replay-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> stats.printProgress(System.out), 1, 1, TimeUnit.SECONDS);
+
+        Semaphore permits = new Semaphore(maxInFlight);
+        long startNanos = System.nanoTime();
+        long firstAt = -1;
+        long replayed = 0;
+        long skipped = 0;
+        try {
+            for (String file : logFiles) {
+                try (HostLogReader reader = new HostLogReader(file, realmPrefix)) {
+                    HostLogReader.Captured captured;
+                    while ((captured = reader.next()) != null) {
+                        long intended = System.nanoTime();
+                        if (speed > 0 && captured.getAtNanos() >= 0) {
+                            if (firstAt < 0) {
+                                firstAt = captured.getAtNanos();
+                            }
+                            intended = startNanos + (long) ((captured.getAtNanos() - firstAt) / speed);
+                            OpenLoopScheduler.waitUntil(intended);
+                        }
+
+                        ISOMsg m = captured.getMessage();
+                        if (restamp) {
+                            restamp(m);
+                        }
+                        permits.acquire();
+                        send(channels.get((int) (replayed++ % channels.size())), m, intended, permits);
+                    }
+                    skipped += reader.getSkipped();
+                }
+            }
+        } catch (IOException e) {
+            // Stop reading, but still wait for what was sent
+            System.err.println("Replay stopped: " + e.getMessage());
+            logError = true;
+        }
+
+        // Drain what is still in flight
+        if (!permits.tryAcquire(maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            unanswered = maxInFlight - permits.availablePermits();
+            System.err.println("Replay finished with " + unanswered + " requests still unanswered");
+        }
+        reporter.shutdownNow();
+        for (PipelinedChannel channel : channels) {
+            channel.close();
+        }
+        System.out.println("Replayed " + replayed + " requests" + (skipped > 0 ? ", skipped " + skipped : ""));
+        stats.printSummary(System.out);
+        return stats;
+    }
+
+    public LoadStats getStats() {
+        return stats;
+    }
+
+    /** Requests still outstanding when the replay gave up waiting for them. */
+    public long getUnanswered() {
+        return unanswered;
+    }
+
+    /** Whether a log could not be read to its end. */
+    public boolean hasLogError() {
+        return logError;
+    }
+
+    private void send(PipelinedChannel channel, ISOMsg m, long intended, Semaphore permits) {
+        long sendStart = System.nanoTime();
+        channel.send(m).whenComplete((r, error) -> {
+            permits.release();
+            if (error != null) {
+                stats.recordError();
+            } else {
+                long end = System.nanoTime();
+                stats.recordLatency(end - intended, end - sendStart);
+                stats.recordResponse(r.getString(39));
+            }
+        });
+    }
+
+    // New STAN per terminal and a current F7; reversals are pointed at the restamped original
+    private void restamp(ISOMsg m) throws ISOException {
+        String tid = m.hasField(41) ? m.getString(41).trim() : "";
+        Terminal terminal = stanSequences.computeIfAbsent(tid,
+                k -> new Terminal(stanSequences.size(), k, "", ThreadLocalRandom.current().nextInt(Terminal.MAX_STAN)));
+        String oldStan = m.getString(11);
+        String stan = terminal.nextStanString();
+        String dateTime = ISODate.getDateTime(new Date());
+        m.set(11, stan);
+        m.set(7, dateTime);
+        if (oldStan != null) {
+            restamped.put(tid + "|" + oldStan, stan + dateTime);
+        }
+
+        // F90: original MTI (4) + original STAN (6) + original F7 (10) + ...
+        String f90 = m.getString(90);
+        if (f90 != null && f90.length() >= 20) {
+            String original = restamped.get(tid + "|" + f90.substring(4, 10));
+            if (original != null) {
+                m.set(90, f90.substring(0, 4) + original + f90.substring(20));
+            }
+        }
+    }
+}
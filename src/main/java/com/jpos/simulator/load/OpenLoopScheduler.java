@@ -0,0 +1,104 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.core.ISOTransaction;
+
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Constant-rate open-loop schedule. Send times are fixed up front as
+ * {@code start + n * interval}, independent of how fast the server answers,
+ * and workers claim the next slot from a shared sequence. The schedule starts
+ * with {@link #start()}, once every worker is connected, so connection setup
+ * is not charged to the first requests as backlog. Latency is measured
+ * from the intended send time so that a stalled response also charges the
+ * requests that should have been sent while it was outstanding (coordinated
+ * omission correction).
+ */
+public class OpenLoopScheduler {
+
+    private final long intervalNanos;
+    private volatile long startNanos;
+    private volatile boolean started;
+    private final AtomicLong sequence = new AtomicLong();
+
+    public OpenLoopScheduler(double tps) {
+        if (tps <= 0) {
+            throw new IllegalArgumentException("Open-loop scheduling needs a positive target rate");
+        }
+        this.intervalNanos = (long) (1e9 / tps);
+    }
+
+    /** Starts the schedule now: the first slot is due at once. */
+    public void start() {
+        start(System.nanoTime());
+    }
+
+    /** Starts the schedule with the first slot due at {@code startNanos} (System.nanoTime based). */
+    public void start(long startNanos) {
+        this.startNanos = startNanos;
+        this.started = true;
+    }
+
+    /** Claims the next slot and returns its intended start time (System.nanoTime based). */
+    public long nextIntendedStart() {
+        if (!started) {
+            throw new IllegalStateException("Open-loop schedule not started");
+        }
+        return startNanos + sequence.getAndIncrement() * intervalNanos;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Waits for the next slot, runs the transaction and reports both the
+     * corrected (from intended start) and uncorrected (from actual send)
+     * latency to the given stats.
+     */
+    public ISOMsg execute(ISOTransaction txn, ISOChannel channel, LoadStats stats)
+            throws ISOException, IOException {
+        long intended = nextIntendedStart();
+        waitUntil(intended);
+        return timed(txn, channel, stats, intended);
+    }
+
+    /**
+     * Runs the transaction and records its latency from {@code intended} and
+     * from the actual send. The original of a {@link ScenarioStep} is recorded
+     * as a transaction of its own, and the step's message is timed from the
+     * original's response.
+     */
+    static ISOMsg timed(ISOTransaction txn, ISOChannel channel, LoadStats stats, long intended)
+            throws ISOException, IOException {
+        long[] from = { intended, System.nanoTime() };
+        try {
+            if (txn instanceof ScenarioStep) {
+                return ((ScenarioStep) txn).execute(channel, original -> {
+                    long end = System.nanoTime();
+                    stats.recordLatency(end - from[0], end - from[1]);
+                    stats.recordResponse(original != null ? original.getString(39) : null);
+                    from[0] = end;
+                    from[1] = end;
+                });
+            }
+            return txn.execute(channel);
+        } finally {
+            long end = System.nanoTime();
+            stats.recordLatency(end - from[0], end - from[1]);
+        }
+    }
+
+    public static void waitUntil(long nanoTime) {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
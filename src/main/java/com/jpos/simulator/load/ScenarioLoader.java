@@ -0,0 +1,132 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.metrics.LatencyRecorder;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles a scenario XML file into a {@link ScenarioPlan}.
+ *
+ * <pre>
+ * &lt;scenario name="production-mix" client="com.jpos.simulator.client.ISO87ClientApp"&gt;
+ *     &lt;step name="Purchase" builder="createPurchaseMsg" weight="70" expect="00" think-ms="0"/&gt;
+ *     &lt;step name="Purchase Reversal" builder="createPurchaseReversalMsg" original="createPurchaseMsg"
+ *           weight="8" expect="00"/&gt;
+ * &lt;/scenario&gt;
+ * </pre>
+ *
+ * Builders are public static methods of the client class. A step with an
+ * {@code original} builder first sends that message and then passes the
+ * original request and response to its own builder, e.g.
+ * {@code createPurchaseReversalMsg(ISOMsg, ISOMsg)}. A step may name its own
+ * {@code client} class; otherwise it uses the scenario's.
+ * <p>
+ * {@code template="true"} on the scenario or on a step sends steps without an
+ * original from a pre-packed {@link com.jpos.simulator.core.MessageTemplate};
+ * card data is patched in from the client's {@code createCardFields(CardInfo)}.
+ */
+public class ScenarioLoader {
+
+    public static ScenarioPlan load(String xmlFile) throws IOException {
+        return load(xmlFile, false);
+    }
+
+    /**
+     * @throws IOException              when the file cannot be read or is not well-formed XML
+     * @throws IllegalArgumentException when a client class, builder or weight is missing or invalid
+     */
+    public static ScenarioPlan load(String xmlFile, boolean template) throws IOException {
+        Document document;
+        try {
+            document = new SAXBuilder().build(new File(xmlFile));
+        } catch (JDOMException e) {
+            throw new IOException("Invalid scenario " + xmlFile + ": " + e.getMessage(), e);
+        }
+        Element root = document.getRootElement();
+
+        String name = root.getAttributeValue("name", new File(xmlFile).getName());
+        String defaultClient = root.getAttributeValue("client");
+        LatencyRecorder latency = LatencyRecorder.get("scenario-" + name);
+        String defaultTemplate = String.valueOf(template || Boolean.parseBoolean(root.getAttributeValue("template")));
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        List<ScenarioStep> steps = new ArrayList<>();
+        for (Element step : root.getChildren("step")) {
+            String builderName = step.getAttributeValue("builder");
+            String originalName = step.getAttributeValue("original");
+            String stepName = step.getAttributeValue("name", builderName);
+            if (builderName == null) {
+                throw new IllegalArgumentException("Step " + stepName + " in " + xmlFile + " has no builder attribute");
+            }
+            double weight = Double.parseDouble(step.getAttributeValue("weight", "1"));
+            if (weight <= 0) {
+                continue;
+            }
+
+            String clientName = step.getAttributeValue("client", defaultClient);
+            if (clientName == null) {
+                throw new IllegalArgumentException("Step " + stepName + " in " + xmlFile
+                        + " has no client class: set client on the scenario or the step");
+            }
+            Class<?> client = clientClass(clientName);
+            MethodHandle original = null;
+            MethodHandle handle;
+            if (originalName != null) {
+                original = builder(lookup, client, originalName, ScenarioStep.SIMPLE_BUILDER);
+                handle = builder(lookup, client, builderName, ScenarioStep.FOLLOW_UP_BUILDER);
+            } else {
+                handle = builder(lookup, client, builderName, ScenarioStep.SIMPLE_BUILDER);
+            }
+
+            String expect = step.getAttributeValue("expect", "");
+            Set<String> expected = expect.trim().isEmpty() ? Collections.<String>emptySet()
+                    : new HashSet<>(Arrays.asList(expect.trim().split("\\s*,\\s*")));
+
+            steps.add(new ScenarioStep(stepName, weight, handle, original, cardFields(lookup, client),
+                    expected, Long.parseLong(step.getAttributeValue("think-ms", "0")), latency,
+                    Boolean.parseBoolean(step.getAttributeValue("template", defaultTemplate))));
+        }
+        return new ScenarioPlan(name, steps);
+    }
+
+    private static Class<?> clientClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown client class " + name, e);
+        }
+    }
+
+    // Optional: lets template steps patch the card data of each request
+    private static MethodHandle cardFields(MethodHandles.Lookup lookup, Class<?> client) {
+        try {
+            return lookup.findStatic(client, "createCardFields", ScenarioStep.CARD_FIELDS);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle builder(MethodHandles.Lookup lookup, Class<?> client, String name, MethodType type) {
+        try {
+            return lookup.findStatic(client, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(client.getSimpleName() + " has no public static builder " + name
+                    + type, e);
+        }
+    }
+}
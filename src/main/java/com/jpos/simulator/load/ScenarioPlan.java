@@ -0,0 +1,107 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.core.ISOTransaction;
+
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Executable form of a weighted transaction mix. Weights are compiled once
+ * into a Walker/Vose alias table so that choosing the next step is a single
+ * random index plus one comparison, independent of the number of steps.
+ */
+public class ScenarioPlan implements ISOTransaction {
+
+    private final String name;
+    private final ScenarioStep[] steps;
+    private final double[] probability;
+    private final int[] alias;
+
+    public ScenarioPlan(String name, List<ScenarioStep> stepList) {
+        if (stepList.isEmpty()) {
+            throw new IllegalArgumentException("Scenario " + name + " has no steps");
+        }
+        this.name = name;
+        this.steps = stepList.toArray(new ScenarioStep[0]);
+        this.probability = new double[steps.length];
+        this.alias = new int[steps.length];
+        buildAliasTable();
+    }
+
+    @Override
+    public ISOMsg execute(ISOChannel channel) throws ISOException, IOException {
+        return next().execute(channel);
+    }
+
+    public ScenarioStep next() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(steps.length);
+        return random.nextDouble() < probability[i] ? steps[i] : steps[alias[i]];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ScenarioStep[] getSteps() {
+        return steps;
+    }
+
+    public void printSummary(PrintStream out) {
+        out.println("--- Scenario [" + name + "] ---");
+        out.println(String.format("%-24s %7s %10s %10s", "Step", "weight", "executed", "unexpected"));
+        for (ScenarioStep step : steps) {
+            out.println(String.format("%-24s %7.1f %10d %10d", step.getName(), step.getWeight(), step.getExecuted(),
+                    step.getUnexpected()));
+        }
+    }
+
+    // Vose's alias method
+    private void buildAliasTable() {
+        int n = steps.length;
+        double total = 0;
+        for (ScenarioStep step : steps) {
+            total += step.getWeight();
+        }
+
+        double[] scaled = new double[n];
+        Deque<Integer> small = new ArrayDeque<>();
+        Deque<Integer> large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = steps[i].getWeight() * n / total;
+            if (scaled[i] < 1.0) {
+                small.push(i);
+            } else {
+                large.push(i);
+            }
+        }
+
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int s = small.pop();
+            int l = large.pop();
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1.0;
+            if (scaled[l] < 1.0) {
+                small.push(l);
+            } else {
+                large.push(l);
+            }
+        }
+        while (!large.isEmpty()) {
+            probability[large.pop()] = 1.0;
+        }
+        // Only reachable through floating point rounding
+        while (!small.isEmpty()) {
+            probability[small.pop()] = 1.0;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.jpos.simulator.load;
+
+import com.jpos.simulator.card.CardInfo;
+import com.jpos.simulator.card.CardRepository;
+import com.jpos.simulator.core.ISOTransaction;
+import com.jpos.simulator.core.MessageTemplate;
+import com.jpos.simulator.metrics.LatencyRecorder;
+import com.jpos.simulator.terminal.TerminalPool;
+
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One resolved entry of a {@link ScenarioPlan}: a message builder, optionally
+ * preceded by the original transaction it refers to (for reversals), the
+ * response codes it is expected to produce and a think time. The think time
+ * is not waited by the step: the caller pauses for {@link #getThinkMillis()}
+ * outside the time it measures.
+ * <p>
+ * In template mode a step without an original is packed once into a
+ * {@link MessageTemplate} and every send only patches the variable fields.
+ * A message carrying card data takes the next card of the card repository,
+ * like the builders do, and patches in the fields the client's
+ * {@code createCardFields(CardInfo)} gives for it; those are computed once per
+ * card, and one template is kept per card {@link MessageTemplate#shape shape}.
+ * Without {@code createCardFields} such steps fall back to the builder.
+ */
+public class ScenarioStep implements ISOTransaction {
+
+    /** {@code ISOMsg build()} */
+    static final MethodType SIMPLE_BUILDER = MethodType.methodType(ISOMsg.class);
+    /** {@code ISOMsg build(ISOMsg originalRequest, ISOMsg originalResponse)} */
+    static final MethodType FOLLOW_UP_BUILDER = MethodType.methodType(ISOMsg.class, ISOMsg.class, ISOMsg.class);
+    /** {@code ISOMsg createCardFields(CardInfo card)} */
+    static final MethodType CARD_FIELDS = MethodType.methodType(ISOMsg.class, CardInfo.class);
+
+    private final String name;
+    private final double weight;
+    private final MethodHandle builder;
+    private final MethodHandle original;
+    private final MethodHandle cardFields;
+    private final Set<String> expected;
+    private final long thinkMillis;
+    private final LatencyRecorder latency;
+    private volatile boolean useTemplate;
+    private volatile MessageTemplate template;
+    private volatile ISOMsg prototype;
+    private final ConcurrentHashMap<String, MessageTemplate> shapes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ISOMsg> cards = new ConcurrentHashMap<>();
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder unexpected = new LongAdder();
+
+    /** @param cardFields the client's {@code createCardFields}, or null when it has none */
+    ScenarioStep(String name, double weight, MethodHandle builder, MethodHandle original, MethodHandle cardFields,
+            Set<String> expected, long thinkMillis, LatencyRecorder latency, boolean useTemplate) {
+        this.name = name;
+        this.weight = weight;
+        // Fixed types, checked here, so that every build is a plain invokeExact
+        this.builder = builder.asType(original != null ? FOLLOW_UP_BUILDER : SIMPLE_BUILDER);
+        this.original = original != null ? original.asType(SIMPLE_BUILDER) : null;
+        this.cardFields = cardFields != null ? cardFields.asType(CARD_FIELDS) : null;
+        this.expected = expected;
+        this.thinkMillis = thinkMillis;
+        this.latency = latency;
+        this.useTemplate = useTemplate && original == null;
+    }
+
+    @Override
+    public ISOMsg execute(ISOChannel channel) throws ISOException, IOException {
+        return execute(channel, null);
+    }
+
+    /**
+     * Sends the step and returns its response.
+     *
+     * @param originalAnswered given the response to the original of a
+     *                         follow-up step before the step's own message is
+     *                         sent, so the original can be counted as a
+     *                         transaction of its own; may be null
+     */
+    public ISOMsg execute(ISOChannel channel, Consumer<ISOMsg> originalAnswered) throws ISOException, IOException {
+        ISOMsg response;
+        MessageTemplate t = useTemplate && channel instanceof BaseChannel ? template(channel) : null;
+        byte[] image = t != null ? stamp(t, channel) : null;
+        if (image != null) {
+            response = roundTrip((BaseChannel) channel, image);
+        } else {
+            ISOMsg request;
+            if (original != null) {
+                ISOMsg originalRequest = build(original);
+                ISOMsg originalResponse = roundTrip(channel, originalRequest, name + " (original)");
+                if (originalAnswered != null) {
+                    originalAnswered.accept(originalResponse);
+                }
+                request = build(builder, originalRequest, originalResponse);
+            } else {
+                request = build(builder);
+            }
+            response = roundTrip(channel, request, name);
+        }
+        executed.increment();
+        if (!expected.isEmpty() && !expected.contains(response.getString(39))) {
+            unexpected.increment();
+        }
+        return response;
+    }
+
+    private ISOMsg roundTrip(ISOChannel channel, ISOMsg m, String key) throws ISOException, IOException {
+        long start = System.nanoTime();
+        channel.send(m);
+        ISOMsg r = channel.receive();
+        latency.record(key, System.nanoTime() - start);
+        return r;
+    }
+
+    private ISOMsg roundTrip(BaseChannel channel, byte[] image) throws ISOException, IOException {
+        long start = System.nanoTime();
+        channel.send(image);
+        ISOMsg r = channel.receive();
+        latency.record(name, System.nanoTime() - start);
+        return r;
+    }
+
+    // Compiled for the first channel; all workers share the same channel configuration
+    private MessageTemplate template(ISOChannel channel) throws ISOException {
+        MessageTemplate t = template;
+        if (t == null) {
+            synchronized (this) {
+                t = template;
+                if (t == null && useTemplate) {
+                    try {
+                        ISOMsg m = build(builder);
+                        t = MessageTemplate.compile(m, channel);
+                        if (t.hasCardFields() && cardFields == null) {
+                            throw new ISOException("the client has no createCardFields(CardInfo)");
+                        }
+                        prototype = m;
+                        shapes.put(MessageTemplate.shape(m), t);
+                        template = t;
+                    } catch (ISOException e) {
+                        System.err.println("Step " + name + " cannot use a template (" + e.getMessage()
+                                + "), using the builder");
+                        useTemplate = false;
+                    }
+                }
+            }
+        }
+        return t;
+    }
+
+    // The stamped image, or null when there is no card and the builder has to decide
+    private byte[] stamp(MessageTemplate t, ISOChannel channel) throws ISOException {
+        if (!t.hasCardFields()) {
+            return t.stamp(TerminalPool.getDefault().next());
+        }
+        CardInfo card = CardRepository.getDefault().next();
+        if (card == null) {
+            return null;
+        }
+        ISOMsg fields = cards.get(card.getPan());
+        if (fields == null) {
+            fields = cardFields(card);
+            cards.put(card.getPan(), fields);
+        }
+        String shape = MessageTemplate.shape(fields);
+        MessageTemplate shaped = shapes.get(shape);
+        if (shaped == null) {
+            // Another PAN length or PIN block format: the prototype with this card's fields
+            ISOMsg m = (ISOMsg) prototype.clone();
+            m.unset(MessageTemplate.CARD_FIELDS);
+            m.merge(fields);
+            shaped = MessageTemplate.compile(m, channel);
+            MessageTemplate raced = shapes.putIfAbsent(shape, shaped);
+            if (raced != null) {
+                shaped = raced;
+            }
+        }
+        return shaped.stamp(TerminalPool.getDefault().next(), fields);
+    }
+
+    private ISOMsg cardFields(CardInfo card) throws ISOException {
+        try {
+            return (ISOMsg) cardFields.invokeExact(card);
+        } catch (ISOException | RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ISOException(t.getMessage(), t);
+        }
+    }
+
+    private static ISOMsg build(MethodHandle handle) throws ISOException {
+        try {
+            return (ISOMsg) handle.invokeExact();
+        } catch (ISOException | RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ISOException(t.getMessage(), t);
+        }
+    }
+
+    private static ISOMsg build(MethodHandle handle, ISOMsg originalRequest, ISOMsg originalResponse)
+            throws ISOException {
+        try {
+            return (ISOMsg) handle.invokeExact(originalRequest, originalResponse);
+        } catch (ISOException | RuntimeException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new ISOException(t.getMessage(), t);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    /** ms to pause after the step, outside its measured latency. */
+    public long getThinkMillis() {
+        return thinkMillis;
+    }
+
+    public boolean isTemplate() {
+        return useTemplate;
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public long getUnexpected() {
+        return unexpected.sum();
+    }
+}
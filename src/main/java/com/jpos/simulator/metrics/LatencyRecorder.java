@@ -0,0 +1,196 @@
+package com.jpos.simulator.metrics;
+
+import org.jpos.iso.ISOMsg;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Named set of latency histograms broken down by MTI and processing code
+ * (F3). Recorders are created on first use, shared across threads, and all of
+ * them are dumped when the JVM shuts down.
+ * <p>
+ * Like {@code HandlerRegistry}, a message is matched by number rather than by
+ * string: the MTI indexes a table and the processing code is binary-searched
+ * in that MTI's sorted codes, so recording a request allocates nothing once
+ * its histogram exists. Requests that failed are kept apart under
+ * {@code MTI/F3/error}.
+ */
+public class LatencyRecorder {
+
+    private static final Map<String, LatencyRecorder> RECORDERS = new ConcurrentHashMap<>();
+    // Processing code of a message without F3, sorted before every real code
+    private static final int NO_CODE = -2;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dumpAll(System.out), "latency-dump"));
+    }
+
+    private final String name;
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    // Indexed by MTI: the histograms of the processing codes seen with it
+    private final AtomicReferenceArray<Codes> answered = new AtomicReferenceArray<>(10000);
+    private final AtomicReferenceArray<Codes> failed = new AtomicReferenceArray<>(10000);
+
+    private LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    public static LatencyRecorder get(String name) {
+        return RECORDERS.computeIfAbsent(name, LatencyRecorder::new);
+    }
+
+    public static Map<String, LatencyRecorder> getAll() {
+        return new TreeMap<>(RECORDERS);
+    }
+
+    public static void dumpAll(PrintStream out) {
+        for (LatencyRecorder recorder : new TreeMap<>(RECORDERS).values()) {
+            recorder.dump(out);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void record(ISOMsg m, long nanos) {
+        histogram(answered, m, false).record(nanos);
+    }
+
+    /** Records a request that failed, under {@code MTI/F3/error}. */
+    public void recordError(ISOMsg m, long nanos) {
+        histogram(failed, m, true).record(nanos);
+    }
+
+    public void record(String key, long nanos) {
+        histogram(key).record(nanos);
+    }
+
+    public LatencyHistogram histogram(String key) {
+        LatencyHistogram h = histograms.get(key);
+        return h != null ? h : histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    public Map<String, LatencyHistogram> getHistograms() {
+        return histograms;
+    }
+
+    /** Merges every key into one histogram for an overall view. */
+    public LatencyHistogram total() {
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram h : histograms.values()) {
+            total.add(h);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (LatencyHistogram h : histograms.values()) {
+            h.reset();
+        }
+    }
+
+    public void dump(PrintStream out) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        int width = 14;
+        for (String key : histograms.keySet()) {
+            width = Math.max(width, key.length());
+        }
+        String keyFormat = "%-" + width + "s";
+        out.println("--- Latency [" + name + "] (ms) ---");
+        out.println(String.format(keyFormat + " %9s %9s %9s %9s %9s %9s %9s", "Key", "count", "mean", "p50", "p90",
+                "p99", "p99.9", "max"));
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            print(out, keyFormat, e.getKey(), e.getValue());
+        }
+        if (histograms.size() > 1) {
+            print(out, keyFormat, "ALL", total());
+        }
+    }
+
+    private static void print(PrintStream out, String keyFormat, String key, LatencyHistogram h) {
+        out.println(String.format(keyFormat + " %9d %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f", key, h.getCount(),
+                h.getMean() / 1e6, h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(90) / 1e6,
+                h.getValueAtPercentile(99) / 1e6, h.getValueAtPercentile(99.9) / 1e6, h.getMax() / 1e6));
+    }
+
+    private LatencyHistogram histogram(AtomicReferenceArray<Codes> table, ISOMsg m, boolean error) {
+        String procCode = m.getString(3);
+        int mti = parseCode(m.getString(0), 4);
+        int code = procCode != null ? parseCode(procCode, 6) : NO_CODE;
+        if (mti < 0 || code == -1) {
+            return histogram(keyOf(m, error)); // not numeric, keyed by string
+        }
+        Codes codes = table.get(mti);
+        if (codes != null) {
+            int i = Arrays.binarySearch(codes.codes, code);
+            if (i >= 0) {
+                return codes.histograms[i];
+            }
+        }
+        synchronized (table) {
+            codes = table.get(mti);
+            int i = codes != null ? Arrays.binarySearch(codes.codes, code) : -1;
+            if (i >= 0) {
+                return codes.histograms[i];
+            }
+            LatencyHistogram h = histogram(keyOf(m, error));
+            table.set(mti, codes != null ? codes.with(-i - 1, code, h) : new Codes(new int[] { code },
+                    new LatencyHistogram[] { h }));
+            return h;
+        }
+    }
+
+    static String keyOf(ISOMsg m, boolean error) {
+        String mti = m.getString(0);
+        String procCode = m.getString(3);
+        String key = (mti != null ? mti : "----") + "/" + (procCode != null ? procCode : "-");
+        return error ? key + "/error" : key;
+    }
+
+    // Value of a string of exactly {@code length} digits, -1 otherwise
+    private static int parseCode(String s, int length) {
+        if (s == null || s.length() != length) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // Immutable, replaced as a whole when an MTI sees a new processing code
+    private static final class Codes {
+        final int[] codes;
+        final LatencyHistogram[] histograms;
+
+        Codes(int[] codes, LatencyHistogram[] histograms) {
+            this.codes = codes;
+            this.histograms = histograms;
+        }
+
+        Codes with(int at, int code, LatencyHistogram h) {
+            int[] c = new int[codes.length + 1];
+            LatencyHistogram[] hs = new LatencyHistogram[c.length];
+            System.arraycopy(codes, 0, c, 0, at);
+            System.arraycopy(histograms, 0, hs, 0, at);
+            c[at] = code;
+            hs[at] = h;
+            System.arraycopy(codes, at, c, at + 1, codes.length - at);
+            System.arraycopy(histograms, at, hs, at + 1, codes.length - at);
+            return new Codes(c, hs);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.jpos.simulator.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jpos.core.Configuration;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Serves every {@link ServerMetrics} and {@link LatencyRecorder} of the JVM in
+ * the Prometheus text format on {@code http://<bind>:<port>/metrics}, using
+ * the JDK's built-in HTTP server. The page is built on request, so nothing
+ * runs between scrapes.
+ */
+public class MetricsHttpServer {
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(String bindAddress, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+        System.out.println("Metrics: http://" + bindAddress + ":" + server.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Starts the endpoint on {@code metrics-port} (0 = off) and
+     * {@code metrics-bind} (default 127.0.0.1), or returns null.
+     */
+    public static MetricsHttpServer forConfiguration(Configuration cfg) {
+        int port = cfg.getInt("metrics-port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            return new MetricsHttpServer(cfg.get("metrics-bind", "127.0.0.1"), port);
+        } catch (IOException e) {
+            System.err.println("Metrics: could not listen on port " + port + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** The current metrics in the Prometheus text exposition format. */
+    public static String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        Map<String, ServerMetrics> all = ServerMetrics.getAll();
+
+        header(sb, "jpos_sim_requests_total", "counter", "Requests received, by MTI");
+        for (ServerMetrics m : all.values()) {
+            for (Map.Entry<String, Long> e : m.getRequestsByMti().entrySet()) {
+                sample(sb, "jpos_sim_requests_total", m.getName(), "mti", e.getKey(), e.getValue());
+            }
+        }
+        header(sb, "jpos_sim_responses_total", "counter", "Responses sent, by response code (DE 39)");
+        for (ServerMetrics m : all.values()) {
+            for (Map.Entry<String, Long> e : m.getResponsesByCode().entrySet()) {
+                sample(sb, "jpos_sim_responses_total", m.getName(), "code", e.getKey(), e.getValue());
+            }
+        }
+        header(sb, "jpos_sim_in_flight", "gauge", "Requests being processed");
+        for (ServerMetrics m : all.values()) {
+            sample(sb, "jpos_sim_in_flight", m.getName(), null, null, m.getInFlight());
+        }
+        header(sb, "jpos_sim_errors_total", "counter", "Requests that failed with an exception");
+        for (ServerMetrics m : all.values()) {
+            sample(sb, "jpos_sim_errors_total", m.getName(), null, null, m.getErrors());
+        }
+        header(sb, "jpos_sim_hsm_total", "counter", "HSM verifications, by check and result");
+        for (ServerMetrics m : all.values()) {
+            for (ServerMetrics.Check check : ServerMetrics.Check.values()) {
+                for (ServerMetrics.Result result : ServerMetrics.Result.values()) {
+                    sb.append("jpos_sim_hsm_total{server=\"").append(escape(m.getName()))
+                            .append("\",check=\"").append(check.name().toLowerCase())
+                            .append("\",result=\"").append(result.name().toLowerCase()).append("\"} ")
+                            .append(m.getHsmCount(check, result)).append('\n');
+                }
+            }
+        }
+
+        header(sb, "jpos_sim_latency_seconds", "summary", "Processing time, by MTI/processing code");
+        for (LatencyRecorder recorder : LatencyRecorder.getAll().values()) {
+            for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(recorder.getHistograms()).entrySet()) {
+                LatencyHistogram h = e.getValue();
+                String labels = "server=\"" + escape(recorder.getName()) + "\",key=\"" + escape(e.getKey()) + "\"";
+                for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                    sb.append("jpos_sim_latency_seconds{").append(labels).append(",quantile=\"").append(q)
+                            .append("\"} ").append(h.getValueAtPercentile(q * 100) / 1e9).append('\n');
+                }
+                sb.append("jpos_sim_latency_seconds_count{").append(labels).append("} ").append(h.getCount())
+                        .append('\n');
+                sb.append("jpos_sim_latency_seconds_sum{").append(labels).append("} ")
+                        .append(h.getMean() * h.getCount() / 1e9).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String metric, String type, String help) {
+        sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String metric, String server, String label, String value,
+            long count) {
+        sb.append(metric).append("{server=\"").append(escape(server)).append('"');
+        if (label != null) {
+            sb.append(',').append(label).append("=\"").append(escape(value)).append('"');
+        }
+        sb.append("} ").append(count).append('\n');
+    }
+
+    // Label values come from the wire (MTI, DE 39), so quote them as the format requires
+    static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package com.jpos.simulator.metrics;
+
+import com.jpos.simulator.core.RequestSource;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a server: requests by MTI, responses by DE 39, requests in
+ * flight, processing errors and HSM verification results. Every counter is a
+ * {@link LongAdder}, either preallocated or found by a lock-free map lookup,
+ * so recording costs a few nanoseconds and can stay on at full load. Like
+ * {@link LatencyRecorder}, instances are named, created on first use and
+ * shared; each one is also registered as an MXBean and published by
+ * {@link MetricsHttpServer}.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final Map<String, ServerMetrics> METRICS = new ConcurrentHashMap<>();
+
+    /** HSM verifications counted by {@link #hsm(Check, Result)}. */
+    public enum Check { CVV, PVV }
+
+    public enum Result { OK, FAIL, ERROR }
+
+    private final String name;
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> responses = new ConcurrentHashMap<>();
+    private final LongAdder[][] hsmResults = new LongAdder[Check.values().length][Result.values().length];
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private ServerMetrics(String name) {
+        this.name = name;
+        for (LongAdder[] results : hsmResults) {
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new LongAdder();
+            }
+        }
+    }
+
+    public static ServerMetrics get(String name) {
+        ServerMetrics metrics = METRICS.get(name);
+        return metrics != null ? metrics : METRICS.computeIfAbsent(name, ServerMetrics::register);
+    }
+
+    public static Map<String, ServerMetrics> getAll() {
+        return new TreeMap<>(METRICS);
+    }
+
+    private static ServerMetrics register(String name) {
+        ServerMetrics metrics = new ServerMetrics(name);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("com.jpos.simulator:type=ServerMetrics,name=" + ObjectName.quote(name)));
+        } catch (Exception e) {
+            System.err.println("Metrics: could not register MXBean for " + name + ": " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Counts a request and marks it in flight. The request leaves flight when
+     * its response is sent through the returned source or when it is given up
+     * with {@link Request#noResponse()} or {@link Request#failed()}. The time
+     * from here to the response, or to the failure, goes to {@code latency}.
+     */
+    public Request start(ISOSource source, ISOMsg m, LatencyRecorder latency) {
+        counter(requests, m.getString(0)).increment();
+        inFlight.increment();
+        return new Request(this, source, m, latency);
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    /** Counts an HSM verification, e.g. {@code hsm(Check.PVV, Result.OK)}. */
+    public void hsm(Check check, Result result) {
+        hsmResults[check.ordinal()][result.ordinal()].increment();
+    }
+
+    /**
+     * One request in flight: counts the DE 39 of its response, records its
+     * latency and takes it out of flight once, whether it is answered,
+     * dropped or fails. A dropped request has no latency to record.
+     */
+    public static final class Request implements RequestSource {
+        private static final AtomicIntegerFieldUpdater<Request> DONE =
+                AtomicIntegerFieldUpdater.newUpdater(Request.class, "done");
+
+        private final ServerMetrics metrics;
+        private final ISOSource source;
+        private final ISOMsg request;
+        private final LatencyRecorder latency;
+        private final long start = System.nanoTime();
+        private volatile int done;
+
+        Request(ServerMetrics metrics, ISOSource source, ISOMsg request, LatencyRecorder latency) {
+            this.metrics = metrics;
+            this.source = source;
+            this.request = request;
+            this.latency = latency;
+        }
+
+        @Override
+        public void send(ISOMsg m) throws IOException, ISOException {
+            counter(metrics.responses, m.getString(39)).increment();
+            try {
+                source.send(m);
+            } finally {
+                if (end()) {
+                    latency.record(request, System.nanoTime() - start);
+                }
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return source.isConnected();
+        }
+
+        @Override
+        public void noResponse() {
+            end();
+        }
+
+        /** The request could not be processed; counts an error unless it was already answered. */
+        public void failed() {
+            if (end()) {
+                metrics.errors.increment();
+                latency.recordError(request, System.nanoTime() - start);
+            }
+        }
+
+        private boolean end() {
+            if (DONE.compareAndSet(this, 0, 1)) {
+                metrics.inFlight.decrement();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public long getRequests() {
+        long total = 0;
+        for (LongAdder adder : requests.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByMti() {
+        return snapshot(requests);
+    }
+
+    @Override
+    public Map<String, Long> getResponsesByCode() {
+        return snapshot(responses);
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /** Verifications counted for one check and result. */
+    public long getHsmCount(Check check, Result result) {
+        return hsmResults[check.ordinal()][result.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getHsmResults() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Check check : Check.values()) {
+            for (Result r : Result.values()) {
+                result.put(check.name().toLowerCase() + "_" + r.name().toLowerCase(), getHsmCount(check, r));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Zeroes the counters in place; requests in flight stay counted. The
+     * adders are kept rather than replaced so that a thread about to
+     * increment one does not update a counter nobody reads any more.
+     */
+    @Override
+    public void reset() {
+        resetAll(requests.values());
+        resetAll(responses.values());
+        for (LongAdder[] results : hsmResults) {
+            resetAll(Arrays.asList(results));
+        }
+        errors.reset();
+    }
+
+    private static void resetAll(Collection<LongAdder> adders) {
+        for (LongAdder adder : adders) {
+            adder.reset();
+        }
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String key) {
+        String k = key != null ? key : "none";
+        LongAdder adder = counters.get(k);
+        return adder != null ? adder : counters.computeIfAbsent(k, x -> new LongAdder());
+    }
+
+    private static Map<String, Long> snapshot(Map<String, LongAdder> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,21 @@
+package com.jpos.simulator.metrics;
+
+import java.util.Map;
+
+/** JMX view of {@link ServerMetrics}, registered as {@code com.jpos.simulator:type=ServerMetrics,name=<server>}. */
+public interface ServerMetricsMXBean {
+
+    long getRequests();
+
+    Map<String, Long> getRequestsByMti();
+
+    Map<String, Long> getResponsesByCode();
+
+    long getInFlight();
+
+    long getErrors();
+
+    Map<String, Long> getHsmResults();
+
+    void reset();
+}
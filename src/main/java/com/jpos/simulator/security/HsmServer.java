@@ -0,0 +1,274 @@
+package com.jpos.simulator.security;
+
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.HashedTimerWheel;
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOUtil;
+import org.jpos.security.EncryptedPIN;
+import org.jpos.security.SMException;
+import org.jpos.security.SecureKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves an {@link HsmSimulator} over TCP with a Thales-style command
+ * protocol. Every message is a 2-byte big-endian length followed by ASCII
+ * text: a 4-character header, a 2-character command code and the command's
+ * fields. The response carries the same header, the response code (the
+ * command code with the second letter advanced), a 2-digit error code
+ * ({@code 00} ok, {@code 01} verification failed, {@code 15} invalid input,
+ * {@code 68} unknown command) and the response fields.
+ * <p>
+ * Commands run on a pool of workers and are answered as soon as each one is
+ * done, so a client can keep many commands outstanding on one connection and
+ * match responses by header.
+ *
+ * <pre>
+ * DC verify PIN (PVV)  format(2) account(12) pvki(1) pvv(4) pin-block  -&gt; DD
+ * CY verify CVV        cvv(3) pan ';' expiry(4) service-code(3)        -&gt; CZ
+ * CA translate PIN     from(2) to(2) account(12) pin-block             -&gt; CB pin-length(2) to(2) pin-block
+ * A0 generate key      bits(3) key-type(3)                             -&gt; A1 key kcv(6)
+ * NC diagnostics                                                       -&gt; ND
+ * </pre>
+ * Formats are the jPOS PIN block format codes ({@code 01} ISO-0, {@code 48}
+ * ISO-4). The HSM's own keys from {@code xml/hsm/hsm.xml} are used, so no
+ * key fields are exchanged.
+ */
+public class HsmServer {
+
+    public static final int HEADER_LENGTH = 4;
+
+    private final HsmSimulator hsm;
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final HashedTimerWheel wheel;
+    private final long commandLatency;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger commands = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * @param cfg {@code workers} (command threads, default 8) and
+     *            {@code command-latency} (ms added to every response, 0 = none)
+     */
+    public HsmServer(int port, HsmSimulator hsm, Configuration cfg) throws IOException {
+        this.hsm = hsm;
+        this.serverSocket = new ServerSocket(port, cfg.getInt("backlog", 128));
+        int threads = cfg.getInt("workers", 8);
+        AtomicInteger n = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "hsm-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.commandLatency = cfg.getLong("command-latency", 0);
+        this.wheel = commandLatency > 0 ? new HashedTimerWheel("hsm-latency", 1, 4096) : null;
+        Thread acceptor = new Thread(this::accept, "hsm-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("HSM Server started on port " + getPort() + " with " + threads + " workers...");
+    }
+
+    public static void main(String[] args) {
+        try {
+            Configuration cfg = ChannelFactory.loadConfiguration(args.length > 0 ? args[0] : JceHsmEngine.DEFAULT_CONFIG);
+            HsmSimulator hsm = new HsmSimulator(new JceHsmEngine(cfg));
+            hsm.setTrace(cfg.getBoolean("trace"));
+            HsmServer server = new HsmServer(cfg.getInt("port", 1500), hsm, cfg);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "hsm-shutdown"));
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /** Commands processed since start. */
+    public int getCommandCount() {
+        return commands.get();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (Socket socket : connections) {
+            close(socket);
+        }
+        workers.shutdownNow();
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread reader = new Thread(() -> serve(socket), "hsm-session-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("HSM Server: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (running) {
+                byte[] frame = new byte[in.readUnsignedShort()];
+                in.readFully(frame);
+                String request = new String(frame, StandardCharsets.ISO_8859_1);
+                try {
+                    workers.execute(() -> respond(out, request));
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // Client closed the connection
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("HSM Server: connection " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+            }
+        } finally {
+            connections.remove(socket);
+            close(socket);
+        }
+    }
+
+    private void respond(DataOutputStream out, String request) {
+        String response = request.length() >= HEADER_LENGTH
+                ? request.substring(0, HEADER_LENGTH) + process(request.substring(HEADER_LENGTH))
+                : "";
+        commands.incrementAndGet();
+        if (wheel != null) {
+            // Written by a worker, the wheel thread must not block on a socket
+            wheel.schedule(() -> {
+                try {
+                    workers.execute(() -> write(out, response));
+                } catch (RejectedExecutionException e) {
+                    // Stopping
+                }
+            }, commandLatency);
+        } else {
+            write(out, response);
+        }
+    }
+
+    private static void write(DataOutputStream out, String response) {
+        byte[] body = response.getBytes(StandardCharsets.ISO_8859_1);
+        synchronized (out) {
+            try {
+                out.writeShort(body.length);
+                out.write(body);
+                out.flush();
+            } catch (IOException e) {
+                // The session reader notices the broken connection
+            }
+        }
+    }
+
+    /** Runs one command (without header) and returns the response (without header). */
+    String process(String command) {
+        if (command.length() < 2) {
+            return "ZZ15";
+        }
+        String code = command.substring(0, 2);
+        String responseCode = code.charAt(0) + String.valueOf((char) (code.charAt(1) + 1));
+        try {
+            switch (code) {
+                case "DC":
+                    return responseCode + verifyPin(command);
+                case "CY":
+                    return responseCode + verifyCvv(command);
+                case "CA":
+                    return responseCode + translatePin(command);
+                case "A0":
+                    return responseCode + generateKey(command);
+                case "NC":
+                    return responseCode + "00";
+                default:
+                    return responseCode + "68";
+            }
+        } catch (SMException | RuntimeException e) {
+            return responseCode + "15";
+        }
+    }
+
+    private String verifyPin(String c) throws SMException {
+        byte format = Byte.parseByte(c.substring(2, 4));
+        String account = c.substring(4, 16);
+        int pvki = c.charAt(16) - '0';
+        String pvv = c.substring(17, 21);
+        EncryptedPIN pin = new EncryptedPIN(ISOUtil.hex2byte(c.substring(21)), format, account, false);
+        return hsm.verifyPVV(pin, null, null, null, pvki, pvv) ? "00" : "01";
+    }
+
+    private String verifyCvv(String c) throws SMException {
+        String cvv = c.substring(2, 5);
+        int end = c.indexOf(';', 5);
+        String pan = c.substring(5, end);
+        String expiry = c.substring(end + 1, end + 5);
+        String serviceCode = c.substring(end + 5, end + 8);
+        return hsm.verifyCVV(pan, null, null, serviceCode, expiry, cvv) ? "00" : "01";
+    }
+
+    private String translatePin(String c) throws SMException {
+        byte from = Byte.parseByte(c.substring(2, 4));
+        byte to = Byte.parseByte(c.substring(4, 6));
+        String account = c.substring(6, 18);
+        EncryptedPIN pin = new EncryptedPIN(ISOUtil.hex2byte(c.substring(18)), from, account, false);
+        EncryptedPIN translated = hsm.translatePIN(pin, null, null, to);
+        String clear = hsm.getEngine().decryptPin(translated.getPINBlock(), account, to);
+        return "00" + String.format("%02d%02d", clear.length(), to) + ISOUtil.hexString(translated.getPINBlock());
+    }
+
+    private String generateKey(String c) throws SMException {
+        short bits = Short.parseShort(c.substring(2, 5));
+        SecureKey key = hsm.generateKey(bits, c.substring(5, 8));
+        return "00" + ISOUtil.hexString(key.getKeyBytes()) + hsm.calculateKCV(key);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+}
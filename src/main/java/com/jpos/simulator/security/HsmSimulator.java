@@ -8,7 +8,11 @@ import org.jpos.security.EncryptedPIN;
 import org.jpos.iso.ISOUtil;
 
 import java.security.SecureRandom;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
 
 import org.jpos.util.Logger;
 import org.jpos.util.LogEvent;
@@ -17,16 +21,52 @@ import java.util.Date;
 
 /**
  * A software-based HSM Simulator extending jPOS BaseSMAdapter.
- * Simulates basic cryptographic operations like PIN generation.
+ * PIN blocks, PVV and CVV are computed by a {@link JceHsmEngine} with the keys
+ * of {@code xml/hsm/hsm.xml}; key arguments passed through the SMAdapter API
+ * are ignored.
+ * <p>
+ * Operations are logged to the jPOS logger when one is set, to the console
+ * when trace is on, and otherwise not at all: the verify paths then build no
+ * messages and create no objects.
  */
 public class HsmSimulator extends BaseSMAdapter<SecureKey> {
 
+    /** Batches of at least this many entries are split over the fork-join pool. */
+    public static final int PARALLEL_BATCH = 2048;
+
+    // Entries per fork-join task; a multiple of 64 so every task owns whole words of the result
+    private static final int BATCH_SLICE = 512;
+
+    private static final ThreadLocal<SimpleDateFormat> YYMM =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("yyMM"));
+
     private SecureRandom random = new SecureRandom();
+    private final JceHsmEngine engine;
     private Logger logger;
     private String realm;
+    private volatile boolean trace;
 
     public HsmSimulator() {
+        this(JceHsmEngine.getDefault());
+    }
+
+    public HsmSimulator(JceHsmEngine engine) {
         super();
+        this.engine = engine;
+    }
+
+    public JceHsmEngine getEngine() {
+        return engine;
+    }
+
+    /** Prints every operation to the console when no logger is set. */
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    /** Format of the PIN blocks this HSM encrypts and expects. */
+    public byte getPinBlockFormat() {
+        return engine.getPinBlockFormat();
     }
 
     @Override
@@ -37,15 +77,31 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
         }
         String pinStr = pin.toString();
 
-        // Generate ISO-0 PIN Block
-        byte[] pinBlock = generateISO0PinBlock(pinStr, accountNumber);
-
+        EncryptedPIN encryptedPin = encryptPINImpl(pinStr, accountNumber);
         log("generate-pin", "Generated Clear PIN [" + pinStr + "] for account [" + accountNumber + "]");
-        log("generate-pin", "Generated ISO-0 PIN Block (HEX) [" + ISOUtil.hexString(pinBlock) + "]");
+        return encryptedPin;
+    }
+
+    @Override
+    protected EncryptedPIN encryptPINImpl(String pin, String accountNumber) throws SMException {
+        try {
+            byte[] pinBlock = engine.encryptPinBlock(pin, accountNumber, engine.getPinBlockFormat());
+            if (isLogEnabled()) {
+                log("encrypt-pin", "Encrypted PIN Block (HEX) [" + ISOUtil.hexString(pinBlock) + "] for account ["
+                        + accountNumber + "]");
+            }
+            return new EncryptedPIN(pinBlock, engine.getPinBlockFormat(), accountNumber, false);
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
+    }
 
-        return new EncryptedPIN(pinBlock, (byte) 1, accountNumber);
+    /** The card's PIN block for DE 52, encrypted under the TPK. */
+    public byte[] encryptPinBlock(String pin, String pan) throws SMException {
+        return encryptPIN(pin, pan).getPINBlock();
     }
 
+    /** Clear ISO-0 PIN block, as it looks before encryption under the TPK. */
     public byte[] generateISO0PinBlock(String pin, String pan) {
         // PIN format: 0 + L + PIN + F...F
         String pinBlockStr = "0" + pin.length() + pin;
@@ -82,16 +138,10 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
         return verifyPVVImpl(pin, kd, pvk1, pvk2, pvki, pvv);
     }
 
+    /** @param expiry expiry date as YYMM */
     public boolean verifyCVV(String pan, SecureKey cvk1, SecureKey cvk2, String serviceCode, String expiry, String cvv)
             throws SMException {
-        try {
-            // expiry should be in yyMM format
-            SimpleDateFormat sdf = new SimpleDateFormat("yyMM");
-            Date expiryDate = sdf.parse(expiry);
-            return verifyCVVImpl(pan, cvk1, cvk2, serviceCode, expiryDate, cvv);
-        } catch (java.text.ParseException e) {
-            throw new SMException("Invalid expiry date format: " + expiry, e);
-        }
+        return verifyCVVImpl(pan, cvk1, cvk2, cvv, expiry, serviceCode);
     }
 
     @Override
@@ -104,36 +154,59 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
     protected String calculatePVVImpl(EncryptedPIN pin, SecureKey kd, SecureKey pvk1, SecureKey pvk2, int pvki,
             List<String> excludes)
             throws SMException {
+        String clearPin;
         try {
-            return generatePVV(pin.getAccountNumber(), "1234");
-        } catch (Exception e) {
-            throw new SMException(e);
+            clearPin = engine.decryptPin(pin.getPINBlock(), pin.getAccountNumber(), pin.getPINBlockFormat());
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
         }
+        if (clearPin == null) {
+            throw new SMException("PIN block does not decrypt to a valid PIN for account [" + pin.getAccountNumber()
+                    + "]");
+        }
+        return engine.pvv(pin.getAccountNumber(), clearPin, pvki > 0 ? pvki : engine.getPvki());
     }
 
     @Override
     protected boolean verifyPVVImpl(EncryptedPIN pin, SecureKey kd, SecureKey pvk1, SecureKey pvk2, int pvki,
             String pvv)
             throws SMException {
-        String calculatedPvv = calculatePVVImpl(pin, kd, pvk1, pvk2, pvki, null);
-        boolean isValid = calculatedPvv.equals(pvv);
-        log("verify-pvv",
-                "PVV Verification for account [" + pin.getAccountNumber() + "]: " + (isValid ? "SUCCESS" : "FAILED"));
+        boolean isValid;
+        try {
+            // A block that does not decrypt to a PIN is a wrong PIN, not an HSM error
+            isValid = engine.verifyPvv(pin.getPINBlock(), pin.getAccountNumber(), pin.getPINBlockFormat(),
+                    pvki > 0 ? pvki : engine.getPvki(), pvv);
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
+        if (isLogEnabled()) {
+            log("verify-pvv", "PVV Verification for account [" + pin.getAccountNumber() + "]: "
+                    + (isValid ? "SUCCESS" : "FAILED"));
+        }
         return isValid;
     }
 
     @Override
     protected EncryptedPIN translatePINImpl(EncryptedPIN pin, SecureKey kd1, SecureKey kd2, byte destinationFormat)
             throws SMException {
-        // Mock translation: In a real HSM, we decrypt with kd1 and encrypt with kd2
+        // Both sides use the TPK; translation changes the PIN block format
         log("translate-pin", "Translating PIN block for account [" + pin.getAccountNumber() + "] to format ["
                 + destinationFormat + "]");
-        return new EncryptedPIN(pin.getPINBlock(), destinationFormat, pin.getAccountNumber());
+        try {
+            String clearPin = engine.decryptPin(pin.getPINBlock(), pin.getAccountNumber(), pin.getPINBlockFormat());
+            if (clearPin == null) {
+                throw new SMException("Invalid PIN block for account [" + pin.getAccountNumber() + "]");
+            }
+            return new EncryptedPIN(engine.encryptPinBlock(clearPin, pin.getAccountNumber(), destinationFormat),
+                    destinationFormat, pin.getAccountNumber(), false);
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
     }
 
+    /** Visa PVV of a clear PIN with the configured PVKI. */
     public String generatePVV(String accountNumber, String pin) {
-        String data = accountNumber.substring(Math.max(0, accountNumber.length() - 5)) + pin;
-        String pvv = String.format("%04d", Math.abs(data.hashCode()) % 10000);
+        String pvv = engine.pvv(accountNumber, pin, engine.getPvki());
         log("generate-pvv", "Generated PVV [" + pvv + "] for account [" + accountNumber + "]");
         return pvv;
     }
@@ -163,9 +236,120 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
         return key;
     }
 
+    /**
+     * Verifies many PIN blocks (in this HSM's PIN block format) against their
+     * PVVs. Bit {@code i} of the result is set when entry {@code i} verified;
+     * entries that cannot be checked (bad PAN, wrong block length) are left
+     * clear. Large batches run in parallel on the common fork-join pool.
+     */
+    public BitSet verifyPVVBatch(String[] pans, byte[][] pinBlocks, String[] pvvs) {
+        if (pinBlocks.length != pans.length || pvvs.length != pans.length) {
+            throw new IllegalArgumentException("Batch arrays differ in length");
+        }
+        BitSet result = verifyPvvEntries(pans, pinBlocks, pvvs);
+        if (isLogEnabled()) {
+            log("verify-pvv", "Batch PVV Verification: " + result.cardinality() + " of " + pans.length + " verified");
+        }
+        return result;
+    }
+
+    /**
+     * Verifies many CVVs, one PAN, expiry (YYMM), service code and CVV per
+     * entry. Works like {@link #verifyPVVBatch}.
+     */
+    public BitSet verifyCVVBatch(String[] pans, String[] expiries, String[] serviceCodes, String[] cvvs) {
+        if (expiries.length != pans.length || serviceCodes.length != pans.length || cvvs.length != pans.length) {
+            throw new IllegalArgumentException("Batch arrays differ in length");
+        }
+        BitSet result = verifyCvvEntries(pans, expiries, serviceCodes, cvvs);
+        if (isLogEnabled()) {
+            log("verify-cvv", "Batch CVV Verification: " + result.cardinality() + " of " + pans.length + " verified");
+        }
+        return result;
+    }
+
+    /**
+     * Verifies the entries of a PVV batch, whose arrays have been checked to be
+     * of the same length. CPU-bound, so large batches are split over the
+     * common fork-join pool.
+     */
+    protected BitSet verifyPvvEntries(String[] pans, byte[][] pinBlocks, String[] pvvs) {
+        return verifyBatch(pans.length, i -> verifyPvvEntry(pans[i], pinBlocks[i], pvvs[i]));
+    }
+
+    /** Verifies the entries of a CVV batch, like {@link #verifyPvvEntries}. */
+    protected BitSet verifyCvvEntries(String[] pans, String[] expiries, String[] serviceCodes, String[] cvvs) {
+        return verifyBatch(pans.length, i -> verifyCvvEntry(pans[i], expiries[i], serviceCodes[i], cvvs[i]));
+    }
+
+    /** One entry of a PVV batch; false when it cannot be checked. */
+    protected boolean verifyPvvEntry(String pan, byte[] pinBlock, String pvv) {
+        try {
+            return engine.verifyPvv(pinBlock, pan, engine.getPinBlockFormat(), engine.getPvki(), pvv);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** One entry of a CVV batch; false when it cannot be checked. */
+    protected boolean verifyCvvEntry(String pan, String expiry, String serviceCode, String cvv) {
+        try {
+            return engine.verifyCvv(pan, expiry, serviceCode, cvv);
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static BitSet verifyBatch(int size, IntPredicate entry) {
+        long[] words = new long[(size + 63) >>> 6];
+        if (size < PARALLEL_BATCH) {
+            verifyRange(words, 0, size, entry);
+        } else {
+            ForkJoinPool.commonPool().invoke(new BatchTask(words, 0, size, entry));
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private static void verifyRange(long[] words, int from, int to, IntPredicate entry) {
+        for (int i = from; i < to; i++) {
+            if (entry.test(i)) {
+                words[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+
+    private static final class BatchTask extends RecursiveAction {
+        private final long[] words;
+        private final int from;
+        private final int to;
+        private final IntPredicate entry;
+
+        BatchTask(long[] words, int from, int to, IntPredicate entry) {
+            this.words = words;
+            this.from = from;
+            this.to = to;
+            this.entry = entry;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SLICE) {
+                verifyRange(words, from, to, entry);
+                return;
+            }
+            // Split on a word boundary so no two tasks write the same long
+            int mid = (from + (to - from) / 2) & ~63;
+            invokeAll(new BatchTask(words, from, mid, entry), new BatchTask(words, mid, to, entry));
+        }
+    }
+
     public String calculateKCV(SecureKey key) throws SMException {
-        // Mock: First 6 hex digits of the key hash
-        String kcv = ISOUtil.byte2hex(new byte[] { 0x11, 0x22, 0x33 }); // Mocked
+        String kcv;
+        try {
+            kcv = JceHsmEngine.kcv(key.getKeyBytes());
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
         log("calculate-kcv", "Calculated KCV [" + kcv + "] for key type [" + key.getKeyType() + "]");
         return kcv;
     }
@@ -173,20 +357,36 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
     @Override
     protected String calculateCVVImpl(String pan, SecureKey cvk1, SecureKey cvk2, Date expiry,
             String serviceCode) throws SMException {
-        // Mock CVV: Last 3 digits of (pan + serviceCode) hash
-        String expiryStr = new SimpleDateFormat("yyMM").format(expiry);
-        String data = pan + expiryStr + serviceCode;
-        String cvv = String.format("%03d", Math.abs(data.hashCode()) % 1000);
-        log("generate-cvv", "Generated CVV [" + cvv + "] for PAN [" + pan + "]");
+        String cvv;
+        try {
+            cvv = engine.cvv(pan, YYMM.get().format(expiry), serviceCode);
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
+        if (isLogEnabled()) {
+            log("generate-cvv", "Generated CVV [" + cvv + "] for PAN [" + pan + "]");
+        }
         return cvv;
     }
 
     @Override
     protected boolean verifyCVVImpl(String pan, SecureKey cvk1, SecureKey cvk2, String serviceCode,
             Date expiry, String cvv) throws SMException {
-        String calculatedCvv = calculateCVVImpl(pan, cvk1, cvk2, expiry, serviceCode);
-        boolean isValid = calculatedCvv.equals(cvv);
-        log("verify-cvv", "CVV Verification for PAN [" + pan + "]: " + (isValid ? "SUCCESS" : "FAILED"));
+        return verifyCVVImpl(pan, cvk1, cvk2, cvv, YYMM.get().format(expiry), serviceCode);
+    }
+
+    @Override
+    protected boolean verifyCVVImpl(String pan, SecureKey cvk1, SecureKey cvk2, String cvv, String expiry,
+            String serviceCode) throws SMException {
+        boolean isValid;
+        try {
+            isValid = engine.verifyCvv(pan, expiry, serviceCode, cvv);
+        } catch (IllegalArgumentException e) {
+            throw new SMException(e.getMessage(), e);
+        }
+        if (isLogEnabled()) {
+            log("verify-cvv", "CVV Verification for PAN [" + pan + "]: " + (isValid ? "SUCCESS" : "FAILED"));
+        }
         return isValid;
     }
 
@@ -209,11 +409,17 @@ public class HsmSimulator extends BaseSMAdapter<SecureKey> {
         return realm;
     }
 
+    /** Whether {@link #log} would write anything; check before building a message. */
+    protected boolean isLogEnabled() {
+        Logger l = logger;
+        return l != null ? l.hasListeners() : trace;
+    }
+
     private void log(String tag, String message) {
         if (logger != null) {
             LogEvent ev = new LogEvent(this, tag, message);
             Logger.log(ev);
-        } else {
+        } else if (trace) {
             System.out.println("HSM [" + tag + "]: " + message);
         }
     }
@@ -9,6 +9,7 @@ public class HsmSimulatorApp {
             System.out.println("=== jPOS HSM Simulator Demonstration ===");
 
             HsmSimulator hsm = new HsmSimulator();
+            hsm.setTrace(true);
 
             String accountNumber = "1234567890123456";
             int pinLen = 4;
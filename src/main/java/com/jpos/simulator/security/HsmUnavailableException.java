@@ -0,0 +1,20 @@
+package com.jpos.simulator.security;
+
+import org.jpos.security.SMException;
+
+/**
+ * The HSM could not be asked: no connection, or no response in time. Unlike a
+ * plain {@link SMException} it says nothing about the card, so a request
+ * depending on the check is declined as "issuer or switch inoperative"
+ * rather than approved or treated as a bad PIN.
+ */
+public class HsmUnavailableException extends SMException {
+
+    public HsmUnavailableException(String message) {
+        super(message);
+    }
+
+    public HsmUnavailableException(String message, Exception cause) {
+        super(message, cause);
+    }
+}
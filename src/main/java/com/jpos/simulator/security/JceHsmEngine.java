@@ -0,0 +1,475 @@
+package com.jpos.simulator.security;
+
+import com.jpos.simulator.core.ChannelFactory;
+import org.jpos.core.Configuration;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.ISOUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Software HSM cryptography on JCE: ISO 9564 PIN blocks encrypted under a
+ * terminal PIN key (format 0 with double-length 3DES, format 4 with AES-128),
+ * the Visa PIN verification value (PVV) and the Visa CVV / CVV2. Keys are held
+ * in the clear and loaded from {@code xml/hsm/hsm.xml}.
+ * <p>
+ * Every thread gets its own workspace: one initialised cipher per key and
+ * mode plus the block buffers. A verification only runs the block cipher over
+ * those buffers, so it never pays for {@code Cipher.getInstance} or
+ * {@code init} and allocates nothing.
+ */
+public class JceHsmEngine {
+
+    public static final String DEFAULT_CONFIG = "src/main/resources/xml/hsm/hsm.xml";
+
+    /** ISO 9564 format 0 (ANSI X9.8), jPOS {@code SMAdapter.FORMAT01}. */
+    public static final byte FORMAT_ISO0 = 1;
+    /** ISO 9564 format 4, the 16-byte AES PIN block. */
+    public static final byte FORMAT_ISO4 = 48;
+
+    // Published test keys, used when hsm.xml does not set a key
+    static final String TEST_TPK = "A1B2C3D4E5F60718293A4B5C6D7E8F90";
+    static final String TEST_PVK = "0123456789ABCDEFFEDCBA9876543210";
+    static final String TEST_CVK = "0123456789ABCDEFFEDCBA9876543210";
+
+    private static volatile JceHsmEngine defaultEngine;
+
+    private final byte pinBlockFormat;
+    private final int pvki;
+    private final SecretKeySpec tpkDes;
+    private final SecretKeySpec tpkAes;
+    private final SecretKeySpec pvkDes;
+    private final SecretKeySpec cvkADes;
+    private final SecretKeySpec cvkDes;
+    private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(() -> new Workspace(this));
+
+    /**
+     * Reads {@code tpk}, {@code pvk} and {@code cvk} (32 hex digits each),
+     * {@code pvki} and {@code pin-block-format} ({@code 0} or {@code 4}).
+     */
+    public JceHsmEngine(Configuration cfg) {
+        byte[] tpk = key(cfg, "tpk", TEST_TPK);
+        byte[] pvk = key(cfg, "pvk", TEST_PVK);
+        byte[] cvk = key(cfg, "cvk", TEST_CVK);
+        String format = cfg.get("pin-block-format", "0").trim();
+        if ("0".equals(format)) {
+            this.pinBlockFormat = FORMAT_ISO0;
+        } else if ("4".equals(format)) {
+            this.pinBlockFormat = FORMAT_ISO4;
+        } else {
+            throw new IllegalArgumentException("pin-block-format must be 0 or 4: " + format);
+        }
+        this.pvki = cfg.getInt("pvki", 1);
+        if (pvki < 0 || pvki > 9) {
+            throw new IllegalArgumentException("pvki must be a single digit: " + pvki);
+        }
+        this.tpkDes = new SecretKeySpec(tripleLength(tpk), "DESede");
+        this.tpkAes = new SecretKeySpec(tpk, "AES");
+        this.pvkDes = new SecretKeySpec(tripleLength(pvk), "DESede");
+        this.cvkADes = new SecretKeySpec(cvk, 0, 8, "DES");
+        this.cvkDes = new SecretKeySpec(tripleLength(cvk), "DESede");
+        // Fail on a bad key now rather than on the first verification
+        workspace.get();
+    }
+
+    /** Per-thread ciphers and buffers. */
+    private static final class Workspace {
+        final Cipher tpkDesEncrypt;
+        final Cipher tpkDesDecrypt;
+        final Cipher tpkAesEncrypt;
+        final Cipher tpkAesDecrypt;
+        final Cipher pvkEncrypt;
+        final Cipher cvkAEncrypt;
+        final Cipher cvkEncrypt;
+        final byte[] a8 = new byte[8];
+        final byte[] b8 = new byte[8];
+        final byte[] a16 = new byte[16];
+        final byte[] b16 = new byte[16];
+        final byte[] pin = new byte[12];
+
+        Workspace(JceHsmEngine e) {
+            tpkDesEncrypt = cipher(e.tpkDes, Cipher.ENCRYPT_MODE);
+            tpkDesDecrypt = cipher(e.tpkDes, Cipher.DECRYPT_MODE);
+            tpkAesEncrypt = cipher(e.tpkAes, Cipher.ENCRYPT_MODE);
+            tpkAesDecrypt = cipher(e.tpkAes, Cipher.DECRYPT_MODE);
+            pvkEncrypt = cipher(e.pvkDes, Cipher.ENCRYPT_MODE);
+            cvkAEncrypt = cipher(e.cvkADes, Cipher.ENCRYPT_MODE);
+            cvkEncrypt = cipher(e.cvkDes, Cipher.ENCRYPT_MODE);
+        }
+    }
+
+    /** The engine configured by {@link #DEFAULT_CONFIG}, or with the test keys when that file is absent. */
+    public static JceHsmEngine getDefault() {
+        JceHsmEngine engine = defaultEngine;
+        if (engine == null) {
+            synchronized (JceHsmEngine.class) {
+                engine = defaultEngine;
+                if (engine == null) {
+                    engine = new JceHsmEngine(loadDefaultConfiguration());
+                    defaultEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    private static Configuration loadDefaultConfiguration() {
+        if (!new File(DEFAULT_CONFIG).exists()) {
+            return new SimpleConfiguration();
+        }
+        try {
+            return ChannelFactory.loadConfiguration(DEFAULT_CONFIG);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot read " + DEFAULT_CONFIG, e);
+        }
+    }
+
+    /** Format of the PIN blocks this engine produces, {@link #FORMAT_ISO0} or {@link #FORMAT_ISO4}. */
+    public byte getPinBlockFormat() {
+        return pinBlockFormat;
+    }
+
+    public int getPvki() {
+        return pvki;
+    }
+
+    /** The PIN block of a clear PIN, encrypted under the TPK. */
+    public byte[] encryptPinBlock(String pin, String pan, byte format) {
+        checkPin(pin);
+        Workspace w = workspace.get();
+        if (format == FORMAT_ISO0) {
+            byte[] block = w.a8;
+            setNibble(block, 0, 0);
+            setNibble(block, 1, pin.length());
+            for (int i = 2; i < 16; i++) {
+                setNibble(block, i, i - 2 < pin.length() ? pin.charAt(i - 2) - '0' : 0xF);
+            }
+            xorAccount(block, 4, pan);
+            byte[] result = new byte[8];
+            crypt(w.tpkDesEncrypt, block, result);
+            return result;
+        }
+        if (format == FORMAT_ISO4) {
+            byte[] block = w.a16;
+            setNibble(block, 0, 4);
+            setNibble(block, 1, pin.length());
+            for (int i = 2; i < 16; i++) {
+                setNibble(block, i, i - 2 < pin.length() ? pin.charAt(i - 2) - '0' : 0xA);
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 8; i < 16; i++) {
+                block[i] = (byte) random.nextInt();
+            }
+            crypt(w.tpkAesEncrypt, block, w.b16);
+            xorAccount(w.b16, 1, pan);
+            byte[] result = new byte[16];
+            crypt(w.tpkAesEncrypt, w.b16, result);
+            return result;
+        }
+        throw new IllegalArgumentException("Unsupported PIN block format " + format);
+    }
+
+    /**
+     * The clear PIN of a PIN block encrypted under the TPK, or null when the
+     * block does not decrypt to a valid PIN for this account.
+     */
+    public String decryptPin(byte[] pinBlock, String pan, byte format) {
+        Workspace w = workspace.get();
+        int length = decrypt(w, pinBlock, pan, format);
+        if (length < 0) {
+            return null;
+        }
+        char[] pin = new char[length];
+        for (int i = 0; i < length; i++) {
+            pin[i] = (char) ('0' + w.pin[i]);
+        }
+        return new String(pin);
+    }
+
+    /**
+     * Visa PVV: the 11 rightmost account digits before the check digit, the
+     * PVKI and the first four PIN digits, encrypted under the PVK and
+     * decimalized to four digits.
+     */
+    public String pvv(String pan, String pin, int pvki) {
+        checkPin(pin);
+        Workspace w = workspace.get();
+        for (int i = 0; i < 4; i++) {
+            w.pin[i] = (byte) (pin.charAt(i) - '0');
+        }
+        return decimalize(pvv(w, pan, pvki), 4);
+    }
+
+    /**
+     * Checks the PIN in an encrypted PIN block against a PVV without creating
+     * any objects: false when the block holds no valid PIN or a different one.
+     */
+    public boolean verifyPvv(byte[] pinBlock, String pan, byte format, int pvki, String pvv) {
+        Workspace w = workspace.get();
+        return decrypt(w, pinBlock, pan, format) >= 0 && decimalizedEquals(pvv(w, pan, pvki), pvv, 4);
+    }
+
+    /**
+     * Visa CVV: PAN, expiry (YYMM) and service code, zero-filled to 32 digits;
+     * the first half is encrypted under CVK A, XORed with the second half and
+     * encrypted under CVK A/B, and the result decimalized to three digits.
+     * CVV2 is the same calculation with service code {@code 000}.
+     */
+    public String cvv(String pan, String expiry, String serviceCode) {
+        return decimalize(cvv(workspace.get(), pan, expiry, serviceCode), 3);
+    }
+
+    /** Checks a CVV or CVV2 without creating any objects. */
+    public boolean verifyCvv(String pan, String expiry, String serviceCode, String cvv) {
+        return decimalizedEquals(cvv(workspace.get(), pan, expiry, serviceCode), cvv, 3);
+    }
+
+    // Decrypts into w.pin and returns the PIN length, or -1 when the block holds no valid PIN
+    private static int decrypt(Workspace w, byte[] pinBlock, String pan, byte format) {
+        byte[] plain;
+        int control;
+        if (format == FORMAT_ISO0 && pinBlock.length == 8) {
+            plain = w.a8;
+            crypt(w.tpkDesDecrypt, pinBlock, plain);
+            xorAccount(plain, 4, pan);
+            control = 0;
+        } else if (format == FORMAT_ISO4 && pinBlock.length == 16) {
+            crypt(w.tpkAesDecrypt, pinBlock, w.b16);
+            xorAccount(w.b16, 1, pan);
+            plain = w.a16;
+            crypt(w.tpkAesDecrypt, w.b16, plain);
+            control = 4;
+        } else {
+            throw new IllegalArgumentException("Unsupported PIN block format " + format
+                    + " with " + pinBlock.length + " bytes");
+        }
+        int length = nibble(plain, 1);
+        if (nibble(plain, 0) != control || length < 4 || length > 12) {
+            return -1;
+        }
+        for (int i = 0; i < length; i++) {
+            int digit = nibble(plain, i + 2);
+            if (digit > 9) {
+                return -1;
+            }
+            w.pin[i] = (byte) digit;
+        }
+        return length;
+    }
+
+    // PVV block for the first four digits of w.pin, left in w.b8
+    private byte[] pvv(Workspace w, String pan, int pvki) {
+        byte[] tsp = w.a8;
+        int start = accountStart(pan);
+        for (int i = 0; i < 11; i++) {
+            setNibble(tsp, i, accountDigit(pan, start, i + 1));
+        }
+        setNibble(tsp, 11, pvki);
+        for (int i = 0; i < 4; i++) {
+            setNibble(tsp, 12 + i, w.pin[i]);
+        }
+        crypt(w.pvkEncrypt, tsp, w.b8);
+        return w.b8;
+    }
+
+    // CVV block, left in w.b8
+    private static byte[] cvv(Workspace w, String pan, String expiry, String serviceCode) {
+        if (pan.length() + expiry.length() + serviceCode.length() > 32) {
+            throw new IllegalArgumentException("PAN, expiry and service code exceed 32 digits");
+        }
+        byte[] data = w.a16;
+        Arrays.fill(data, (byte) 0);
+        int n = putDigits(data, 0, pan);
+        n = putDigits(data, n, expiry);
+        putDigits(data, n, serviceCode);
+
+        crypt(w.cvkAEncrypt, data, 0, w.a8);
+        for (int i = 0; i < 8; i++) {
+            w.a8[i] ^= data[8 + i];
+        }
+        crypt(w.cvkEncrypt, w.a8, w.b8);
+        return w.b8;
+    }
+
+    /** Key check value: the first three bytes of a zero block encrypted under the key, in hex. */
+    public static String kcv(byte[] key) {
+        try {
+            Cipher cipher;
+            if (key.length == 8) {
+                cipher = Cipher.getInstance("DES/ECB/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DES"));
+            } else {
+                cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key.length == 16 ? tripleLength(key) : key, "DESede"));
+            }
+            return ISOUtil.hexString(cipher.doFinal(new byte[8]), 0, 3);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot compute KCV: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Index in {@code pan} of the first of the 12 account digits before the
+     * check digit, as used by format 0 and the PVV; negative when the account
+     * is left-padded with zeros. Account numbers of 12 digits or less are
+     * taken as already extracted.
+     */
+    private static int accountStart(String pan) {
+        if (pan == null) {
+            throw new IllegalArgumentException("Account number required");
+        }
+        for (int i = 0; i < pan.length(); i++) {
+            char c = pan.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Account number must be numeric");
+            }
+        }
+        return pan.length() <= 12 ? pan.length() - 12 : pan.length() - 13;
+    }
+
+    private static int accountDigit(String pan, int start, int i) {
+        return start + i < 0 ? 0 : pan.charAt(start + i) - '0';
+    }
+
+    /*
+     * XORs the 12 account digits into the block from nibble offset on: the
+     * format 0 PAN block (offset 4), or the format 4 PAN field (offset 1, its
+     * length nibble is 0). jPOS EncryptedPIN only carries the 12 account
+     * digits, so format 4 uses those as a 12-digit PAN on both sides.
+     */
+    private static void xorAccount(byte[] block, int offset, String pan) {
+        int start = accountStart(pan);
+        for (int i = 0; i < 12; i++) {
+            setNibble(block, offset + i, nibble(block, offset + i) ^ accountDigit(pan, start, i));
+        }
+    }
+
+    private static void checkPin(String pin) {
+        if (pin == null || pin.length() < 4 || pin.length() > 12) {
+            throw new IllegalArgumentException("PIN must have 4 to 12 digits");
+        }
+        for (int i = 0; i < pin.length(); i++) {
+            char c = pin.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("PIN must be numeric");
+            }
+        }
+    }
+
+    private static int putDigits(byte[] data, int nibbleOffset, String digits) {
+        for (int i = 0; i < digits.length(); i++) {
+            char c = digits.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Not numeric: " + digits);
+            }
+            setNibble(data, nibbleOffset + i, c - '0');
+        }
+        return nibbleOffset + digits.length();
+    }
+
+    // Digits of the hex result in order, then its A-F nibbles as 0-5
+    private static int decimalDigit(byte[] data, int n) {
+        int count = data.length * 2;
+        for (int i = 0; i < count; i++) {
+            if (nibble(data, i) < 10 && n-- == 0) {
+                return nibble(data, i);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (nibble(data, i) >= 10 && n-- == 0) {
+                return nibble(data, i) - 10;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean decimalizedEquals(byte[] data, String expected, int digits) {
+        if (expected == null || expected.length() != digits) {
+            return false;
+        }
+        for (int i = 0; i < digits; i++) {
+            if (expected.charAt(i) - '0' != decimalDigit(data, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decimalize(byte[] data, int digits) {
+        char[] out = new char[digits];
+        int n = 0;
+        for (int i = 0; i < data.length * 2 && n < digits; i++) {
+            int v = nibble(data, i);
+            if (v < 10) {
+                out[n++] = (char) ('0' + v);
+            }
+        }
+        for (int i = 0; i < data.length * 2 && n < digits; i++) {
+            int v = nibble(data, i);
+            if (v >= 10) {
+                out[n++] = (char) ('0' + v - 10);
+            }
+        }
+        return new String(out);
+    }
+
+    private static int nibble(byte[] b, int i) {
+        return (i & 1) == 0 ? (b[i >> 1] >> 4) & 0xF : b[i >> 1] & 0xF;
+    }
+
+    private static void setNibble(byte[] b, int i, int v) {
+        if ((i & 1) == 0) {
+            b[i >> 1] = (byte) ((b[i >> 1] & 0x0F) | (v << 4));
+        } else {
+            b[i >> 1] = (byte) ((b[i >> 1] & 0xF0) | (v & 0xF));
+        }
+    }
+
+    private static void crypt(Cipher cipher, byte[] in, byte[] out) {
+        crypt(cipher, in, 0, out);
+    }
+
+    // Input and output must be different arrays: JCE copies overlapping input first
+    private static void crypt(Cipher cipher, byte[] in, int offset, byte[] out) {
+        try {
+            cipher.doFinal(in, offset, out.length, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cipher failure: " + e.getMessage(), e);
+        }
+    }
+
+    private static Cipher cipher(SecretKeySpec key, int mode) {
+        try {
+            Cipher c = Cipher.getInstance(key.getAlgorithm() + "/ECB/NoPadding");
+            c.init(mode, key);
+            return c;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialise " + key.getAlgorithm() + " cipher", e);
+        }
+    }
+
+    private static byte[] key(Configuration cfg, String name, String defaultValue) {
+        String hex = cfg.get(name, defaultValue).trim();
+        boolean valid = hex.length() == 32;
+        for (int i = 0; valid && i < hex.length(); i++) {
+            valid = Character.digit(hex.charAt(i), 16) >= 0;
+        }
+        if (!valid) {
+            throw new IllegalArgumentException(name + " must be 32 hex digits");
+        }
+        return ISOUtil.hex2byte(hex);
+    }
+
+    // Double-length key A|B as the 24-byte A|B|A that DESede expects
+    private static byte[] tripleLength(byte[] key) {
+        byte[] k = new byte[24];
+        System.arraycopy(key, 0, k, 0, 16);
+        System.arraycopy(key, 0, k, 16, 8);
+        return k;
+    }
+}
@@ -0,0 +1,362 @@
+package com.jpos.simulator.security;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOUtil;
+import org.jpos.security.EncryptedPIN;
+import org.jpos.security.SMException;
+import org.jpos.security.SecureDESKey;
+import org.jpos.security.SecureKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * {@link HsmSimulator} whose PIN, CVV, translation and key generation
+ * commands run on a remote {@link HsmServer}. Commands are spread round-robin
+ * over a small pool of connections and pipelined: each connection writes as
+ * many commands as callers submit and a reader thread completes them by
+ * header as the responses arrive, in whatever order the HSM answers. PIN
+ * encryption and PVV/CVV generation stay in-process, with the local key file.
+ * Batch verifications are pipelined from the calling thread: up to
+ * {@value #BATCH_WINDOW} commands are sent ahead of the response being
+ * collected, so no fork-join worker waits on the network.
+ * <p>
+ * A command that cannot be sent or gets no response in time fails with
+ * {@link HsmUnavailableException}. A broken connection fails its outstanding
+ * commands and is reopened by the next command sent through it. A command that timed out keeps its header
+ * until its late response arrives or the connection closes, so the late
+ * response can never be taken for the answer to a newer command.
+ */
+public class RemoteHsmAdapter extends HsmSimulator {
+
+    /** Commands of one batch sent and not yet collected, at most. */
+    public static final int BATCH_WINDOW = 1024;
+
+    private final String host;
+    private final int port;
+    private final long timeout;
+    private final AtomicReferenceArray<Connection> connections;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile boolean closed;
+
+    /** @param timeout ms to wait for a response before the command fails */
+    public RemoteHsmAdapter(String host, int port, int connections, long timeout) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, connections));
+    }
+
+    /**
+     * The adapter described by {@code hsm-remote} ({@code host:port}, empty =
+     * in-process HSM), {@code hsm-connections} (default 2) and
+     * {@code hsm-timeout} (ms, default {@code hsm-check-timeout}, 2500), or
+     * null.
+     */
+    public static RemoteHsmAdapter forConfiguration(Configuration cfg) {
+        String remote = cfg.get("hsm-remote", "").trim();
+        if (remote.isEmpty()) {
+            return null;
+        }
+        int colon = remote.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("hsm-remote must be host:port: " + remote);
+        }
+        return new RemoteHsmAdapter(remote.substring(0, colon), Integer.parseInt(remote.substring(colon + 1)),
+                cfg.getInt("hsm-connections", 2), cfg.getLong("hsm-timeout", cfg.getLong("hsm-check-timeout", 2500)));
+    }
+
+    /** ms a command waits for its response. */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /** Commands sent and not yet answered, over all connections, including timed out ones. */
+    public int getOutstanding() {
+        int n = 0;
+        for (int i = 0; i < connections.length(); i++) {
+            Connection c = connections.get(i);
+            if (c != null) {
+                n += c.pending.size();
+            }
+        }
+        return n;
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (connections) {
+            for (int i = 0; i < connections.length(); i++) {
+                Connection c = connections.get(i);
+                if (c != null) {
+                    c.close(new IOException("HSM adapter closed"));
+                }
+            }
+        }
+    }
+
+    @Override
+    protected boolean verifyPVVImpl(EncryptedPIN pin, SecureKey kd, SecureKey pvk1, SecureKey pvk2, int pvki,
+            String pvv) throws SMException {
+        String response = call("DC" + String.format("%02d", pin.getPINBlockFormat()) + pin.getAccountNumber()
+                + (pvki > 0 ? pvki : getEngine().getPvki()) + pvv + ISOUtil.hexString(pin.getPINBlock()));
+        return verified(response);
+    }
+
+    @Override
+    protected boolean verifyCVVImpl(String pan, SecureKey cvk1, SecureKey cvk2, String cvv, String expiry,
+            String serviceCode) throws SMException {
+        return verified(call("CY" + cvv + pan + ";" + expiry + serviceCode));
+    }
+
+    @Override
+    protected EncryptedPIN translatePINImpl(EncryptedPIN pin, SecureKey kd1, SecureKey kd2, byte destinationFormat)
+            throws SMException {
+        String response = call("CA" + String.format("%02d%02d", pin.getPINBlockFormat(), destinationFormat)
+                + pin.getAccountNumber() + ISOUtil.hexString(pin.getPINBlock()));
+        check(response);
+        return new EncryptedPIN(ISOUtil.hex2byte(response.substring(8)), destinationFormat, pin.getAccountNumber(),
+                false);
+    }
+
+    @Override
+    protected SecureDESKey generateKeyImpl(short keyLength, String keyType) throws SMException {
+        String type = (keyType + "   ").substring(0, 3);
+        String response = call("A0" + String.format("%03d", keyLength) + type);
+        check(response);
+        String key = response.substring(4, response.length() - 6);
+        SecureDESKey secureKey = new SecureDESKey();
+        secureKey.setKeyType(keyType);
+        secureKey.setKeyLength(keyLength);
+        secureKey.setKeyBytes(ISOUtil.hex2byte(key));
+        secureKey.setKeyCheckValue(ISOUtil.hex2byte(response.substring(response.length() - 6)));
+        return secureKey;
+    }
+
+    @Override
+    protected BitSet verifyPvvEntries(String[] pans, byte[][] pinBlocks, String[] pvvs) {
+        String format = String.format("%02d", getPinBlockFormat());
+        String pvki = String.valueOf(getEngine().getPvki());
+        return verifyPipelined(pans.length,
+                i -> "DC" + format + pans[i] + pvki + pvvs[i] + ISOUtil.hexString(pinBlocks[i]));
+    }
+
+    @Override
+    protected BitSet verifyCvvEntries(String[] pans, String[] expiries, String[] serviceCodes, String[] cvvs) {
+        return verifyPipelined(pans.length, i -> "CY" + cvvs[i] + pans[i] + ";" + expiries[i] + serviceCodes[i]);
+    }
+
+    // Sends the command of entry i while collecting the response of entry i - BATCH_WINDOW
+    private BitSet verifyPipelined(int size, IntFunction<String> command) {
+        BitSet result = new BitSet(size);
+        int window = Math.min(size, BATCH_WINDOW);
+        @SuppressWarnings("unchecked")
+        CompletableFuture<String>[] responses = new CompletableFuture[window];
+        long[] deadlines = new long[window];
+        for (int i = 0; i < size + window; i++) {
+            int slot = i % window;
+            int collect = i - window;
+            if (collect >= 0 && responses[slot] != null && verified(responses[slot], deadlines[slot])) {
+                result.set(collect);
+            }
+            if (i < size) {
+                try {
+                    responses[slot] = send(command.apply(i));
+                    deadlines[slot] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                } catch (RuntimeException e) {
+                    responses[slot] = null; // cannot be checked, e.g. a missing PIN block
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean verified(CompletableFuture<String> response, long deadline) {
+        try {
+            return verified(await(response, deadline - System.nanoTime()));
+        } catch (SMException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean verified(String response) throws SMException {
+        if (response.startsWith("01", 2)) {
+            return false;
+        }
+        check(response);
+        return true;
+    }
+
+    private static void check(String response) throws SMException {
+        if (!response.startsWith("00", 2)) {
+            throw new SMException("HSM error " + response.substring(2, Math.min(4, response.length()))
+                    + " for command " + response.substring(0, Math.min(2, response.length())));
+        }
+    }
+
+    /** Sends one command (without header) and waits for its response (without header). */
+    String call(String command) throws SMException {
+        return await(send(command), TimeUnit.MILLISECONDS.toNanos(timeout));
+    }
+
+    /**
+     * Sends one command (without header) without waiting. The future
+     * completes with the response (without header), or exceptionally when the
+     * connection fails.
+     */
+    private CompletableFuture<String> send(String command) {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new HsmUnavailableException("HSM adapter closed"));
+            return response;
+        }
+        Connection connection;
+        try {
+            connection = connection(Math.floorMod(next.getAndIncrement(), connections.length()));
+        } catch (IOException e) {
+            response.completeExceptionally(new HsmUnavailableException(
+                    "Cannot connect to HSM " + host + ":" + port + ": " + e.getMessage(), e));
+            return response;
+        }
+        int header = connection.reserveHeader(response);
+        if (header < 0) {
+            response.completeExceptionally(new HsmUnavailableException("HSM " + host + ":" + port
+                    + " has every header outstanding"));
+            return response;
+        }
+        try {
+            connection.send(header, command);
+        } catch (IOException e) {
+            connection.close(e);
+        }
+        if (connection.closed) {
+            // Closed while the header was being reserved, close() may have missed it
+            connection.pending.remove(header, response);
+            response.completeExceptionally(new HsmUnavailableException("HSM connection closed"));
+        }
+        return response;
+    }
+
+    private String await(CompletableFuture<String> response, long nanos) throws SMException {
+        try {
+            return response.get(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // The header stays reserved until the late response or the connection's end
+            response.cancel(false);
+            throw new HsmUnavailableException("HSM timeout after " + timeout + " ms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SMException) {
+                throw (SMException) e.getCause();
+            }
+            throw new HsmUnavailableException("HSM connection failed: " + e.getCause().getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HsmUnavailableException("Interrupted waiting for HSM", e);
+        }
+    }
+
+    private Connection connection(int slot) throws IOException {
+        Connection c = connections.get(slot);
+        if (c != null && !c.closed) {
+            return c;
+        }
+        synchronized (connections) {
+            c = connections.get(slot);
+            if (c == null || c.closed) {
+                c = new Connection(slot);
+                connections.set(slot, c);
+            }
+            return c;
+        }
+    }
+
+    private final class Connection {
+        final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        final ConcurrentHashMap<Integer, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+        final AtomicInteger headers = new AtomicInteger();
+        volatile boolean closed;
+
+        Connection(int slot) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), (int) Math.min(Integer.MAX_VALUE, timeout));
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(this::read, "hsm-client-" + slot);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // Four hex digits, skipping any still waiting for a response; -1 when all are
+        int reserveHeader(CompletableFuture<String> response) {
+            for (int tries = 0; tries <= 0xFFFF; tries++) {
+                int h = headers.getAndIncrement() & 0xFFFF;
+                if (pending.putIfAbsent(h, response) == null) {
+                    return h;
+                }
+            }
+            return -1;
+        }
+
+        void send(int header, String command) throws IOException {
+            byte[] body = (String.format("%04X", header) + command).getBytes(StandardCharsets.ISO_8859_1);
+            synchronized (out) {
+                out.writeShort(body.length);
+                out.write(body);
+                out.flush();
+            }
+        }
+
+        void read() {
+            try {
+                while (!closed) {
+                    byte[] frame = new byte[in.readUnsignedShort()];
+                    in.readFully(frame);
+                    String response = new String(frame, StandardCharsets.ISO_8859_1);
+                    if (response.length() < HsmServer.HEADER_LENGTH) {
+                        continue;
+                    }
+                    // Frees the header, also when its command already timed out
+                    CompletableFuture<String> f = pending.remove(Integer.parseInt(response.substring(0, 4), 16));
+                    if (f != null) {
+                        f.complete(response.substring(HsmServer.HEADER_LENGTH));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                close(e);
+            }
+        }
+
+        void close(Exception cause) {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+            for (Integer header : pending.keySet()) {
+                CompletableFuture<String> f = pending.remove(header);
+                if (f != null) {
+                    f.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.jpos.simulator.server;
+
+import com.jpos.simulator.core.AsyncLogListener;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.metrics.LatencyRecorder;
+import com.jpos.simulator.metrics.MetricsHttpServer;
+import com.jpos.simulator.metrics.ServerMetrics;
+import com.jpos.simulator.server.dispatch.DuplicateDetector;
+import com.jpos.simulator.server.latency.IssuerLatency;
+import com.jpos.simulator.server.listener.HostRequestListener;
+import com.jpos.simulator.server.nio.NioServer;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOServer;
+import org.jpos.iso.ServerChannel;
+import org.jpos.util.LogListener;
+import org.jpos.util.LogSource;
+import org.jpos.util.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One protocol endpoint of the host: a server channel from a
+ * {@code server.xml}, served by ISOServer or the NIO engine, with its
+ * listener, host log ({@code log/<NAME>HOST.log}) and session monitor.
+ * Channel and server log under the {@code <name>-channel} and
+ * {@code <name>-server} realms, and latency and counters are recorded as
+ * {@code <name>-server}.
+ * <p>
+ * A standalone endpoint owns its {@link HostResources}; endpoints started by
+ * {@link HostLauncher} share one.
+ */
+public class HostEndpoint {
+
+    private final String name;
+    private final String dialect;
+    private final String configPath;
+    private final List<LogListener> logListeners = new ArrayList<>();
+    private HostResources resources;
+    private boolean ownsResources;
+    private int port;
+    private Logger logger;
+    private ISOServer server;
+    private NioServer nioServer;
+    private IssuerLatency issuerLatency;
+    private MetricsHttpServer metricsServer;
+
+    /**
+     * @param name       endpoint name, e.g. {@code iso87}
+     * @param dialect    {@code iso87} or {@code iso93}
+     * @param configPath the endpoint's {@code server.xml}
+     */
+    public HostEndpoint(String name, String dialect, String configPath) {
+        this.name = name;
+        this.dialect = dialect;
+        this.configPath = configPath;
+    }
+
+    /** Shares a host's pool, HSM and ledger instead of creating them from this endpoint's configuration. */
+    public void setResources(HostResources resources) {
+        this.resources = resources;
+    }
+
+    /** Overrides the port of the channel configuration. */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Starts the endpoint.
+     *
+     * @param sharedLogger logger for channel and server events, or null for a
+     *                     new one that also logs to the console
+     */
+    public void start(Logger sharedLogger) throws Exception {
+        Configuration cfg = ChannelFactory.loadConfiguration(configPath);
+        String label = name.toUpperCase();
+
+        logger = sharedLogger;
+        if (logger == null) {
+            logger = new Logger();
+            addLogListener(AsyncLogListener.forConfiguration(name + "-console-log", System.out, cfg));
+        }
+        File logDir = new File("log");
+        if (!logDir.exists())
+            logDir.mkdirs();
+        addLogListener(AsyncLogListener.forConfiguration(name + "-host-log",
+                new FileOutputStream("log/" + label + "HOST.log", true), cfg));
+
+        ServerChannel channel = (ServerChannel) ChannelFactory.createChannel(configPath);
+        if (channel instanceof LogSource) {
+            ((LogSource) channel).setLogger(logger, name + "-channel");
+        }
+        if (channel instanceof BaseChannel) {
+            if (port > 0) {
+                ((BaseChannel) channel).setPort(port);
+            }
+            port = ((BaseChannel) channel).getPort();
+        }
+        if (port <= 0) {
+            throw new Exception("Port not configured for " + label + " Server in " + configPath);
+        }
+
+        if (resources == null) {
+            resources = new HostResources(name, cfg);
+            ownsResources = true;
+            // A host publishes the metrics of all its endpoints itself
+            metricsServer = MetricsHttpServer.forConfiguration(cfg);
+        }
+
+        HostRequestListener listener = HostRequestListener.create(dialect, name);
+        listener.setTrace(cfg.getBoolean("trace"));
+        listener.setHsm(resources.getHsm());
+        listener.setHsmStage(resources.getHsmStage());
+        issuerLatency = IssuerLatency.forConfiguration(name, cfg);
+        listener.setIssuerLatency(issuerLatency);
+        listener.setLedger(resources.getLedger());
+        listener.setReversalIndex(resources.getReversals());
+        listener.setDuplicateDetector(DuplicateDetector.forConfiguration(cfg));
+
+        if ("nio".equalsIgnoreCase(cfg.get("engine", "blocking"))) {
+            nioServer = new NioServer(name + "-nio", port, channel, listener, cfg);
+            nioServer.setLogger(logger, name + "-channel");
+            nioServer.start();
+            System.out.println(label + " Host Server (NIO) started on port " + port + "...");
+        } else {
+            // Accept backlog and bind address come from server.xml, the pool from the host resources
+            server = new ISOServer(port, channel, resources.getSessionPool());
+            server.setLogger(logger, name + "-server");
+            server.setConfiguration(cfg);
+            server.addISORequestListener(listener);
+
+            System.out.println(label + " Host Server started on port " + port + "...");
+            new Thread(server, name + "-server").start();
+            if (ownsResources) {
+                resources.startSessionMonitor(this::getConnectionCount);
+            }
+        }
+    }
+
+    public void stop() {
+        System.out.println("Stopping " + name.toUpperCase() + " Host Server...");
+        if (nioServer != null) {
+            nioServer.shutdown();
+            nioServer = null;
+        }
+        if (server != null) {
+            server.shutdown();
+            server = null;
+        }
+        LatencyRecorder.get(name + "-server").dump(System.out);
+        if (metricsServer != null) {
+            metricsServer.stop();
+            metricsServer = null;
+        }
+        if (issuerLatency != null) {
+            issuerLatency.stop();
+            issuerLatency = null;
+        }
+        for (LogListener listener : logListeners) {
+            logger.removeListener(listener);
+            if (listener instanceof AsyncLogListener) {
+                ((AsyncLogListener) listener).close();
+            }
+        }
+        logListeners.clear();
+        if (ownsResources) {
+            resources.close();
+            resources = null;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerMetrics getMetrics() {
+        return ServerMetrics.get(name + "-server");
+    }
+
+    /** True when the endpoint runs on ISOServer and the host's session pool. */
+    public boolean usesSessionPool() {
+        return server != null;
+    }
+
+    /** Open connections right now. */
+    public int getConnectionCount() {
+        if (nioServer != null) {
+            return nioServer.getConnectionCount();
+        }
+        return server != null ? server.getActiveConnections() : 0;
+    }
+
+    private void addLogListener(LogListener listener) {
+        logger.addListener(listener);
+        logListeners.add(listener);
+    }
+}
@@ -0,0 +1,180 @@
+package com.jpos.simulator.server;
+
+import com.jpos.simulator.core.AsyncLogListener;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.metrics.MetricsHttpServer;
+import com.jpos.simulator.metrics.ServerMetrics;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jpos.core.Configuration;
+import org.jpos.util.LogListener;
+import org.jpos.util.Logger;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs any number of host endpoints in one JVM, as described by a host file:
+ *
+ * <pre>
+ * &lt;host&gt;
+ *     &lt;property name="max-sessions" value="2000" /&gt;
+ *     &lt;endpoint name="iso87" dialect="iso87" config="src/main/resources/xml/channel/iso87/server.xml" /&gt;
+ *     &lt;endpoint name="iso93" dialect="iso93" config="src/main/resources/xml/channel/iso93/server.xml" port="8006" /&gt;
+ * &lt;/host&gt;
+ * </pre>
+ *
+ * The host properties size the one session pool, ledger and reversal index
+ * all endpoints share (see {@link HostResources}), together with one HSM, one
+ * console logger, one metrics endpoint and one monitor of the session pool. Each endpoint keeps its own
+ * channel, host log, duplicate detector and latency profiles from its
+ * {@code server.xml}. Per endpoint statistics are printed every
+ * {@code stats-interval} ms and when the host stops.
+ */
+public class HostLauncher {
+
+    public static final String DEFAULT_CONFIG = "src/main/resources/xml/host/host.xml";
+
+    private final List<HostEndpoint> endpoints = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> lastRequests = new HashMap<>();
+    private HostResources resources;
+    private Logger logger;
+    private LogListener consoleLog;
+    private MetricsHttpServer metricsServer;
+    private ScheduledExecutorService statsScheduler;
+    private long lastStatsAt;
+
+    public static void main(String[] args) {
+        try {
+            HostLauncher host = new HostLauncher();
+            host.start(args.length > 0 ? args[0] : DEFAULT_CONFIG);
+            Runtime.getRuntime().addShutdownHook(new Thread(host::stop, "host-shutdown"));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    public void start(String hostXml) throws Exception {
+        Configuration cfg = ChannelFactory.loadConfiguration(hostXml);
+        Element root = new SAXBuilder().build(new File(hostXml)).getRootElement();
+
+        logger = new Logger();
+        consoleLog = AsyncLogListener.forConfiguration("host-console-log", System.out, cfg);
+        logger.addListener(consoleLog);
+        resources = new HostResources("host", cfg);
+
+        try {
+            for (Element e : root.getChildren("endpoint")) {
+                String name = e.getAttributeValue("name");
+                HostEndpoint endpoint = new HostEndpoint(name, e.getAttributeValue("dialect", name),
+                        e.getAttributeValue("config"));
+                if (e.getAttributeValue("port") != null) {
+                    endpoint.setPort(Integer.parseInt(e.getAttributeValue("port")));
+                }
+                endpoint.setResources(resources);
+                endpoints.add(endpoint);
+                endpoint.start(logger);
+            }
+            if (endpoints.isEmpty()) {
+                throw new IllegalArgumentException("No <endpoint> in " + hostXml);
+            }
+        } catch (Exception e) {
+            // Leave nothing running from a host that did not start
+            for (HostEndpoint endpoint : endpoints) {
+                endpoint.stop();
+            }
+            endpoints.clear();
+            resources.close();
+            closeConsoleLog();
+            throw e;
+        }
+        resources.startSessionMonitor(this::sessionConnections);
+        metricsServer = MetricsHttpServer.forConfiguration(cfg);
+        System.out.println("Host started with " + endpoints.size() + " endpoints from " + hostXml);
+
+        lastStatsAt = System.nanoTime();
+        long interval = cfg.getLong("stats-interval", 10000);
+        if (interval > 0) {
+            statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "host-stats");
+                t.setDaemon(true);
+                return t;
+            });
+            statsScheduler.scheduleAtFixedRate(this::printStats, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        if (statsScheduler != null) {
+            statsScheduler.shutdownNow();
+        }
+        printStats();
+        for (HostEndpoint endpoint : endpoints) {
+            endpoint.stop();
+        }
+        endpoints.clear();
+        resources.close();
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        closeConsoleLog();
+    }
+
+    private void closeConsoleLog() {
+        logger.removeListener(consoleLog);
+        if (consoleLog instanceof AsyncLogListener) {
+            ((AsyncLogListener) consoleLog).close();
+        }
+    }
+
+    // Connections held by session pool threads, over all blocking endpoints
+    private int sessionConnections() {
+        int n = 0;
+        for (HostEndpoint endpoint : endpoints) {
+            if (endpoint.usesSessionPool()) {
+                n += endpoint.getConnectionCount();
+            }
+        }
+        return n;
+    }
+
+    public List<HostEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /** One line per endpoint: connections, requests and rate since the last report, in flight, declines, errors. */
+    public synchronized void printStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastStatsAt) / 1e9);
+        lastStatsAt = now;
+        System.out.println("--- Host endpoints ---");
+        for (HostEndpoint endpoint : endpoints) {
+            ServerMetrics metrics = endpoint.getMetrics();
+            long requests = metrics.getRequests();
+            Long last = lastRequests.put(endpoint.getName(), requests);
+            long responses = 0;
+            long approved = 0;
+            for (Map.Entry<String, Long> e : metrics.getResponsesByCode().entrySet()) {
+                responses += e.getValue();
+                if ("00".equals(e.getKey())) {
+                    approved = e.getValue();
+                }
+            }
+            System.out.println(String.format("%-8s port=%-5d connections=%-6d requests=%-9d tps=%-8.1f in-flight=%-5d"
+                    + " declined=%-7d errors=%d", endpoint.getName(), endpoint.getPort(),
+                    endpoint.getConnectionCount(), requests, (requests - (last != null ? last : 0)) / seconds,
+                    metrics.getInFlight(), responses - approved, metrics.getErrors()));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.jpos.simulator.server;
+
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.security.RemoteHsmAdapter;
+import com.jpos.simulator.server.dispatch.HsmStage;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import com.jpos.simulator.server.ledger.ReversalIndex;
+
+import org.jpos.core.Configuration;
+
+import java.util.function.IntSupplier;
+
+/**
+ * What the endpoints of one host share: the session pool of the blocking
+ * engine, the HSM and the stage running its checks, the account ledger and
+ * the reversal index. The pool is only created when the first blocking
+ * endpoint asks for it. Each ISOServer gets a {@link SharedSessionPool}
+ * view, so an endpoint that shuts down cannot close the pool under the
+ * others. The HSM is in-process unless {@code hsm-remote} points at an HSM
+ * server.
+ */
+public class HostResources {
+
+    private final String name;
+    private final Configuration cfg;
+    private final HsmSimulator hsm;
+    private final HsmStage hsmStage;
+    private final AccountLedger ledger;
+    private final ReversalIndex reversals;
+    @SuppressWarnings("deprecation")
+    private org.jpos.util.ThreadPool sessionPool;
+    @SuppressWarnings("deprecation")
+    private org.jpos.util.ThreadPool sharedView;
+    private SessionPoolMonitor monitor;
+
+    /**
+     * @param cfg pool sizing ({@link SessionPools}), {@code hsm-*},
+     *            {@code ledger*} and {@code reversal-*} properties
+     */
+    public HostResources(String name, Configuration cfg) {
+        this.name = name;
+        this.cfg = cfg;
+        RemoteHsmAdapter remote = RemoteHsmAdapter.forConfiguration(cfg);
+        this.hsm = remote != null ? remote : new HsmSimulator();
+        this.hsmStage = HsmStage.forConfiguration(name + "-hsm", cfg);
+        if (remote != null && hsmStage != null && hsmStage.getTimeout() > remote.getTimeout()) {
+            // The remote call would fail first, and the stage could never decline with 91 on time
+            hsmStage.stop();
+            remote.close();
+            throw new IllegalArgumentException("hsm-timeout (" + remote.getTimeout()
+                    + " ms) must be at least hsm-check-timeout (" + hsmStage.getTimeout() + " ms)");
+        }
+        this.ledger = AccountLedger.forConfiguration(cfg);
+        this.reversals = ReversalIndex.forConfiguration(cfg);
+    }
+
+    /** The pool for an ISOServer; closing it does not close the pool, {@link #close()} does. */
+    @SuppressWarnings("deprecation")
+    public synchronized org.jpos.util.ThreadPool getSessionPool() {
+        if (sessionPool == null) {
+            sessionPool = SessionPools.create(name + "-sessions", cfg);
+            sharedView = new SharedSessionPool(name + "-sessions-view", sessionPool);
+        }
+        return sharedView;
+    }
+
+    /**
+     * Starts the one saturation monitor of the session pool, if a blocking
+     * endpoint has created it; stopped by {@link #close()}.
+     *
+     * @param connections open connections of the endpoints using the pool
+     */
+    public synchronized void startSessionMonitor(IntSupplier connections) {
+        if (sessionPool != null && monitor == null) {
+            monitor = SessionPoolMonitor.start(name + "-sessions", sessionPool, connections, cfg);
+        }
+    }
+
+    public HsmSimulator getHsm() {
+        return hsm;
+    }
+
+    /** The HSM stage, or null when checks run on the session thread. */
+    public HsmStage getHsmStage() {
+        return hsmStage;
+    }
+
+    /** The ledger, or null when disabled. */
+    public AccountLedger getLedger() {
+        return ledger;
+    }
+
+    public ReversalIndex getReversals() {
+        return reversals;
+    }
+
+    /** Closes the session pool, stops the HSM threads and closes the connections of a remote HSM. */
+    public void close() {
+        synchronized (this) {
+            if (monitor != null) {
+                monitor.stop();
+                monitor = null;
+            }
+            if (sessionPool != null) {
+                sessionPool.close();
+            }
+        }
+        if (hsmStage != null) {
+            hsmStage.stop();
+        }
+        if (hsm instanceof RemoteHsmAdapter) {
+            ((RemoteHsmAdapter) hsm).close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.jpos.simulator.server;
+
+import org.jpos.core.Configuration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Samples an ISOServer session pool and reports saturation: a warning once
+ * busy sessions reach {@code pool-warn-percent} of {@code max-sessions}, and a
+ * louder one when the pool is exhausted. ISOServer then closes its listening
+ * socket until a session ends, so new connections are refused. A summary with
+ * the peak is printed when stopped.
+ */
+public class SessionPoolMonitor {
+
+    private final String name;
+    @SuppressWarnings("deprecation")
+    private final org.jpos.util.ThreadPool pool;
+    private final IntSupplier connections;
+    private final int warnPercent;
+    private final long intervalMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private int peakActive;
+    private int peakConnections;
+    private long busyMillis;
+    private long exhaustedMillis;
+    private boolean warned;
+
+    /** @param connections open connections of the servers using the pool */
+    @SuppressWarnings("deprecation")
+    public SessionPoolMonitor(String name, org.jpos.util.ThreadPool pool, IntSupplier connections, int warnPercent,
+            long intervalMillis) {
+        this.name = name;
+        this.pool = pool;
+        this.connections = connections;
+        this.warnPercent = warnPercent;
+        this.intervalMillis = intervalMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name + "-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Starts a monitor configured by {@code pool-warn-percent} (default 80) and
+     * {@code pool-monitor-interval} in milliseconds (default 1000, 0 disables).
+     */
+    @SuppressWarnings("deprecation")
+    public static SessionPoolMonitor start(String name, org.jpos.util.ThreadPool pool, IntSupplier connections,
+            Configuration cfg) {
+        long interval = cfg.getLong("pool-monitor-interval", 1000);
+        if (interval <= 0) {
+            return null;
+        }
+        SessionPoolMonitor monitor = new SessionPoolMonitor(name, pool, connections,
+                cfg.getInt("pool-warn-percent", 80), interval);
+        monitor.scheduler.scheduleAtFixedRate(monitor::check, interval, interval, TimeUnit.MILLISECONDS);
+        return monitor;
+    }
+
+    synchronized void check() {
+        int max = pool.getMaxPoolSize();
+        int active = pool.getActiveCount();
+        int open = connections.getAsInt();
+        boolean exhausted = pool.getIdleCount() == 0 && active >= max;
+        int percent = max > 0 ? (int) (100L * active / max) : 0;
+
+        peakActive = Math.max(peakActive, active);
+        peakConnections = Math.max(peakConnections, open);
+        if (exhausted) {
+            exhaustedMillis += intervalMillis;
+            System.out.println(name + ": SATURATED, all " + max + " sessions busy, new connections are refused"
+                    + " until one ends (raise max-sessions or use thread-mode=virtual)");
+            warned = true;
+        } else if (percent >= warnPercent) {
+            busyMillis += intervalMillis;
+            System.out.println(name + ": " + active + "/" + max + " sessions busy (" + percent + "%)");
+            warned = true;
+        } else if (warned) {
+            System.out.println(name + ": " + active + "/" + max + " sessions busy, below " + warnPercent + "% again");
+            warned = false;
+        }
+    }
+
+    public synchronized int getPeakActive() {
+        return peakActive;
+    }
+
+    public synchronized long getExhaustedMillis() {
+        return exhaustedMillis;
+    }
+
+    public synchronized void stop() {
+        scheduler.shutdownNow();
+        System.out.println(name + ": peak " + peakActive + "/" + pool.getMaxPoolSize() + " sessions, peak "
+                + peakConnections + " connections, " + busyMillis / 1000.0 + "s above " + warnPercent + "%, "
+                + exhaustedMillis / 1000.0 + "s saturated");
+    }
+}
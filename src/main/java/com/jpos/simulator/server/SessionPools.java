@@ -0,0 +1,35 @@
+package com.jpos.simulator.server;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOServer;
+
+/**
+ * Creates the session thread pool for an {@link ISOServer} from the server
+ * channel configuration. ISOServer runs every connection on a pool thread for
+ * the lifetime of the session, so {@code max-sessions} is also the maximum
+ * number of concurrent connections. When no session is free, ISOServer closes
+ * its listening socket until one ends, so further connections are refused
+ * rather than queued.
+ * <ul>
+ * <li>{@code thread-mode=virtual}: see {@link VirtualThreadPool}</li>
+ * <li>{@code min-sessions}: platform threads started up front (default 1)</li>
+ * <li>{@code max-sessions}: platform threads at most (default 100)</li>
+ * </ul>
+ */
+@SuppressWarnings("deprecation") // ThreadPool is deprecated but is what ISOServer 2.1 accepts
+public final class SessionPools {
+
+    private SessionPools() {
+    }
+
+    public static org.jpos.util.ThreadPool create(String name, Configuration cfg) {
+        org.jpos.util.ThreadPool pool = VirtualThreadPool.forConfiguration(name, cfg);
+        if (pool != null) {
+            return pool;
+        }
+        int max = cfg.getInt("max-sessions", ISOServer.DEFAULT_MAX_THREADS);
+        int min = Math.min(cfg.getInt("min-sessions", 1), max);
+        System.out.println(name + ": platform thread pool (min-sessions=" + min + ", max-sessions=" + max + ")");
+        return new org.jpos.util.ThreadPool(min, max, name);
+    }
+}
@@ -0,0 +1,72 @@
+package com.jpos.simulator.server;
+
+import org.jpos.util.BlockingQueue;
+
+import java.io.PrintStream;
+
+/**
+ * The view of a host's session pool handed to each ISOServer. ISOServer
+ * closes its pool when it shuts down; this view ignores that, so stopping one
+ * endpoint leaves the sessions of the others running. {@link HostResources}
+ * closes the real pool.
+ */
+@SuppressWarnings("deprecation")
+final class SharedSessionPool extends org.jpos.util.ThreadPool {
+
+    private final org.jpos.util.ThreadPool pool;
+
+    SharedSessionPool(String name, org.jpos.util.ThreadPool pool) {
+        super(0, pool.getMaxPoolSize(), name);
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable action) throws BlockingQueue.Closed {
+        pool.execute(action);
+    }
+
+    @Override
+    public void close() {
+        // The pool belongs to the host resources
+    }
+
+    @Override
+    public int getJobCount() {
+        return pool.getJobCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return pool.getMaxPoolSize();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return pool.getIdleCount();
+    }
+
+    @Override
+    public int getAvailableCount() {
+        return pool.getAvailableCount();
+    }
+
+    @Override
+    public int getPendingCount() {
+        return pool.getPendingCount();
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        pool.dump(p, indent);
+    }
+}
@@ -0,0 +1,116 @@
+package com.jpos.simulator.server;
+
+import com.jpos.simulator.core.VirtualThreads;
+
+import org.jpos.core.Configuration;
+import org.jpos.util.BlockingQueue;
+
+import java.io.PrintStream;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link org.jpos.util.ThreadPool} for {@link org.jpos.iso.ISOServer} that runs every session
+ * on its own virtual thread instead of a pooled platform thread, so thousands
+ * of mostly idle terminal connections do not need thousands of OS threads.
+ * <p>
+ * ISOServer only accepts while the pool reports idle capacity, so
+ * {@code max-sessions} still bounds the number of connections.
+ */
+@SuppressWarnings("deprecation")
+public class VirtualThreadPool extends org.jpos.util.ThreadPool {
+
+    public static final int DEFAULT_MAX_SESSIONS = 100000;
+
+    private final ThreadFactory factory;
+    private final int maxSessions;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger jobs = new AtomicInteger();
+    private volatile boolean closed;
+
+    public VirtualThreadPool(String name, int maxSessions) {
+        super(0, maxSessions, name);
+        this.factory = VirtualThreads.newThreadFactory(name + "-");
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Returns a virtual thread pool when the channel configuration asks for
+     * {@code thread-mode=virtual} and the runtime supports it, otherwise null so
+     * ISOServer creates its default platform thread pool.
+     */
+    public static org.jpos.util.ThreadPool forConfiguration(String name, Configuration cfg) {
+        if (!"virtual".equalsIgnoreCase(cfg.get("thread-mode"))) {
+            return null;
+        }
+        if (!VirtualThreads.isSupported()) {
+            System.out.println("thread-mode=virtual needs Java 21 or newer, using platform threads");
+            return null;
+        }
+        int maxSessions = cfg.getInt("max-sessions", DEFAULT_MAX_SESSIONS);
+        System.out.println(name + ": virtual thread per session (max-sessions=" + maxSessions + ")");
+        return new VirtualThreadPool(name, maxSessions);
+    }
+
+    @Override
+    public void execute(Runnable action) throws BlockingQueue.Closed {
+        if (closed) {
+            throw new BlockingQueue.Closed();
+        }
+        active.incrementAndGet();
+        jobs.incrementAndGet();
+        factory.newThread(() -> {
+            try {
+                action.run();
+            } finally {
+                active.decrementAndGet();
+            }
+        }).start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public int getJobCount() {
+        return jobs.get();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return active.get();
+    }
+
+    @Override
+    public int getMaxPoolSize() {
+        return maxSessions;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleCount() {
+        return getAvailableCount();
+    }
+
+    @Override
+    public int getAvailableCount() {
+        return Math.max(0, maxSessions - active.get());
+    }
+
+    @Override
+    public int getPendingCount() {
+        return 0;
+    }
+
+    @Override
+    public void dump(PrintStream p, String indent) {
+        p.println(indent + "<virtual-thread-pool active=\"" + active.get() + "\" max=\"" + maxSessions
+                + "\" jobs=\"" + jobs.get() + "\"/>");
+    }
+}
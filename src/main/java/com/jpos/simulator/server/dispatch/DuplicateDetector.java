@@ -0,0 +1,301 @@
+package com.jpos.simulator.server.dispatch;
+
+import com.jpos.simulator.core.RequestSource;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recognises retransmitted requests (same MTI, DE 41, DE 11 and DE 7) and
+ * answers them with the response of the first transmission instead of
+ * processing them again.
+ * <p>
+ * Keys are packed into three longs and kept in preallocated open-addressing
+ * arrays, split into segments with their own lock. A lookup probes at most
+ * {@value #PROBES} slots; entries older than the window are reused in place,
+ * and when every probed slot is live the oldest one is overwritten. Memory is
+ * fixed by the capacity and the cost of a lookup does not depend on the
+ * traffic: above capacity / window TPS the window just gets shorter.
+ */
+public class DuplicateDetector {
+
+    public static final long DEFAULT_WINDOW = 60000L;
+    public static final int DEFAULT_CAPACITY = 262144;
+
+    private static final int SEGMENTS = 64;
+    private static final int PROBES = 8;
+    // Retransmissions held per unanswered request; further ones are given up
+    private static final int MAX_WAITING = 16;
+
+    /**
+     * The first transmission of a request: its response once sent or
+     * withheld, and retransmissions waiting for it. A response that was built
+     * but never sent is kept all the same, since the request has already been
+     * posted. Only a request that failed before its response was built is
+     * dropped: the waiting retransmissions are given up with it and the next
+     * one is processed as a new request.
+     */
+    private static final class Original {
+        private ISOMsg response;
+        private boolean dropped;
+        private List<ISOSource> waiting;
+
+        synchronized void responded(ISOMsg m) {
+            response = (ISOMsg) m.clone();
+            dropped = false;
+            if (waiting != null) {
+                for (ISOSource source : waiting) {
+                    replay(source, response);
+                }
+                waiting = null;
+            }
+        }
+
+        synchronized void dropped() {
+            if (response != null) {
+                return;
+            }
+            dropped = true;
+            if (waiting != null) {
+                for (ISOSource source : waiting) {
+                    RequestSource.noResponse(source);
+                }
+                waiting = null;
+            }
+        }
+
+        /**
+         * Sends the response now, or once the original has been answered.
+         *
+         * @return false when the original was dropped: the retransmission
+         *         takes its place and must be processed
+         */
+        synchronized boolean retransmitted(ISOSource source) {
+            if (response != null) {
+                replay(source, response);
+            } else if (dropped) {
+                dropped = false;
+                return false;
+            } else if (waiting != null && waiting.size() >= MAX_WAITING) {
+                RequestSource.noResponse(source);
+            } else {
+                if (waiting == null) {
+                    waiting = new ArrayList<>(1);
+                }
+                waiting.add(source);
+            }
+            return true;
+        }
+    }
+
+    private static final class Segment {
+        final long[] terminals;
+        final long[] dateTimes;
+        final long[] mtiStans;
+        final long[] expiresAt;
+        final Original[] originals;
+
+        Segment(int size) {
+            terminals = new long[size];
+            dateTimes = new long[size];
+            mtiStans = new long[size];
+            expiresAt = new long[size];
+            originals = new Original[size];
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int slotMask;
+    private final long windowNanos;
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * @param windowMillis how long a request is remembered
+     * @param capacity     requests remembered at most, rounded up to a power of two
+     */
+    public DuplicateDetector(long windowMillis, int capacity) {
+        int perSegment = Math.max(PROBES, Integer.highestOneBit(Math.max(2, capacity / SEGMENTS) - 1) << 1);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.slotMask = perSegment - 1;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    }
+
+    /**
+     * The detector sized by {@code duplicate-window} and
+     * {@code duplicate-capacity}, or null when the window is 0.
+     */
+    public static DuplicateDetector forConfiguration(Configuration cfg) {
+        long window = cfg.getLong("duplicate-window", DEFAULT_WINDOW);
+        return window > 0 ? new DuplicateDetector(window, cfg.getInt("duplicate-capacity", DEFAULT_CAPACITY)) : null;
+    }
+
+    /**
+     * Checks a request before it is dispatched.
+     *
+     * @return null when the request is a retransmission, which has been (or,
+     *         once the original is answered, will be) answered from the first
+     *         response; otherwise the source to process it with, which
+     *         remembers the response, sent or withheld. A retransmission of a
+     *         request that failed before its response was built is processed
+     *         again.
+     */
+    public ISOSource filter(ISOSource source, ISOMsg m) {
+        String tid = m.getString(41);
+        long terminal = tid != null ? pack(tid) : -1;
+        long dateTime = digits(m.getString(7), 10);
+        long mti = digits(m.getString(0), 4);
+        long stan = digits(m.getString(11), 6);
+        if (terminal < 0 || dateTime < 0 || mti < 0 || stan < 0) {
+            return source; // not a key we can track
+        }
+        long mtiStan = mti * 1000000L + stan;
+
+        long h = (terminal * 0x9E3779B97F4A7C15L ^ dateTime) * 0xC2B2AE3D27D4EB4FL ^ mtiStan;
+        h ^= h >>> 31;
+        Segment segment = segments[(int) (h >>> 58) & (SEGMENTS - 1)];
+        int start = (int) h & slotMask;
+        long now = System.nanoTime();
+
+        Original found = null;
+        Original created = null;
+        synchronized (segment) {
+            int free = -1;
+            int oldest = -1;
+            for (int p = 0; p < PROBES; p++) {
+                int i = (start + p) & slotMask;
+                Original o = segment.originals[i];
+                if (o == null || segment.expiresAt[i] - now <= 0) {
+                    if (free < 0) {
+                        free = i;
+                    }
+                    if (o == null) {
+                        break; // slots are never emptied, so the key cannot be further on
+                    }
+                } else if (segment.terminals[i] == terminal && segment.dateTimes[i] == dateTime
+                        && segment.mtiStans[i] == mtiStan) {
+                    found = o;
+                    break;
+                } else if (oldest < 0 || segment.expiresAt[i] - segment.expiresAt[oldest] < 0) {
+                    oldest = i;
+                }
+            }
+            if (found == null) {
+                int i = free >= 0 ? free : oldest;
+                if (free < 0) {
+                    evicted.increment();
+                }
+                created = new Original();
+                segment.terminals[i] = terminal;
+                segment.dateTimes[i] = dateTime;
+                segment.mtiStans[i] = mtiStan;
+                segment.expiresAt[i] = now + windowNanos;
+                segment.originals[i] = created;
+            }
+        }
+        if (found != null) {
+            if (!found.retransmitted(source)) {
+                return new RecordingSource(source, found);
+            }
+            replayed.increment();
+            return null;
+        }
+        return new RecordingSource(source, created);
+    }
+
+    /** Retransmissions answered from a remembered response. */
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    /** Live requests overwritten before their window ended because the table was full. */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    private static final class RecordingSource implements RequestSource {
+        private final ISOSource source;
+        private final Original original;
+
+        RecordingSource(ISOSource source, Original original) {
+            this.source = source;
+            this.original = original;
+        }
+
+        @Override
+        public void send(ISOMsg m) throws IOException, ISOException {
+            original.responded(m);
+            source.send(m);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return source.isConnected();
+        }
+
+        @Override
+        public void withheld(ISOMsg m) {
+            original.responded(m);
+            RequestSource.withheld(source, m);
+        }
+
+        @Override
+        public void noResponse() {
+            original.dropped();
+            RequestSource.noResponse(source);
+        }
+    }
+
+    private static void replay(ISOSource source, ISOMsg response) {
+        try {
+            if (source.isConnected()) {
+                source.send((ISOMsg) response.clone());
+            } else {
+                RequestSource.noResponse(source);
+            }
+        } catch (IOException | ISOException e) {
+            System.err.println("Duplicate: failed to replay response: " + e.getMessage());
+        }
+    }
+
+    // Up to 8 ASCII characters in one long, -1 for longer or non-ASCII values
+    private static long pack(String s) {
+        if (s.length() > 8) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0x7F) {
+                return -1;
+            }
+            value = value << 8 | c;
+        }
+        return value;
+    }
+
+    private static long digits(String s, int maxLength) {
+        if (s == null || s.isEmpty() || s.length() > maxLength) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
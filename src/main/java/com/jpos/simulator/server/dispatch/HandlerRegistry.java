@@ -0,0 +1,177 @@
+package com.jpos.simulator.server.dispatch;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Routes requests to {@link RequestHandler}s by MTI and, optionally, by the
+ * code carried in one field of that MTI (processing code DE 3, function code
+ * DE 24 or network management code DE 70).
+ * <p>
+ * Routes live in a table indexed by the numeric MTI, and the codes of each MTI
+ * are kept as a sorted int array, so resolving a message parses two numbers and
+ * does one binary search without building any strings. Registration copies the
+ * table, so handlers can be added while the server is running.
+ */
+public class HandlerRegistry {
+
+    /** A registered handler and the transaction name it was registered with. */
+    public static final class Route {
+        private final String name;
+        private final RequestHandler handler;
+
+        Route(String name, RequestHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public RequestHandler getHandler() {
+            return handler;
+        }
+    }
+
+    private static final int MTI_COUNT = 10000;
+
+    private final Route unknown;
+    private volatile MtiRoutes[] table = new MtiRoutes[MTI_COUNT];
+
+    /** @param unknownHandler handles requests no route matches */
+    public HandlerRegistry(RequestHandler unknownHandler) {
+        this.unknown = new Route("Unknown", unknownHandler);
+    }
+
+    /** Routes every request of the MTI that no code-specific route matches. */
+    public synchronized HandlerRegistry register(String mti, String name, RequestHandler handler) {
+        int index = mtiIndex(mti);
+        MtiRoutes routes = table[index];
+        MtiRoutes updated = routes != null
+                ? new MtiRoutes(routes.codeField, routes.codes, routes.routes, new Route(name, handler))
+                : new MtiRoutes(-1, new int[0], new Route[0], new Route(name, handler));
+        publish(index, updated);
+        return this;
+    }
+
+    /**
+     * Routes requests of the MTI whose {@code codeField} holds {@code code}. All
+     * code routes of one MTI must use the same field.
+     */
+    public synchronized HandlerRegistry register(String mti, int codeField, String code, String name,
+            RequestHandler handler) {
+        int index = mtiIndex(mti);
+        int value = parseCode(code);
+        if (value < 0) {
+            throw new IllegalArgumentException("Code must be numeric: " + code);
+        }
+        MtiRoutes routes = table[index];
+        if (routes != null && routes.codeField >= 0 && routes.codeField != codeField) {
+            throw new IllegalArgumentException("MTI " + mti + " is already routed on field " + routes.codeField);
+        }
+        int[] codes = routes != null ? routes.codes : new int[0];
+        Route[] byCode = routes != null ? routes.routes : new Route[0];
+
+        int pos = Arrays.binarySearch(codes, value);
+        if (pos >= 0) {
+            byCode = byCode.clone();
+            byCode[pos] = new Route(name, handler);
+        } else {
+            pos = -pos - 1;
+            int[] newCodes = new int[codes.length + 1];
+            Route[] newRoutes = new Route[codes.length + 1];
+            System.arraycopy(codes, 0, newCodes, 0, pos);
+            System.arraycopy(byCode, 0, newRoutes, 0, pos);
+            newCodes[pos] = value;
+            newRoutes[pos] = new Route(name, handler);
+            System.arraycopy(codes, pos, newCodes, pos + 1, codes.length - pos);
+            System.arraycopy(byCode, pos, newRoutes, pos + 1, codes.length - pos);
+            codes = newCodes;
+            byCode = newRoutes;
+        }
+        publish(index, new MtiRoutes(codeField, codes, byCode, routes != null ? routes.fallback : null));
+        return this;
+    }
+
+    /** The route for the request, or the unknown route when nothing matches. */
+    public Route resolve(ISOMsg m) {
+        int mti = parseMti(m.getString(0));
+        if (mti < 0) {
+            return unknown;
+        }
+        MtiRoutes routes = table[mti];
+        if (routes == null) {
+            return unknown;
+        }
+        if (routes.codeField >= 0) {
+            int code = parseCode(m.getString(routes.codeField));
+            if (code >= 0) {
+                int pos = Arrays.binarySearch(routes.codes, code);
+                if (pos >= 0) {
+                    return routes.routes[pos];
+                }
+            }
+        }
+        return routes.fallback != null ? routes.fallback : unknown;
+    }
+
+    public void dispatch(ISOSource source, ISOMsg m) throws ISOException, IOException {
+        resolve(m).getHandler().handle(source, m);
+    }
+
+    private void publish(int index, MtiRoutes routes) {
+        MtiRoutes[] copy = table.clone();
+        copy[index] = routes;
+        table = copy;
+    }
+
+    private static int mtiIndex(String mti) {
+        int index = parseMti(mti);
+        if (index < 0) {
+            throw new IllegalArgumentException("MTI must be 4 digits: " + mti);
+        }
+        return index;
+    }
+
+    private static int parseMti(String mti) {
+        if (mti == null || mti.length() != 4) {
+            return -1;
+        }
+        return parseCode(mti);
+    }
+
+    // Non-negative value of a string of at most 9 digits, -1 otherwise
+    private static int parseCode(String s) {
+        if (s == null || s.isEmpty() || s.length() > 9) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static final class MtiRoutes {
+        final int codeField;
+        final int[] codes;
+        final Route[] routes;
+        final Route fallback;
+
+        MtiRoutes(int codeField, int[] codes, Route[] routes, Route fallback) {
+            this.codeField = codeField;
+            this.codes = codes;
+            this.routes = routes;
+            this.fallback = fallback;
+        }
+    }
+}
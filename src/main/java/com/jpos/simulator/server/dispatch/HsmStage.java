@@ -0,0 +1,251 @@
+package com.jpos.simulator.server.dispatch;
+
+import com.jpos.simulator.core.HashedTimerWheel;
+import com.jpos.simulator.core.RequestSource;
+import com.jpos.simulator.security.HsmUnavailableException;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the HSM checks of financial requests off the session thread or event
+ * loop. A request is parsed by its listener, its PIN and CVV checks run on a
+ * fixed pool of HSM threads, and the handler that completes it (ledger,
+ * response) runs on the same HSM thread once the checks pass. A slow HSM
+ * therefore only holds up the requests waiting for it, not the next message
+ * on the connection.
+ * <p>
+ * At most {@code capacity} checks are queued or running; requests beyond that
+ * are declined at once with {@value #REJECTED}. A request whose checks have
+ * not finished after the timeout is declined with {@value #TIMED_OUT}; the
+ * check keeps its slot until it really ends, so a stuck HSM fills the stage
+ * instead of piling up work behind it. A request whose check or handler
+ * throws before a response went out is declined with {@value #REJECTED}, so
+ * the terminal is always answered.
+ */
+public class HsmStage {
+
+    /** Response code for a request the stage has no room for, or whose processing failed. */
+    public static final String REJECTED = "96";
+    /** Response code for a request whose HSM checks took longer than the timeout. */
+    public static final String TIMED_OUT = "91";
+
+    /** The HSM checks of one request. */
+    @FunctionalInterface
+    public interface Check {
+        /** @return null when the request passes, otherwise the response code to decline it with */
+        String verify(ISOMsg m);
+    }
+
+    /** Sends the response declining a request. */
+    @FunctionalInterface
+    public interface Decline {
+        void decline(ISOSource source, ISOMsg m, String responseCode) throws ISOException, IOException;
+    }
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final int capacity;
+    private final HashedTimerWheel wheel;
+    // Sends the timeout declines, so neither the wheel thread nor a stuck HSM thread holds them up
+    private final ExecutorService declines;
+    private final long timeout;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param threads  HSM threads
+     * @param capacity checks queued or running at most
+     * @param timeout  ms before a request is declined with {@value #TIMED_OUT}, 0 = no limit
+     */
+    public HsmStage(String name, int threads, int capacity, long timeout) {
+        AtomicInteger n = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.slots = new Semaphore(capacity);
+        this.capacity = capacity;
+        this.timeout = timeout;
+        this.wheel = timeout > 0 ? new HashedTimerWheel(name + "-timeouts", 1, 4096) : null;
+        AtomicInteger d = new AtomicInteger();
+        this.declines = timeout > 0 ? Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, name + "-declines-" + d.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    /**
+     * The stage sized by {@code hsm-threads} (default 8), {@code hsm-queue}
+     * (default 1024) and {@code hsm-check-timeout} (ms, default 2500), or null
+     * when {@code hsm-threads} is 0 and checks run on the session thread.
+     */
+    public static HsmStage forConfiguration(String name, Configuration cfg) {
+        int threads = cfg.getInt("hsm-threads", 8);
+        return threads > 0
+                ? new HsmStage(name, threads, cfg.getInt("hsm-queue", 1024), cfg.getLong("hsm-check-timeout", 2500))
+                : null;
+    }
+
+    /**
+     * Runs {@code check} on an HSM thread, then {@code next} when it passes
+     * or {@code decline} with its response code when it does not. Returns at
+     * once; declines with {@value #REJECTED} on the calling thread when the
+     * stage is full.
+     */
+    public void submit(ISOSource source, ISOMsg m, Check check, RequestHandler next, Decline decline)
+            throws ISOException, IOException {
+        if (!slots.tryAcquire()) {
+            rejected.increment();
+            decline.decline(source, m, REJECTED);
+            return;
+        }
+        AtomicBoolean answered = new AtomicBoolean();
+        try {
+            executor.execute(() -> {
+                Reply reply = null;
+                try {
+                    String responseCode = check.verify(m);
+                    if (answered.compareAndSet(false, true)) {
+                        if (responseCode != null) {
+                            decline.decline(source, m, responseCode);
+                        } else {
+                            reply = new Reply(source);
+                            next.handle(reply, m);
+                        }
+                    }
+                } catch (ISOException | IOException | RuntimeException e) {
+                    System.err.println("HSM stage: request STAN=" + m.getString(11) + " failed: " + e.getMessage());
+                    // Still unanswered: the check threw, or the handler threw before sending
+                    if (reply != null ? !reply.sent : answered.compareAndSet(false, true)) {
+                        failed.increment();
+                        sendDecline(decline, source, m, REJECTED);
+                    }
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            rejected.increment();
+            decline.decline(source, m, REJECTED);
+            return;
+        }
+        submitted.increment();
+        if (wheel != null) {
+            wheel.schedule(() -> {
+                if (answered.compareAndSet(false, true)) {
+                    timedOut.increment();
+                    try {
+                        declines.execute(() -> sendDecline(decline, source, m, TIMED_OUT));
+                    } catch (RejectedExecutionException e) {
+                        RequestSource.noResponse(source);
+                    }
+                }
+            }, timeout);
+        }
+    }
+
+    /**
+     * The response code for a request whose HSM check threw: {@value #TIMED_OUT}
+     * when the HSM could not be reached in time, {@value #REJECTED} otherwise.
+     * A check that cannot be made never approves.
+     */
+    public static String failureCode(Exception e) {
+        return e instanceof HsmUnavailableException ? TIMED_OUT : REJECTED;
+    }
+
+    private static void sendDecline(Decline decline, ISOSource source, ISOMsg m, String responseCode) {
+        try {
+            decline.decline(source, m, responseCode);
+        } catch (ISOException | IOException | RuntimeException e) {
+            System.err.println("HSM stage: cannot decline STAN=" + m.getString(11) + ": " + e.getMessage());
+            RequestSource.noResponse(source);
+        }
+    }
+
+    /** Requests handed to the HSM threads. */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /** Requests declined because the stage was full. */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /** Requests declined because their checks took too long. */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /** Requests declined because their check or handler threw. */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /** ms before a request still being checked is declined, 0 = no limit. */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /** Checks queued or running right now. */
+    public int getPending() {
+        return capacity - slots.availablePermits();
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        if (wheel != null) {
+            wheel.stop();
+            declines.shutdownNow();
+        }
+    }
+
+    // Tells whether the handler got as far as sending a response
+    private static final class Reply implements RequestSource {
+        private final ISOSource source;
+        volatile boolean sent;
+
+        Reply(ISOSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void send(ISOMsg m) throws IOException, ISOException {
+            sent = true;
+            source.send(m);
+        }
+
+        @Override
+        public void withheld(ISOMsg m) {
+            sent = true;
+            RequestSource.withheld(source, m);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return source.isConnected();
+        }
+
+        @Override
+        public void noResponse() {
+            RequestSource.noResponse(source);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.jpos.simulator.server.dispatch;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import java.io.IOException;
+
+/** Handles one type of request and sends the response back to the source. */
+@FunctionalInterface
+public interface RequestHandler {
+    void handle(ISOSource source, ISOMsg m) throws ISOException, IOException;
+}
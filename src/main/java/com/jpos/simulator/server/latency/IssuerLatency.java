@@ -0,0 +1,205 @@
+package com.jpos.simulator.server.latency;
+
+import com.jpos.simulator.core.HashedTimerWheel;
+import com.jpos.simulator.core.RequestSource;
+
+import org.jdom2.Element;
+import org.jdom2.input.SAXBuilder;
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shapes server responses with issuer-like latency. Rules pick a
+ * {@link LatencyProfile} by MTI, processing code (DE 3) and BIN (PAN prefix);
+ * a delayed response is parked on a {@link HashedTimerWheel} and, when due,
+ * handed to a small pool of sender threads, so the session thread or event
+ * loop is released immediately instead of sleeping and a slow connection
+ * cannot hold up the wheel.
+ *
+ * <pre>
+ * &lt;issuer-latency tick-ms="1" send-threads="4"&gt;
+ *     &lt;profile name="issuer" type="normal" mean="500" stddev="80" no-response="0.001"/&gt;
+ *     &lt;rule mti="0200" proc="310000" profile="issuer"/&gt;
+ *     &lt;rule bin="4" profile="issuer"/&gt;
+ * &lt;/issuer-latency&gt;
+ * </pre>
+ *
+ * The first matching rule wins; requests matching no rule are answered at once.
+ */
+public class IssuerLatency {
+
+    private static final class Rule {
+        final String mti;
+        final String proc;
+        final String bin;
+        final LatencyProfile profile;
+
+        Rule(String mti, String proc, String bin, LatencyProfile profile) {
+            this.mti = mti;
+            this.proc = proc;
+            this.bin = bin;
+            this.profile = profile;
+        }
+
+        boolean matches(ISOMsg m) {
+            return (mti == null || mti.equals(m.getString(0)))
+                    && (proc == null || proc.equals(m.getString(3)))
+                    && (bin == null || m.hasField(2) && m.getString(2).startsWith(bin));
+        }
+    }
+
+    private final Rule[] rules;
+    private final HashedTimerWheel wheel;
+    private final ExecutorService senders;
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /** @param sendThreads threads sending the responses that are due */
+    public IssuerLatency(String name, List<Element> profiles, List<Element> rules, long tickMillis,
+            int sendThreads) {
+        Map<String, LatencyProfile> byName = new HashMap<>();
+        for (Element p : profiles) {
+            LatencyProfile profile = LatencyProfile.parse(p);
+            byName.put(profile.getName(), profile);
+        }
+        List<Rule> list = new ArrayList<>();
+        for (Element r : rules) {
+            LatencyProfile profile = byName.get(r.getAttributeValue("profile"));
+            if (profile == null) {
+                throw new IllegalArgumentException("Unknown latency profile: " + r.getAttributeValue("profile"));
+            }
+            list.add(new Rule(r.getAttributeValue("mti"), r.getAttributeValue("proc"), r.getAttributeValue("bin"),
+                    profile));
+        }
+        this.rules = list.toArray(new Rule[0]);
+        this.wheel = new HashedTimerWheel(name + "-latency", tickMillis, 1024);
+        AtomicInteger n = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(sendThreads, r -> {
+            Thread t = new Thread(r, name + "-latency-send-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static IssuerLatency load(String name, String xmlFile) throws Exception {
+        Element root = new SAXBuilder().build(new File(xmlFile)).getRootElement();
+        IssuerLatency latency = new IssuerLatency(name, root.getChildren("profile"), root.getChildren("rule"),
+                Long.parseLong(root.getAttributeValue("tick-ms", "1")),
+                Integer.parseInt(root.getAttributeValue("send-threads", "4")));
+        System.out.println(name + ": issuer latency profiles from " + xmlFile + " (" + latency.rules.length
+                + " rules)");
+        return latency;
+    }
+
+    /** The profiles file named by {@code latency-profiles}, or null when none is configured. */
+    public static IssuerLatency forConfiguration(String name, Configuration cfg) throws Exception {
+        String file = cfg.get("latency-profiles", "").trim();
+        return file.isEmpty() ? null : load(name, file);
+    }
+
+    /**
+     * The source the request's response should be sent through: the source
+     * itself when no rule applies, otherwise one that delays or drops it. A
+     * dropped response is passed on as {@link RequestSource#withheld withheld},
+     * so a retransmission is answered with it instead of being posted again.
+     */
+    public ISOSource shape(ISOSource source, ISOMsg request) {
+        for (Rule rule : rules) {
+            if (rule.matches(request)) {
+                long delay = rule.profile.sample();
+                return delay == 0 ? source : new DelayedSource(source, delay);
+            }
+        }
+        return source;
+    }
+
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public int getPending() {
+        return wheel.getPending();
+    }
+
+    public void stop() {
+        wheel.stop();
+        senders.shutdownNow();
+        System.out.println("Issuer latency: delayed " + delayed.sum() + ", not answered " + dropped.sum()
+                + ", send failures " + failed.sum());
+    }
+
+    private final class DelayedSource implements RequestSource {
+        private final ISOSource source;
+        private final long delay;
+
+        DelayedSource(ISOSource source, long delay) {
+            this.source = source;
+            this.delay = delay;
+        }
+
+        @Override
+        public void send(ISOMsg m) {
+            if (delay == LatencyProfile.NO_RESPONSE) {
+                dropped.increment();
+                RequestSource.withheld(source, m);
+                return;
+            }
+            delayed.increment();
+            // The wheel thread only hands the response over
+            wheel.schedule(() -> {
+                try {
+                    senders.execute(() -> deliver(m));
+                } catch (RejectedExecutionException e) {
+                    RequestSource.withheld(source, m);
+                }
+            }, delay);
+        }
+
+        private void deliver(ISOMsg m) {
+            try {
+                if (source.isConnected()) {
+                    source.send(m);
+                } else {
+                    RequestSource.withheld(source, m);
+                }
+            } catch (IOException | ISOException e) {
+                failed.increment();
+                RequestSource.withheld(source, m);
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return source.isConnected();
+        }
+
+        @Override
+        public void withheld(ISOMsg m) {
+            RequestSource.withheld(source, m);
+        }
+
+        @Override
+        public void noResponse() {
+            RequestSource.noResponse(source);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.jpos.simulator.server.latency;
+
+import org.jdom2.Element;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A distribution of issuer response delays, optionally with a share of
+ * requests that are never answered.
+ * <ul>
+ * <li>{@code fixed}: {@code delay} ms</li>
+ * <li>{@code normal}: {@code mean} and {@code stddev} ms, never negative</li>
+ * <li>{@code long-tail}: log-normal with the given {@code median} and {@code p99} ms</li>
+ * </ul>
+ * {@code no-response} is the probability (0 to 1) of dropping the response.
+ */
+public abstract class LatencyProfile {
+
+    /** Returned by {@link #sample()} when the request must not be answered. */
+    public static final long NO_RESPONSE = -1;
+
+    // z-score of the 99th percentile of a standard normal distribution
+    private static final double Z99 = 2.326348;
+
+    private final String name;
+    private final double noResponse;
+
+    protected LatencyProfile(String name, double noResponse) {
+        this.name = name;
+        this.noResponse = noResponse;
+    }
+
+    public static LatencyProfile parse(Element e) {
+        String name = e.getAttributeValue("name");
+        String type = e.getAttributeValue("type", "fixed");
+        double noResponse = Double.parseDouble(e.getAttributeValue("no-response", "0"));
+        switch (type) {
+        case "fixed":
+            return fixed(name, Long.parseLong(e.getAttributeValue("delay", "0")), noResponse);
+        case "normal":
+            return normal(name, Double.parseDouble(e.getAttributeValue("mean")),
+                    Double.parseDouble(e.getAttributeValue("stddev", "0")), noResponse);
+        case "long-tail":
+            return longTail(name, Double.parseDouble(e.getAttributeValue("median")),
+                    Double.parseDouble(e.getAttributeValue("p99")), noResponse);
+        default:
+            throw new IllegalArgumentException("Unknown latency profile type '" + type + "' in profile " + name);
+        }
+    }
+
+    public static LatencyProfile fixed(String name, long delay, double noResponse) {
+        return new LatencyProfile(name, noResponse) {
+            @Override
+            protected double delay(ThreadLocalRandom random) {
+                return delay;
+            }
+        };
+    }
+
+    public static LatencyProfile normal(String name, double mean, double stddev, double noResponse) {
+        return new LatencyProfile(name, noResponse) {
+            @Override
+            protected double delay(ThreadLocalRandom random) {
+                return mean + stddev * random.nextGaussian();
+            }
+        };
+    }
+
+    public static LatencyProfile longTail(String name, double median, double p99, double noResponse) {
+        if (median <= 0 || p99 < median) {
+            throw new IllegalArgumentException("long-tail profile " + name + " needs 0 < median <= p99");
+        }
+        double sigma = Math.log(p99 / median) / Z99;
+        return new LatencyProfile(name, noResponse) {
+            @Override
+            protected double delay(ThreadLocalRandom random) {
+                return median * Math.exp(sigma * random.nextGaussian());
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Delay in ms for the next response, or {@link #NO_RESPONSE}. */
+    public long sample() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (noResponse > 0 && random.nextDouble() < noResponse) {
+            return NO_RESPONSE;
+        }
+        return Math.max(0, Math.round(delay(random)));
+    }
+
+    protected abstract double delay(ThreadLocalRandom random);
+}
@@ -0,0 +1,229 @@
+package com.jpos.simulator.server.ledger;
+
+import com.jpos.simulator.card.CardInfo;
+import com.jpos.simulator.card.CardRepository;
+
+import org.jpos.core.Configuration;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory account balances of the host, keyed by PAN. Each account is
+ * opened on first use with the configured opening balance and the per
+ * transaction and daily limits of its card in {@link CardRepository}
+ * ({@code 0.00} or unknown cards: no limit).
+ * <p>
+ * Accounts live in a {@link ConcurrentHashMap} and every posting locks only
+ * its own account, so ISOServer sessions working on different cards never
+ * contend. Amounts are in minor units (DE 4).
+ * <ul>
+ * <li>{@code 12}: processing code the ledger does not post</li>
+ * <li>{@code 13}: amount missing or not numeric</li>
+ * <li>{@code 61}: amount above the per transaction limit or the remaining daily limit</li>
+ * <li>{@code 51}: balance too low</li>
+ * </ul>
+ */
+public class AccountLedger {
+
+    public static final String APPROVED = "00";
+    public static final String INVALID_TRANSACTION = "12";
+    public static final String INVALID_AMOUNT = "13";
+    public static final String INSUFFICIENT_FUNDS = "51";
+    public static final String EXCEEDS_LIMIT = "61";
+
+    public static final String PURCHASE = "000000";
+    public static final String WITHDRAWAL = "010000";
+    public static final String BALANCE_INQUIRY = "310000";
+    public static final String REFUND = "200000";
+
+    /** Outcome of a posting: the response code and the balance after it. */
+    public static final class Posting {
+        private final String responseCode;
+        private final long balance;
+
+        Posting(String responseCode, long balance) {
+            this.responseCode = responseCode;
+            this.balance = balance;
+        }
+
+        public String getResponseCode() {
+            return responseCode;
+        }
+
+        public boolean isApproved() {
+            return APPROVED.equals(responseCode);
+        }
+
+        public long getBalance() {
+            return balance;
+        }
+    }
+
+    private static final class Account {
+        final long perTxLimit;
+        final long dailyLimit;
+        long balance;
+        long spentToday;
+        long day;
+
+        Account(long balance, long perTxLimit, long dailyLimit) {
+            this.balance = balance;
+            this.perTxLimit = perTxLimit;
+            this.dailyLimit = dailyLimit;
+        }
+
+        synchronized Posting debit(long amount, long today) {
+            if (day != today) {
+                day = today;
+                spentToday = 0;
+            }
+            if (perTxLimit > 0 && amount > perTxLimit || dailyLimit > 0 && spentToday + amount > dailyLimit) {
+                return new Posting(EXCEEDS_LIMIT, balance);
+            }
+            if (amount > balance) {
+                return new Posting(INSUFFICIENT_FUNDS, balance);
+            }
+            balance -= amount;
+            spentToday += amount;
+            return new Posting(APPROVED, balance);
+        }
+
+        synchronized Posting credit(long amount) {
+            balance += amount;
+            return new Posting(APPROVED, balance);
+        }
+
+        // Undoes a debit, giving the amount back to today's limit as well
+        synchronized Posting restore(long amount, long today) {
+            balance += amount;
+            if (day == today) {
+                spentToday = Math.max(0, spentToday - amount);
+            }
+            return new Posting(APPROVED, balance);
+        }
+
+        // Undoes a credit; the money is taken back even if the balance goes negative
+        synchronized Posting takeBack(long amount) {
+            balance -= amount;
+            return new Posting(APPROVED, balance);
+        }
+
+        synchronized Posting inquiry() {
+            return new Posting(APPROVED, balance);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final CardRepository cards;
+    private final long openingBalance;
+
+    public AccountLedger(CardRepository cards, long openingBalance) {
+        this.cards = cards;
+        this.openingBalance = openingBalance;
+    }
+
+    /**
+     * The ledger described by the {@code ledger} ({@code true}/{@code false},
+     * default false) and {@code ledger-opening-balance} properties, or null
+     * when disabled.
+     */
+    public static AccountLedger forConfiguration(Configuration cfg) {
+        if (!"true".equalsIgnoreCase(cfg.get("ledger", "false").trim())) {
+            return null;
+        }
+        long opening = toMinorUnits(cfg.get("ledger-opening-balance", "5000.00"));
+        System.out.println("Account ledger: opening balance " + cfg.get("ledger-opening-balance", "5000.00"));
+        return new AccountLedger(CardRepository.getDefault(), opening);
+    }
+
+    /**
+     * Posts a financial request: balance inquiries only read the balance,
+     * refunds credit the account, purchases (and pre-auths) and withdrawals
+     * debit it. Any other processing code is declined without moving money.
+     */
+    public Posting authorize(String procCode, String pan, String amount) {
+        if (BALANCE_INQUIRY.equals(procCode)) {
+            return account(pan).inquiry();
+        }
+        if (!PURCHASE.equals(procCode) && !WITHDRAWAL.equals(procCode) && !REFUND.equals(procCode)) {
+            return new Posting(INVALID_TRANSACTION, 0);
+        }
+        long value = parseAmount(amount);
+        if (value <= 0) {
+            return new Posting(INVALID_AMOUNT, 0);
+        }
+        return REFUND.equals(procCode) ? account(pan).credit(value) : debit(pan, value);
+    }
+
+    public Posting debit(String pan, long amount) {
+        return account(pan).debit(amount, LocalDate.now().toEpochDay());
+    }
+
+    public Posting credit(String pan, long amount) {
+        return account(pan).credit(amount);
+    }
+
+    /** Undoes an approved {@link #authorize} of the same processing code, PAN and amount. */
+    public Posting reverse(String procCode, String pan, long amount) {
+        if (BALANCE_INQUIRY.equals(procCode)) {
+            return account(pan).inquiry();
+        }
+        return REFUND.equals(procCode) ? account(pan).takeBack(amount)
+                : account(pan).restore(amount, LocalDate.now().toEpochDay());
+    }
+
+    public long getBalance(String pan) {
+        return account(pan).inquiry().getBalance();
+    }
+
+    /**
+     * DE 54 additional amount for the balance: account type (from DE 3),
+     * amount type 01 (ledger balance), currency, C/D and 12 digits.
+     */
+    public static String additionalAmount(String procCode, String currency, long balance) {
+        String accountType = procCode != null && procCode.length() >= 4 ? procCode.substring(2, 4) : "00";
+        return accountType + "01" + (currency != null ? currency : "840") + (balance < 0 ? 'D' : 'C')
+                + String.format("%012d", Math.abs(balance));
+    }
+
+    private Account account(String pan) {
+        String key = pan != null ? pan : "";
+        Account account = accounts.get(key);
+        return account != null ? account : accounts.computeIfAbsent(key, this::open);
+    }
+
+    private Account open(String pan) {
+        CardInfo card = cards != null ? cards.findByPan(pan) : null;
+        if (card == null) {
+            return new Account(openingBalance, 0, 0);
+        }
+        return new Account(openingBalance, toMinorUnits(card.getPerTxLimit()), toMinorUnits(card.getDailyLimit()));
+    }
+
+    static long parseAmount(String amount) {
+        if (amount == null || amount.isEmpty() || amount.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < amount.length(); i++) {
+            char c = amount.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // "2000.00" -> 200000; blank or malformed -> 0 (no limit)
+    static long toMinorUnits(String decimal) {
+        try {
+            return decimal == null || decimal.trim().isEmpty() ? 0
+                    : new BigDecimal(decimal.trim()).movePointRight(2).longValue();
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.jpos.simulator.server.ledger;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOMsg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Approved authorizations that can still be reversed, keyed by their original
+ * data elements: MTI, STAN (DE 11), transmission date and time (DE 7) and
+ * acquirer ID (DE 32), the first 31 digits of a reversal's DE 90, plus the
+ * terminal (DE 41) and merchant (DE 42). Every terminal runs its own STAN
+ * sequence, so the terminal is part of the key; a reversal is matched with its
+ * own DE 41 and DE 42, and its PAN and amount must be those of the original.
+ * The key is packed into longs, so an entry holds no key strings.
+ * <p>
+ * Entries are kept in two generations of a {@link ConcurrentHashMap}: new
+ * authorizations go to the current one, lookups check both, and when the
+ * current generation is half the window old or holds half of
+ * {@code maxEntries} it becomes the previous one and the old previous
+ * generation is dropped as a whole. Lookups stay O(1), memory is bounded by
+ * {@code maxEntries} and nothing scans for expired entries.
+ * <ul>
+ * <li>{@code 00}: original found and undone in the ledger</li>
+ * <li>{@code 00}: original already reversed (duplicate), nothing is posted again</li>
+ * <li>{@code 25}: original unknown, declined, older than the window (late reversal), or with
+ * another PAN or amount</li>
+ * <li>{@code 30}: DE 90 missing or malformed</li>
+ * </ul>
+ */
+public class ReversalIndex {
+
+    public static final String UNKNOWN_ORIGINAL = "25";
+    public static final String FORMAT_ERROR = "30";
+
+    public static final long DEFAULT_WINDOW = 3600000L;
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+
+    private static final class Key {
+        final long high; // MTI (4) + acquirer ID (11)
+        final long low;  // STAN (6) + transmission date and time (10)
+        final long terminal; // DE 41, 8 ASCII characters
+        final long merchantHigh; // DE 42, characters 1-8
+        final long merchantLow; // DE 42, characters 9-15
+
+        Key(long high, long low, long terminal, long merchantHigh, long merchantLow) {
+            this.high = high;
+            this.low = low;
+            this.terminal = terminal;
+            this.merchantHigh = merchantHigh;
+            this.merchantLow = merchantLow;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return k.high == high && k.low == low && k.terminal == terminal && k.merchantHigh == merchantHigh
+                    && k.merchantLow == merchantLow;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = (high * 0x9E3779B97F4A7C15L ^ low) * 0xC2B2AE3D27D4EB4FL ^ terminal;
+            h = h * 0x9E3779B97F4A7C15L ^ merchantHigh ^ merchantLow * 31;
+            return (int) (h ^ h >>> 32);
+        }
+    }
+
+    private static final class Authorization {
+        final String procCode;
+        final String pan;
+        final long amount;
+        private boolean reversed;
+
+        Authorization(String procCode, String pan, long amount) {
+            this.procCode = procCode;
+            this.pan = pan;
+            this.amount = amount;
+        }
+
+        /** True for the first reversal only. */
+        synchronized boolean markReversed() {
+            if (reversed) {
+                return false;
+            }
+            reversed = true;
+            return true;
+        }
+    }
+
+    private static final class Generation {
+        final ConcurrentHashMap<Key, Authorization> entries = new ConcurrentHashMap<>();
+        final AtomicInteger size = new AtomicInteger();
+        final long startedAt;
+
+        Generation(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final long generationMillis;
+    private final int generationEntries;
+    private volatile Generation current;
+    private volatile Generation previous;
+    private final LongAdder reversed = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+
+    /**
+     * @param windowMillis how long an authorization can be reversed (at least half of it is guaranteed)
+     * @param maxEntries   authorizations kept at most
+     */
+    public ReversalIndex(long windowMillis, int maxEntries) {
+        this.generationMillis = Math.max(1, windowMillis / 2);
+        this.generationEntries = Math.max(1, maxEntries / 2);
+        this.current = new Generation(System.currentTimeMillis());
+    }
+
+    /** The index sized by the {@code reversal-window} and {@code reversal-max-entries} properties. */
+    public static ReversalIndex forConfiguration(Configuration cfg) {
+        return new ReversalIndex(cfg.getLong("reversal-window", DEFAULT_WINDOW),
+                cfg.getInt("reversal-max-entries", DEFAULT_MAX_ENTRIES));
+    }
+
+    /** Remembers an approved financial request so that it can be reversed. */
+    public void record(ISOMsg request) {
+        Key key = keyOf(request);
+        long amount = AccountLedger.parseAmount(request.getString(4));
+        if (key == null || amount < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Generation g = current;
+        if (now - g.startedAt >= generationMillis || g.size.get() >= generationEntries) {
+            g = rotate(g, now);
+        }
+        if (g.entries.put(key, new Authorization(request.getString(3), request.getString(2), amount)) == null) {
+            g.size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Finds the original of a reversal and undoes it in the ledger (if any).
+     *
+     * @return the response code for the reversal
+     */
+    public String reverse(ISOMsg reversal, AccountLedger ledger) {
+        Key key = parseKey(reversal.getString(90), reversal.getString(41), reversal.getString(42));
+        if (key == null) {
+            return FORMAT_ERROR;
+        }
+        Authorization original = find(key);
+        if (original == null || !original.pan.equals(reversal.getString(2))
+                || original.amount != AccountLedger.parseAmount(reversal.getString(4))) {
+            unknown.increment();
+            return UNKNOWN_ORIGINAL;
+        }
+        if (!original.markReversed()) {
+            duplicates.increment();
+            return AccountLedger.APPROVED;
+        }
+        if (ledger != null) {
+            ledger.reverse(original.procCode, original.pan, original.amount);
+        }
+        reversed.increment();
+        return AccountLedger.APPROVED;
+    }
+
+    public int size() {
+        Generation p = previous;
+        return current.size.get() + (p != null ? p.size.get() : 0);
+    }
+
+    public long getReversed() {
+        return reversed.sum();
+    }
+
+    public long getDuplicates() {
+        return duplicates.sum();
+    }
+
+    public long getUnknown() {
+        return unknown.sum();
+    }
+
+    private Authorization find(Key key) {
+        long now = System.currentTimeMillis();
+        Generation g = current;
+        if (now - g.startedAt < 2 * generationMillis) {
+            Authorization a = g.entries.get(key);
+            if (a != null) {
+                return a;
+            }
+        }
+        Generation p = previous;
+        return p != null && now - p.startedAt < 2 * generationMillis ? p.entries.get(key) : null;
+    }
+
+    private synchronized Generation rotate(Generation seen, long now) {
+        if (current != seen) {
+            return current; // rotated by another thread meanwhile
+        }
+        previous = seen;
+        current = new Generation(now);
+        return current;
+    }
+
+    // The same 31 digits the client puts at the start of DE 90
+    private static Key keyOf(ISOMsg m) {
+        String mti = m.getString(0);
+        String stan = m.getString(11);
+        String dateTime = m.getString(7);
+        if (mti == null || stan == null || dateTime == null || m.getString(2) == null) {
+            return null;
+        }
+        String acquirer = m.hasField(32) ? m.getString(32) : "";
+        return parseKey(mti + pad(stan, 6) + dateTime + pad(acquirer, 11), m.getString(41), m.getString(42));
+    }
+
+    private static String pad(String s, int length) {
+        StringBuilder sb = new StringBuilder(length).append(s);
+        while (sb.length() < length) {
+            sb.append('0');
+        }
+        return sb.toString();
+    }
+
+    private static Key parseKey(String f90, String terminalId, String merchantId) {
+        if (f90 == null || f90.length() < 31) {
+            return null;
+        }
+        long mti = digits(f90, 0, 4);
+        long stanDateTime = digits(f90, 4, 20);
+        long acquirer = digits(f90, 20, 31);
+        String tid = terminalId != null ? terminalId : "";
+        String mid = merchantId != null ? merchantId : "";
+        long terminal = pack(tid, 0, tid.length(), 8);
+        long merchantHigh = pack(mid, 0, Math.min(8, mid.length()), 8);
+        long merchantLow = pack(mid, Math.min(8, mid.length()), mid.length(), 7);
+        if (mti < 0 || stanDateTime < 0 || acquirer < 0 || terminal < 0 || merchantHigh < 0 || merchantLow < 0) {
+            return null;
+        }
+        return new Key(mti * 100000000000L + acquirer, stanDateTime, terminal, merchantHigh, merchantLow);
+    }
+
+    // Up to maxLength ASCII characters, one byte each
+    private static long pack(String s, int from, int to, int maxLength) {
+        if (to - from > maxLength) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c > 0x7F) {
+                return -1;
+            }
+            value = value << 8 | c;
+        }
+        return value;
+    }
+
+    private static long digits(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,42 @@
+package com.jpos.simulator.server.listener;
+
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.server.dispatch.DuplicateDetector;
+import com.jpos.simulator.server.dispatch.HandlerRegistry;
+import com.jpos.simulator.server.dispatch.HsmStage;
+import com.jpos.simulator.server.latency.IssuerLatency;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import com.jpos.simulator.server.ledger.ReversalIndex;
+import org.jpos.iso.ISORequestListener;
+
+/** A protocol listener of the host, configured with the stages and stores it shares with other endpoints. */
+public interface HostRequestListener extends ISORequestListener {
+
+    HandlerRegistry getRegistry();
+
+    void setTrace(boolean trace);
+
+    void setHsm(HsmSimulator hsm);
+
+    void setHsmStage(HsmStage hsmStage);
+
+    void setIssuerLatency(IssuerLatency issuerLatency);
+
+    void setLedger(AccountLedger ledger);
+
+    void setReversalIndex(ReversalIndex reversals);
+
+    void setDuplicateDetector(DuplicateDetector duplicates);
+
+    /** Creates the listener for a dialect ({@code iso87} or {@code iso93}). */
+    static HostRequestListener create(String dialect, String name) {
+        switch (dialect.toLowerCase()) {
+        case "iso87":
+            return new ISO87RequestListener(name);
+        case "iso93":
+            return new ISO93RequestListener(name);
+        default:
+            throw new IllegalArgumentException("Unknown dialect: " + dialect);
+        }
+    }
+}
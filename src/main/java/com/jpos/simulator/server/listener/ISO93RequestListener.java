@@ -2,126 +2,204 @@ package com.jpos.simulator.server.listener;
 
 import org.jpos.iso.ISOException;
 import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISORequestListener;
 import org.jpos.iso.ISOSource;
 
 import com.jpos.simulator.server.base.ISO93ResponseMessages;
 
+import com.jpos.simulator.metrics.LatencyRecorder;
+import com.jpos.simulator.metrics.ServerMetrics;
+import com.jpos.simulator.server.dispatch.DuplicateDetector;
+import com.jpos.simulator.server.dispatch.HandlerRegistry;
+import com.jpos.simulator.server.dispatch.HsmStage;
+import com.jpos.simulator.server.latency.IssuerLatency;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import com.jpos.simulator.server.ledger.ReversalIndex;
 import com.jpos.simulator.security.HsmSimulator;
 
 import java.io.IOException;
 
-public class ISO93RequestListener extends ISO93ResponseMessages implements ISORequestListener {
+public class ISO93RequestListener extends ISO93ResponseMessages implements HostRequestListener {
+
+    private final LatencyRecorder latency;
+    private final ServerMetrics metrics;
+
+    private final HandlerRegistry registry = new HandlerRegistry(this::sendUnknownResponse)
+            .register("1804", "Network Management", this::handleNetMgmt)
+            .register("1804", 24, "001", "Logon", this::handleNetMgmt)
+            .register("1804", 24, "002", "Logoff", this::handleNetMgmt)
+            .register("1804", 24, "161", "Key Exchange", this::handleKeyExchange)
+            .register("1804", 24, "801", "Echo", this::handleNetMgmt)
+            .register("1100", "Financial", this::handleFinancial)
+            .register("1100", 3, "000000", "Purchase / Pre-Authorization", this::handleFinancial)
+            .register("1100", 3, "310000", "Balance Inquiry", this::handleFinancial)
+            .register("1100", 3, "010000", "Withdrawal", this::handleFinancial)
+            .register("1100", 3, "200000", "Refund", this::handleFinancial)
+            .register("1420", "Reversal", this::handleReversal)
+            .register("1304", "Update Card Status", this::handleFileAction)
+            .register("1304", 91, "1", "Create Card", this::handleFileAction);
+
+    private volatile boolean trace;
+    private volatile HsmSimulator hsm = new HsmSimulator();
+    private volatile HsmStage hsmStage;
+    private volatile IssuerLatency issuerLatency;
+    private volatile AccountLedger ledger;
+    private volatile ReversalIndex reversals;
+    private volatile DuplicateDetector duplicates;
+
+    public ISO93RequestListener() {
+        this("iso93");
+    }
+
+    /** @param name endpoint name, latency and metrics are recorded as {@code <name>-server} */
+    public ISO93RequestListener(String name) {
+        this.latency = LatencyRecorder.get(name + "-server");
+        this.metrics = ServerMetrics.get(name + "-server");
+    }
+
+    /** Routes requests to handlers; register additional MTIs or codes here. */
+    public HandlerRegistry getRegistry() {
+        return registry;
+    }
 
-    private static HsmSimulator hsm = new HsmSimulator();
+    /** Prints a line per request to the console (off by default, the host log has every message). */
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
+    /** Verifies PVV and CVV; endpoints of one host share a single instance. */
+    public void setHsm(HsmSimulator hsm) {
+        this.hsm = hsm;
+    }
+
+    /** Runs PIN and CVV checks on the stage's HSM threads; null runs them on the session thread. */
+    public void setHsmStage(HsmStage hsmStage) {
+        this.hsmStage = hsmStage;
+    }
+
+    /** Delays or drops responses per issuer latency profile; null answers at once. */
+    public void setIssuerLatency(IssuerLatency issuerLatency) {
+        this.issuerLatency = issuerLatency;
+    }
+
+    /** Balances and limits for financial requests; null approves everything that passes the checks. */
+    public void setLedger(AccountLedger ledger) {
+        this.ledger = ledger;
+    }
+
+    /** Approved authorizations matched by reversals; null approves every reversal. */
+    public void setReversalIndex(ReversalIndex reversals) {
+        this.reversals = reversals;
+    }
+
+    /** Answers retransmitted requests with the first response; null processes every request. */
+    public void setDuplicateDetector(DuplicateDetector duplicates) {
+        this.duplicates = duplicates;
+    }
 
     @Override
     public boolean process(ISOSource source, ISOMsg m) {
+        ServerMetrics.Request request = metrics.start(source, m, latency);
         try {
-            String mti = m.getMTI();
-            System.out.println("ISO93 Received MTI: " + mti);
-
-            if (mti.equals("1804")) {
-                handleNetMgmt(source, m);
-            } else if (mti.equals("1100")) {
-                handleFinancial(source, m);
-            } else if (mti.equals("1420")) {
-                handleReversal(source, m);
-            } else if (mti.equals("1304")) {
-                handleFileAction(source, m);
-            } else {
-                System.out.println("ISO93 Unhandled MTI: " + mti);
-                sendUnknownResponse(source, m);
+            DuplicateDetector detector = duplicates;
+            ISOSource target = detector != null ? detector.filter(request, m) : request;
+            if (target == null) {
+                return true; // retransmission, answered with the original response
+            }
+            HandlerRegistry.Route route = registry.resolve(m);
+            if (trace) {
+                System.out.println("ISO93: Processing " + route.getName() + " MTI=" + m.getString(0) + " F3="
+                        + m.getString(3) + " F24=" + m.getString(24) + " STAN=" + m.getString(11) + " TID="
+                        + m.getString(41) + " MID=" + m.getString(42));
             }
+            IssuerLatency shaping = issuerLatency;
+            route.getHandler().handle(shaping != null ? shaping.shape(target, m) : target, m);
             return true;
-        } catch (ISOException | IOException e) {
+        } catch (ISOException | IOException | RuntimeException e) {
+            request.failed();
             e.printStackTrace();
             return false;
         }
     }
 
     private void handleNetMgmt(ISOSource source, ISOMsg m) throws ISOException, IOException {
-        String funcCode = m.getString(24);
-        String type = "Network Management";
-        if ("801".equals(funcCode))
-            type = "Echo";
-        else if ("001".equals(funcCode))
-            type = "Logon";
-        else if ("002".equals(funcCode))
-            type = "Logoff";
-        else if ("161".equals(funcCode))
-            type = "Key Exchange";
-
-        System.out.println("ISO93: Processing " + type + " (" + funcCode + ") STAN=" + m.getString(11) + "...");
+        source.send(createNetMgmtResponse(m, "00"));
+    }
+
+    private void handleKeyExchange(ISOSource source, ISOMsg m) throws ISOException, IOException {
         ISOMsg response = createNetMgmtResponse(m, "00");
-        if ("161".equals(funcCode)) {
-            response.set(48, "FEDCBA0987654321FEDCBA0987654321"); // Dummy response key
-        }
+        response.set(48, "FEDCBA0987654321FEDCBA0987654321"); // Dummy response key
         source.send(response);
     }
 
     private void handleFinancial(ISOSource source, ISOMsg m) throws ISOException, IOException {
-        String procCode = m.getString(3);
-        String funcCode = m.getString(24);
-        String type = "Financial";
-        if ("000000".equals(procCode)) {
-            if ("104".equals(funcCode))
-                type = "Pre-Authorization";
-            else
-                type = "Purchase";
-        } else if ("310000".equals(procCode)) {
-            type = "Balance Inquiry";
-        } else if ("010000".equals(procCode)) {
-            type = "Withdrawal";
-        } else if ("200000".equals(procCode)) {
-            type = "Refund";
+        HsmStage stage = hsmStage;
+        if (stage != null) {
+            stage.submit(source, m, this::verifyCard, this::authorize, this::decline);
+            return;
         }
+        String responseCode = verifyCard(m);
+        if (responseCode != null) {
+            decline(source, m, responseCode);
+        } else {
+            authorize(source, m);
+        }
+    }
 
-        System.out.println("ISO93: Processing " + type + " (F3=" + procCode + ", F24=" + funcCode + ") STAN="
-                + m.getString(11) + " TID=" + m.getString(41) + " MID=" + m.getString(42) + "...");
-
-        // CVV Validation
+    /** PIN and CVV checks: null when they pass, otherwise the response code to decline with. */
+    private String verifyCard(ISOMsg m) {
         String pan = m.getString(2);
         String f48 = m.getString(48);
         String expiry = m.getString(14); // YYMM
 
+        // CVV Validation
         if (f48 != null && f48.contains("CVV=")) {
             String cvv = f48.substring(f48.indexOf("CVV=") + 4).split("\\|")[0];
             try {
                 boolean cvvValid = hsm.verifyCVV(pan, null, null, "101", expiry, cvv);
+                metrics.hsm(ServerMetrics.Check.CVV, cvvValid ? ServerMetrics.Result.OK : ServerMetrics.Result.FAIL);
                 if (!cvvValid) {
                     System.out.println("ISO93: CVV Validation FAILED for PAN=" + pan);
-                    source.send(createFinancialResponse(m, "N7")); // CVV Failure
-                    return;
+                    return "N7"; // CVV Failure
                 }
-                System.out.println("ISO93: CVV Validation SUCCESS for PAN=" + pan);
             } catch (Exception e) {
                 System.err.println("ISO93: Error during CVV validation: " + e.getMessage());
+                metrics.hsm(ServerMetrics.Check.CVV, ServerMetrics.Result.ERROR);
+                return HsmStage.failureCode(e);
             }
         }
+        return null;
+    }
 
-        ISOMsg response = createFinancialResponse(m, "00");
-        if ("310000".equals(procCode)) {
-            response.set(54, "12345");
+    private void authorize(ISOSource source, ISOMsg m) throws ISOException, IOException {
+        String procCode = m.getString(3);
+        String pan = m.getString(2);
+
+        AccountLedger accounts = ledger;
+        AccountLedger.Posting posting = accounts != null ? accounts.authorize(procCode, pan, m.getString(4)) : null;
+        String responseCode = posting != null ? posting.getResponseCode() : "00";
+        ISOMsg response = createFinancialResponse(m, responseCode);
+        if (posting != null
+                && (posting.isApproved() || AccountLedger.INSUFFICIENT_FUNDS.equals(posting.getResponseCode()))) {
+            response.set(54, AccountLedger.additionalAmount(procCode, m.getString(49), posting.getBalance()));
+        }
+        ReversalIndex index = reversals;
+        if (index != null && "00".equals(responseCode) && !AccountLedger.BALANCE_INQUIRY.equals(procCode)) {
+            index.record(m);
         }
         source.send(response);
     }
 
+    private void decline(ISOSource source, ISOMsg m, String responseCode) throws ISOException, IOException {
+        source.send(createFinancialResponse(m, responseCode));
+    }
+
     private void handleReversal(ISOSource source, ISOMsg m) throws ISOException, IOException {
-        System.out.println("ISO93: Processing Reversal STAN=" + m.getString(11) + " TID=" + m.getString(41) + "...");
-        ISOMsg response = createResponse(m, "00");
-        source.send(response);
+        ReversalIndex index = reversals;
+        source.send(createResponse(m, index != null ? index.reverse(m, ledger) : "00"));
     }
 
     private void handleFileAction(ISOSource source, ISOMsg m) throws ISOException, IOException {
-        String updateCode = m.getString(91);
-        String fileName = m.getString(101);
-        String type = "1".equals(updateCode) ? "Create Card" : "Update Card Status";
-
-        System.out.println("ISO93: Processing " + type + " (F91=" + updateCode + ") File=" + fileName + " STAN="
-                + m.getString(11) + "...");
-        ISOMsg response = createFileActionResponse(m, "00");
-        source.send(response);
+        source.send(createFileActionResponse(m, "00"));
     }
 
     private void sendUnknownResponse(ISOSource source, ISOMsg m) throws ISOException, IOException {
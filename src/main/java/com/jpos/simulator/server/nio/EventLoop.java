@@ -0,0 +1,248 @@
+package com.jpos.simulator.server.nio;
+
+import org.jpos.util.LogEvent;
+import org.jpos.util.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread serving many {@link NioSession}s: it reads into one
+ * direct buffer, cuts complete frames using the server's {@link FrameCodec}
+ * and hands them to the server for dispatch. A connection left with a partial
+ * frame borrows a buffer from the pool until the frame is complete.
+ */
+class EventLoop implements Runnable {
+
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final NioServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer readBuffer;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    EventLoop(NioServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                NioSession session = new NioSession(server, this, channel, server.getLogger(),
+                        server.getRealm() + "/" + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+                channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                closeQuietly(channel);
+                server.closed();
+            }
+        });
+    }
+
+    void wantWrite(NioSession session) {
+        if (Thread.currentThread() == thread) {
+            enableWrite(session);
+        } else {
+            execute(() -> enableWrite(session));
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(IDLE_CHECK_MILLIS);
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        read(session);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(session, key);
+                    }
+                }
+                checkIdle();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close((NioSession) key.attachment());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    private void read(NioSession session) {
+        FrameCodec codec = server.getCodec();
+        int header = codec.getHeaderLength();
+        ByteBuffer buf = session.partial;
+        if (buf == null) {
+            buf = readBuffer;
+            buf.clear();
+        }
+        try {
+            if (session.getChannel().read(buf) < 0) {
+                close(session);
+                return;
+            }
+        } catch (IOException e) {
+            close(session);
+            return;
+        }
+        session.lastActivity = System.currentTimeMillis();
+        buf.flip();
+
+        int need = header;
+        while (buf.remaining() >= header) {
+            int length = codec.decode(buf);
+            if (length < 0) {
+                log(session, "error", "Invalid length header, closing");
+                close(session);
+                return;
+            }
+            if (buf.remaining() < header + length) {
+                need = header + length;
+                break;
+            }
+            buf.position(buf.position() + header);
+            if (length == 0) {
+                continue; // keep-alive
+            }
+            byte[] frame = new byte[length];
+            buf.get(frame);
+            server.dispatch(session, frame);
+            if (!session.isConnected()) {
+                return;
+            }
+        }
+
+        if (!buf.hasRemaining()) {
+            if (session.partial != null) {
+                server.getBufferPool().release(session.partial);
+                session.partial = null;
+            }
+        } else if (buf == readBuffer || buf.capacity() < need) {
+            // Keep the partial frame in a pooled buffer large enough for all of it
+            ByteBuffer keep = server.getBufferPool().acquire(need);
+            keep.put(buf);
+            if (session.partial != null) {
+                server.getBufferPool().release(session.partial);
+            }
+            session.partial = keep;
+        } else {
+            buf.compact();
+        }
+    }
+
+    private void flush(NioSession session, SelectionKey key) {
+        try {
+            if (session.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close(session);
+        }
+    }
+
+    private void enableWrite(NioSession session) {
+        SelectionKey key = session.getChannel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close(NioSession session) {
+        if (session == null || !session.getChannel().isOpen()) {
+            return;
+        }
+        if (Thread.currentThread() != thread) {
+            execute(() -> close(session));
+            return;
+        }
+        session.closed();
+        closeQuietly(session.getChannel());
+        if (session.partial != null) {
+            server.getBufferPool().release(session.partial);
+            session.partial = null;
+        }
+        server.closed();
+    }
+
+    private void checkIdle() {
+        long timeout = server.getIdleTimeoutMillis();
+        long now = System.currentTimeMillis();
+        if (timeout <= 0 || now - lastIdleCheck < IDLE_CHECK_MILLIS) {
+            return;
+        }
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            NioSession session = (NioSession) key.attachment();
+            if (session != null && now - session.lastActivity > timeout) {
+                log(session, "session-end", "idle timeout");
+                close(session);
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static void log(NioSession session, String tag, String message) {
+        if (session.getLogger() != null) {
+            Logger.log(new LogEvent(session, tag, message));
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
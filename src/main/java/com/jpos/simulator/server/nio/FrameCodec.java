@@ -0,0 +1,103 @@
+package com.jpos.simulator.server.nio;
+
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.PostChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefix of a message frame, read and written in the same format as
+ * the blocking jPOS channel it replaces.
+ */
+public abstract class FrameCodec {
+
+    private final int headerLength;
+
+    protected FrameCodec(int headerLength) {
+        this.headerLength = headerLength;
+    }
+
+    /** The codec matching the framing of an ASCIIChannel or PostChannel. */
+    public static FrameCodec forChannel(ISOChannel channel) {
+        if (channel instanceof ASCIIChannel) {
+            return new Ascii(((ASCIIChannel) channel).getLengthDigits());
+        } else if (channel instanceof PostChannel) {
+            return new Binary();
+        }
+        throw new IllegalArgumentException(channel.getClass().getSimpleName() + " framing is not supported by the NIO engine");
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * Reads the length prefix at the buffer's position without moving it.
+     * Returns -1 when the prefix is malformed.
+     */
+    public abstract int decode(ByteBuffer buf);
+
+    public abstract void encode(int length, byte[] target);
+
+    /** ASCIIChannel: length as decimal digits, e.g. {@code 0123}. */
+    public static class Ascii extends FrameCodec {
+        private final int max;
+
+        public Ascii(int digits) {
+            super(digits);
+            int m = 1;
+            for (int i = 0; i < digits; i++) {
+                m *= 10;
+            }
+            this.max = m - 1;
+        }
+
+        @Override
+        public int decode(ByteBuffer buf) {
+            int p = buf.position();
+            int length = 0;
+            for (int i = 0; i < getHeaderLength(); i++) {
+                int c = buf.get(p + i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                length = length * 10 + (c - '0');
+            }
+            return length;
+        }
+
+        @Override
+        public void encode(int length, byte[] target) {
+            if (length > max) {
+                throw new IllegalArgumentException("Message length " + length + " exceeds " + getHeaderLength() + " digits");
+            }
+            for (int i = getHeaderLength() - 1; i >= 0; i--) {
+                target[i] = (byte) ('0' + length % 10);
+                length /= 10;
+            }
+        }
+    }
+
+    /** PostChannel: length as a 2-byte unsigned big-endian integer. */
+    public static class Binary extends FrameCodec {
+        public Binary() {
+            super(2);
+        }
+
+        @Override
+        public int decode(ByteBuffer buf) {
+            int p = buf.position();
+            return (buf.get(p) & 0xFF) << 8 | buf.get(p + 1) & 0xFF;
+        }
+
+        @Override
+        public void encode(int length, byte[] target) {
+            if (length > 0xFFFF) {
+                throw new IllegalArgumentException("Message length " + length + " exceeds 2 bytes");
+            }
+            target[0] = (byte) (length >> 8);
+            target[1] = (byte) length;
+        }
+    }
+}
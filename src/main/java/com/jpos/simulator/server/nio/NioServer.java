@@ -0,0 +1,240 @@
+package com.jpos.simulator.server.nio;
+
+import org.jpos.core.Configuration;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOPackager;
+import org.jpos.iso.ISORequestListener;
+import org.jpos.util.LogEvent;
+import org.jpos.util.LogSource;
+import org.jpos.util.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking alternative to {@link org.jpos.iso.ISOServer}: one acceptor
+ * thread and a few {@link EventLoop}s serve every connection, instead of a
+ * thread per connection, so tens of thousands of terminals can stay connected.
+ * Frames use the length prefix of the configured channel (ASCIIChannel or
+ * PostChannel) and are unpacked with its packager before being handed to the
+ * usual {@link ISORequestListener}. Messages are logged as {@code receive} and
+ * {@code send} events under the same realms as the blocking channel.
+ * <p>
+ * Configured from the server channel XML:
+ * <ul>
+ * <li>{@code event-loops}: selector threads (default: available processors)</li>
+ * <li>{@code nio-workers}: threads running the request listener, 0 to run it
+ * on the event loop (default 0)</li>
+ * <li>{@code max-connections}: further connections are refused (default 100000)</li>
+ * <li>{@code max-write-queue}: bytes of responses a connection may have
+ * waiting for the socket; a client that stops reading is disconnected when
+ * it is exceeded (default 1048576)</li>
+ * <li>{@code backlog} and {@code timeout} (idle ms) as for the blocking server</li>
+ * </ul>
+ */
+public class NioServer implements LogSource {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 100000;
+    public static final int DEFAULT_MAX_WRITE_QUEUE = 1 << 20;
+
+    private final String name;
+    private final int port;
+    private final FrameCodec codec;
+    private final ISOPackager packager;
+    private final ISORequestListener listener;
+    private final BufferPool bufferPool = new BufferPool(8192, 4096);
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final int backlog;
+    private final int maxConnections;
+    private final int maxWriteQueue;
+    private final long idleTimeoutMillis;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    private Logger logger;
+    private String realm;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    public NioServer(String name, int port, ISOChannel channel, ISORequestListener listener, Configuration cfg)
+            throws IOException {
+        this.name = name;
+        this.port = port;
+        this.codec = FrameCodec.forChannel(channel);
+        this.packager = channel.getPackager();
+        this.listener = listener;
+        this.backlog = cfg.getInt("backlog", 1024);
+        this.maxConnections = cfg.getInt("max-connections", DEFAULT_MAX_CONNECTIONS);
+        this.maxWriteQueue = cfg.getInt("max-write-queue", DEFAULT_MAX_WRITE_QUEUE);
+        this.idleTimeoutMillis = cfg.getLong("timeout", 0);
+        this.realm = name;
+
+        int loopCount = cfg.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this, name + "-loop-" + i);
+        }
+        int workerCount = cfg.getInt("nio-workers", 0);
+        AtomicInteger workerIds = new AtomicInteger();
+        this.workers = workerCount <= 0 ? null : Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, name + "-worker-" + workerIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public synchronized void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        running = true;
+        // Not a daemon: like the ISOServer thread it keeps a standalone server running
+        acceptor = new Thread(this::accept, name + "-acceptor");
+        acceptor.start();
+        System.out.println(name + ": NIO engine, " + loops.length + " event loops, "
+                + (workers != null ? "listener on worker threads" : "listener on event loops")
+                + ", max-connections=" + maxConnections);
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        System.out.println(name + ": accepted " + accepted.get() + " connections, refused " + refused.get()
+                + ", peak " + peakConnections.get() + " concurrent");
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            accepted.incrementAndGet();
+            // Counted here, not once the event loop registers it, so a burst cannot overshoot the limit
+            int n = connections.incrementAndGet();
+            if (n > maxConnections) {
+                connections.decrementAndGet();
+                refused.incrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                continue;
+            }
+            peakConnections.accumulateAndGet(n, Math::max);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    void dispatch(NioSession session, byte[] frame) {
+        ISOMsg m = new ISOMsg();
+        try {
+            m.setPackager(packager);
+            m.unpack(frame);
+        } catch (ISOException e) {
+            if (logger != null) {
+                Logger.log(new LogEvent(session, "receive", e));
+            }
+            session.close();
+            return;
+        }
+        m.setSource(session);
+        m.setDirection(ISOMsg.INCOMING);
+        if (logger != null) {
+            Logger.log(new LogEvent(session, "receive", m));
+        }
+        if (workers == null) {
+            listener.process(session, m);
+        } else {
+            try {
+                workers.execute(() -> listener.process(session, m));
+            } catch (RejectedExecutionException e) {
+                // shutting down
+            }
+        }
+    }
+
+    /** An accepted connection has ended, whether or not its session was registered. */
+    void closed() {
+        connections.decrementAndGet();
+    }
+
+    FrameCodec getCodec() {
+        return codec;
+    }
+
+    ISOPackager getPackager() {
+        return packager;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    int getMaxWriteQueue() {
+        return maxWriteQueue;
+    }
+
+    long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    @Override
+    public void setLogger(Logger logger, String realm) {
+        this.logger = logger;
+        this.realm = realm;
+    }
+
+    @Override
+    public String getRealm() {
+        return realm;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+}
@@ -0,0 +1,136 @@
+package com.jpos.simulator.server.nio;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+import org.jpos.util.LogEvent;
+import org.jpos.util.LogSource;
+import org.jpos.util.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client connection of the {@link NioServer}. It is the {@link ISOSource}
+ * handed to request listeners; {@link #send(ISOMsg)} may be called from any
+ * thread and writes directly when the socket accepts the whole frame, otherwise
+ * the rest is queued and flushed by the event loop. A client that stops
+ * reading is disconnected once the queue holds more than the server's
+ * {@code max-write-queue} bytes.
+ */
+public class NioSession implements ISOSource, LogSource {
+
+    private final NioServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private Logger logger;
+    private String realm;
+    private volatile boolean open = true;
+
+    // Event loop state
+    ByteBuffer partial;
+    long lastActivity = System.currentTimeMillis();
+
+    NioSession(NioServer server, EventLoop loop, SocketChannel channel, Logger logger, String realm) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.logger = logger;
+        this.realm = realm;
+    }
+
+    @Override
+    public void send(ISOMsg m) throws IOException, ISOException {
+        if (!open) {
+            throw new IOException("unconnected ISOSource");
+        }
+        m.setDirection(ISOMsg.OUTGOING);
+        if (m.getPackager() == null) {
+            m.setPackager(server.getPackager());
+        }
+        byte[] body = m.pack();
+        FrameCodec codec = server.getCodec();
+        byte[] frame = new byte[codec.getHeaderLength() + body.length];
+        codec.encode(body.length, frame);
+        System.arraycopy(body, 0, frame, codec.getHeaderLength(), body.length);
+        try {
+            write(ByteBuffer.wrap(frame));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        if (logger != null) {
+            Logger.log(new LogEvent(this, "send", m));
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return open && channel.isOpen();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    private synchronized void write(ByteBuffer buf) throws IOException {
+        if (pending.isEmpty()) {
+            channel.write(buf);
+            if (!buf.hasRemaining()) {
+                return;
+            }
+        }
+        if (pendingBytes + buf.remaining() > server.getMaxWriteQueue()) {
+            throw new IOException("write queue full (" + pendingBytes + " bytes), client not reading");
+        }
+        pending.add(buf);
+        pendingBytes += buf.remaining();
+        loop.wantWrite(this);
+    }
+
+    /** Writes queued frames, true when nothing is left. Called by the event loop. */
+    synchronized boolean flush() throws IOException {
+        ByteBuffer buf;
+        while ((buf = pending.peek()) != null) {
+            pendingBytes -= channel.write(buf);
+            if (buf.hasRemaining()) {
+                return false;
+            }
+            pending.poll();
+        }
+        return true;
+    }
+
+    /** Closes the connection from any thread. */
+    public void close() {
+        loop.close(this);
+    }
+
+    void closed() {
+        open = false;
+        synchronized (this) {
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    @Override
+    public void setLogger(Logger logger, String realm) {
+        this.logger = logger;
+        this.realm = realm;
+    }
+
+    @Override
+    public String getRealm() {
+        return realm;
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+}
@@ -0,0 +1,66 @@
+package com.jpos.simulator.terminal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A simulated acquiring terminal with its own STAN (F11) sequence. The RRN
+ * (F37) built by the message bases embeds the STAN, so it follows the same
+ * per-terminal sequence.
+ */
+public class Terminal {
+
+    public static final int MAX_STAN = 999999;
+
+    private final int index;
+    private final String terminalId;
+    private final String merchantId;
+    private final AtomicInteger stan;
+
+    public Terminal(int index, String terminalId, String merchantId, int initialStan) {
+        this.index = index;
+        this.terminalId = terminalId;
+        this.merchantId = merchantId;
+        this.stan = new AtomicInteger(initialStan);
+    }
+
+    /** Next STAN in 000001..999999, wrapping around without locks. */
+    public int nextStan() {
+        int prev;
+        int next;
+        do {
+            prev = stan.get();
+            next = prev >= MAX_STAN ? 1 : prev + 1;
+        } while (!stan.compareAndSet(prev, next));
+        return next;
+    }
+
+    public String nextStanString() {
+        return pad6(nextStan());
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getTerminalId() {
+        return terminalId;
+    }
+
+    public String getMerchantId() {
+        return merchantId;
+    }
+
+    static String pad6(int value) {
+        char[] c = new char[6];
+        for (int i = 5; i >= 0; i--) {
+            c[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(c);
+    }
+
+    @Override
+    public String toString() {
+        return terminalId + "/" + merchantId;
+    }
+}
@@ -0,0 +1,67 @@
+package com.jpos.simulator.terminal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed estate of simulated terminals and merchants. Messages are spread over
+ * the terminals round-robin and every terminal allocates its own STANs, so
+ * concurrent senders never collide on F41/F11.
+ * <p>
+ * The default pool holds a single terminal TERM0001 / MERCHANT0000001, which
+ * matches the values the simulator has always used.
+ */
+public class TerminalPool {
+
+    private static volatile TerminalPool defaultPool = new TerminalPool(1, 1);
+
+    private final Terminal[] terminals;
+    private final Map<String, Terminal> byTerminalId = new HashMap<>();
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    public TerminalPool(int terminalCount, int terminalsPerMerchant) {
+        if (terminalCount < 1 || terminalsPerMerchant < 1) {
+            throw new IllegalArgumentException("Terminal pool needs at least one terminal per merchant");
+        }
+        String tidFormat = terminalCount <= 9999 ? "TERM%04d" : "T%07d";
+        terminals = new Terminal[terminalCount];
+        for (int i = 0; i < terminalCount; i++) {
+            String tid = String.format(tidFormat, i + 1);
+            String mid = String.format("MERCHANT%07d", i / terminalsPerMerchant + 1);
+            // Random starting point so a restarted simulator does not replay recent STANs
+            int initialStan = ThreadLocalRandom.current().nextInt(Terminal.MAX_STAN);
+            terminals[i] = new Terminal(i, tid, mid, initialStan);
+            byTerminalId.put(tid, terminals[i]);
+        }
+    }
+
+    public static TerminalPool getDefault() {
+        return defaultPool;
+    }
+
+    public static void configure(int terminalCount, int terminalsPerMerchant) {
+        defaultPool = new TerminalPool(terminalCount, terminalsPerMerchant);
+        System.out.println("Terminal pool: " + terminalCount + " terminals, " + terminalsPerMerchant
+                + " per merchant");
+    }
+
+    /** Next terminal in round-robin order. */
+    public Terminal next() {
+        return terminals[(cursor.getAndIncrement() & Integer.MAX_VALUE) % terminals.length];
+    }
+
+    /** Looks up a terminal by F41 (trailing padding ignored), or null if it is not part of this pool. */
+    public Terminal get(String terminalId) {
+        return terminalId != null ? byTerminalId.get(terminalId.trim()) : null;
+    }
+
+    public Terminal get(int index) {
+        return terminals[index];
+    }
+
+    public int size() {
+        return terminals.length;
+    }
+}
@@ -0,0 +1,91 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.card.CardRepository;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import org.jpos.core.SimpleConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccountLedgerTest {
+
+    private static final String PAN = "4111110000000001";
+
+    private static CardRepository cards(String perTxLimit, String dailyLimit) throws Exception {
+        File file = File.createTempFile("ledger-cards", ".csv");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println("PREFIX,PAN_LENGTH,PAN,EXPIRY,PIN,PVV,CVD,STATUS,PRODUCT,SCHEME,PER_TXN_LIMIT,DAILY_LIMIT,SOURCE_ID,SELECTED");
+            pw.println("411111,16," + PAN + ",2912,1234,1111,123,ACTIVE,STANDARD,VISA," + perTxLimit + "," + dailyLimit
+                    + ",GEN_SRC,Y");
+        }
+        return CardRepository.get(file.getPath());
+    }
+
+    @Test
+    void testPostingsAndLimits() throws Exception {
+        AccountLedger ledger = new AccountLedger(cards("200.00", "500.00"), 100000); // 1000.00
+
+        assertEquals("00", ledger.authorize("000000", PAN, "000000015000").getResponseCode());
+        assertEquals(85000, ledger.getBalance(PAN));
+        assertEquals("61", ledger.authorize("010000", PAN, "000000020001").getResponseCode(), "Per transaction limit");
+        assertEquals("13", ledger.authorize("000000", PAN, "0000000A0000").getResponseCode());
+
+        AccountLedger.Posting refund = ledger.authorize("200000", PAN, "000000005000");
+        assertTrue(refund.isApproved());
+        assertEquals(90000, refund.getBalance());
+
+        // 150.00 spent today, 350.00 left of the daily limit
+        assertEquals("00", ledger.authorize("010000", PAN, "000000020000").getResponseCode());
+        assertEquals("61", ledger.authorize("010000", PAN, "000000016000").getResponseCode(), "Daily limit");
+        assertEquals("00", ledger.authorize("010000", PAN, "000000015000").getResponseCode());
+
+        assertEquals("12", ledger.authorize("400000", PAN, "000000001000").getResponseCode(), "Unknown code");
+        assertEquals("12", ledger.authorize("000001", PAN, "000000001000").getResponseCode());
+
+        AccountLedger.Posting inquiry = ledger.authorize("310000", PAN, null);
+        assertEquals(55000, inquiry.getBalance(), "Unknown codes move no money");
+        assertEquals("0001840C000000055000", AccountLedger.additionalAmount("310000", "840", inquiry.getBalance()));
+    }
+
+    @Test
+    void testOptIn() {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        assertNull(AccountLedger.forConfiguration(cfg), "Off unless asked for");
+        cfg.put("ledger", "true");
+        cfg.put("ledger-opening-balance", "20.00");
+        assertEquals(2000, AccountLedger.forConfiguration(cfg).getBalance(PAN));
+    }
+
+    @Test
+    void testInsufficientFundsUnderConcurrency() throws Exception {
+        AccountLedger ledger = new AccountLedger(null, 100000); // unknown card: no limits
+        AtomicInteger approved = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    AccountLedger.Posting p = ledger.authorize("000000", "5500000000000004", "000000000100");
+                    if (p.isApproved()) {
+                        approved.incrementAndGet();
+                    } else {
+                        assertEquals("51", p.getResponseCode());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, approved.get(), "Exactly the opening balance is spent");
+        assertEquals(0, ledger.getBalance("5500000000000004"));
+    }
+}
@@ -0,0 +1,116 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.core.AsyncLogListener;
+import org.jpos.iso.ISOMsg;
+import org.jpos.util.LogEvent;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncLogListenerTest {
+
+    private static LogEvent event(String tag, String mti, int stan, String rc) throws Exception {
+        ISOMsg m = new ISOMsg(mti);
+        m.set(11, String.format("%06d", stan));
+        m.set(41, "TERM0001");
+        if (rc != null) {
+            m.set(39, rc);
+        }
+        return new LogEvent(tag, m);
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    void testSamplesApprovalsAndKeepsRequestsAndErrors() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogListener listener = new AsyncLogListener("test-log", out, AsyncLogListener.Level.INFO, 10, 1024);
+        for (int stan = 1; stan <= 1000; stan++) {
+            listener.log(event("receive", "0200", stan, null));
+            listener.log(event("send", "0210", stan, stan % 100 == 0 ? "51" : "00"));
+        }
+        listener.log(new LogEvent("receive", new EOFException()));
+        listener.close();
+
+        String log = out.toString();
+        int responses = count(log, "<send>");
+        assertEquals(1001, count(log, "<receive>"), "Every request is kept, whatever its outcome");
+        assertTrue(responses > 50 && responses < 170, "About 1 in 10 approvals kept: " + responses);
+        assertTrue(log.contains("EOFException"), "Errors are always logged");
+        assertEquals(10, count(log, "value=\"51\""), "Declines are always logged");
+        assertEquals(0, listener.getDropped());
+    }
+
+    @Test
+    void testLevelFiltersInfo() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncLogListener listener = new AsyncLogListener("test-log", out, AsyncLogListener.Level.WARN, 1, 1024);
+        listener.log(event("send", "0210", 1, "00"));
+        listener.log(event("send", "0210", 2, "05"));
+        listener.close();
+
+        String log = out.toString();
+        assertFalse(log.contains("000001"));
+        assertTrue(log.contains("000002"));
+    }
+
+    /** A stream whose writes wait until it is opened, like a slow disk. */
+    private static class SlowStream extends ByteArrayOutputStream {
+        final CountDownLatch open = new CountDownLatch(1);
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                open.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void testEventsKeepTheTimeTheyWereLogged() throws Exception {
+        SlowStream out = new SlowStream();
+        AsyncLogListener listener = new AsyncLogListener("test-log", out, AsyncLogListener.Level.INFO, 1, 1024);
+        listener.log(event("receive", "0200", 1, null));
+        Thread.sleep(100); // the writer is now stuck flushing the first event
+        for (int stan = 2; stan <= 5; stan++) {
+            listener.log(event("receive", "0200", stan, null));
+        }
+        LocalDateTime logged = LocalDateTime.now();
+        Thread.sleep(300);
+        out.open.countDown();
+        listener.close();
+
+        Matcher at = Pattern.compile(" at=\"([^\"]+)\"").matcher(out.toString());
+        int events = 0;
+        while (at.find()) {
+            assertFalse(LocalDateTime.parse(at.group(1)).isAfter(logged), "Stamped when queued: " + at.group(1));
+            events++;
+        }
+        assertEquals(5, events);
+        assertFalse(out.toString().contains("lifespan"));
+        assertTrue(out.closed, "The listener closes the stream it writes to");
+    }
+}
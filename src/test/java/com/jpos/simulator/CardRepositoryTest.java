@@ -0,0 +1,68 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.card.CardDataLoader;
+import com.jpos.simulator.card.CardInfo;
+import com.jpos.simulator.card.CardRepository;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CardRepositoryTest {
+
+    private static final String HEADER = "PREFIX,PAN_LENGTH,PAN,EXPIRY,PIN,PVV,CVD,STATUS,PRODUCT,SCHEME,PER_TXN_LIMIT,DAILY_LIMIT,SOURCE_ID,SELECTED";
+
+    private static File writeCsv(String... pans) throws Exception {
+        File file = File.createTempFile("cards", ".csv");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println(HEADER);
+            for (int i = 0; i < pans.length; i++) {
+                pw.println("411111,16," + pans[i] + ",2912,1234,1111,123,ACTIVE,STANDARD,VISA,2000.00,10000.00,GEN_SRC,"
+                        + (i == 1 ? "Y" : "N"));
+            }
+        }
+        return file;
+    }
+
+    @Test
+    void testSelectionModes() throws Exception {
+        File file = writeCsv("4111110000000001", "4111110000000002", "4111110000000003");
+        CardRepository repository = CardRepository.get(file.getPath());
+
+        assertEquals(3, repository.size());
+        assertEquals("4111110000000002", repository.next().getPan());
+        assertEquals("4111110000000002", repository.getSelected().getPan());
+        assertSame(repository.getSelected(), repository.findByPan("4111110000000002"));
+
+        repository.setSelection(CardRepository.Selection.ROUND_ROBIN);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            seen.add(repository.next().getPan());
+        }
+        assertEquals(3, seen.size());
+
+        repository.setSelection(CardRepository.Selection.RANDOM);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(repository.findByPan(repository.next().getPan()));
+        }
+    }
+
+    @Test
+    void testReloadsAfterWrite() throws Exception {
+        File file = writeCsv("4111110000000011", "4111110000000012");
+        CardRepository repository = CardRepository.get(file.getPath());
+        assertEquals(2, repository.size());
+
+        CardInfo card = repository.findByPan("4111110000000011");
+        CardDataLoader.updateCardStatus(file.getPath(), card.getPan(), "BLOCKED");
+        assertEquals("BLOCKED", repository.findByPan("4111110000000011").getStatus());
+
+        CardDataLoader.appendCard(file.getPath(), card);
+        assertEquals(3, repository.size());
+    }
+}
@@ -0,0 +1,69 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.client.ISO93ClientApp;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.channel.UnpinnedASCIIChannel;
+import com.jpos.simulator.core.channel.UnpinnedPostChannel;
+import com.jpos.simulator.server.listener.ISO87RequestListener;
+import com.jpos.simulator.server.listener.ISO93RequestListener;
+import com.jpos.simulator.server.nio.NioServer;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISORequestListener;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.PostChannel;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChannelFactoryTest {
+
+    private static final String ISO87_CLIENT = "src/main/resources/xml/channel/iso87/client.xml";
+    private static final String ISO93_CLIENT = "src/main/resources/xml/channel/iso93/client.xml";
+
+    @Test
+    void testUnpinnedChannelsOnlyWhenAsked() throws Exception {
+        assertSame(ASCIIChannel.class, ChannelFactory.createChannel(ISO87_CLIENT).getClass());
+        assertSame(PostChannel.class, ChannelFactory.createChannel(ISO93_CLIENT, false).getClass());
+        assertSame(UnpinnedASCIIChannel.class, ChannelFactory.createChannel(ISO87_CLIENT, true).getClass());
+        assertSame(UnpinnedPostChannel.class, ChannelFactory.createChannel(ISO93_CLIENT, true).getClass());
+
+        BaseChannel channel = (BaseChannel) ChannelFactory.createChannel(ISO87_CLIENT, true);
+        assertEquals("localhost", channel.getHost(), "Configured like the standard channel");
+        assertEquals(8005, channel.getPort());
+        assertNotNull(channel.getPackager());
+    }
+
+    @Test
+    void testUnpinnedChannelsExchangeMessages() throws Exception {
+        exchange("src/main/resources/xml/channel/iso87/server.xml", ISO87_CLIENT, 18040, new ISO87RequestListener(),
+                ISO87ClientApp.createEchoMsg());
+        exchange("src/main/resources/xml/channel/iso93/server.xml", ISO93_CLIENT, 18041, new ISO93RequestListener(),
+                ISO93ClientApp.createEchoMsg());
+    }
+
+    private static void exchange(String serverXml, String clientXml, int port, ISORequestListener listener,
+            ISOMsg request) throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("event-loops", "1");
+        NioServer server = new NioServer("channel-test", port, ChannelFactory.createChannel(serverXml), listener, cfg);
+        server.start();
+        try {
+            ISOChannel channel = ChannelFactory.createChannel(clientXml, true);
+            ((BaseChannel) channel).setPort(port);
+            channel.connect();
+            for (int i = 0; i < 5; i++) {
+                channel.send(request);
+                ISOMsg response = channel.receive();
+                assertEquals(request.getString(11), response.getString(11));
+                assertEquals("00", response.getString(39));
+            }
+            channel.disconnect();
+        } finally {
+            server.shutdown();
+        }
+    }
+}
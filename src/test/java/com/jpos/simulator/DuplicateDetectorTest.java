@@ -0,0 +1,152 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.core.RequestSource;
+import com.jpos.simulator.server.dispatch.DuplicateDetector;
+import com.jpos.simulator.server.latency.IssuerLatency;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import com.jpos.simulator.server.listener.ISO87RequestListener;
+import org.jdom2.Element;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DuplicateDetectorTest {
+
+    private static class CollectingSource implements ISOSource {
+        final List<ISOMsg> sent = new ArrayList<>();
+
+        @Override
+        public synchronized void send(ISOMsg m) {
+            sent.add(m);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    }
+
+    private static ISOMsg request(String tid, int stan) throws Exception {
+        ISOMsg m = new ISOMsg("0200");
+        m.set(7, "1018120000");
+        m.set(11, String.format("%06d", stan));
+        m.set(41, tid);
+        return m;
+    }
+
+    private static ISOMsg response(ISOMsg request, String rc) throws Exception {
+        ISOMsg r = (ISOMsg) request.clone();
+        r.setResponseMTI();
+        r.set(39, rc);
+        return r;
+    }
+
+    @Test
+    void testRetransmissionGetsOriginalResponse() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(60000, 1024);
+        CollectingSource first = new CollectingSource();
+        CollectingSource retry = new CollectingSource();
+        CollectingSource lateRetry = new CollectingSource();
+
+        ISOSource tracked = detector.filter(first, request("TERM0001", 1));
+        assertNotNull(tracked);
+        assertNull(detector.filter(retry, request("TERM0001", 1)), "In flight: waits for the original");
+        assertTrue(retry.sent.isEmpty());
+
+        tracked.send(response(request("TERM0001", 1), "00"));
+        assertEquals(1, first.sent.size());
+        assertEquals(1, retry.sent.size(), "Waiting retransmission answered with the first response");
+        assertEquals("00", retry.sent.get(0).getString(39));
+
+        assertNull(detector.filter(lateRetry, request("TERM0001", 1)));
+        assertEquals("0210", lateRetry.sent.get(0).getMTI());
+        assertEquals(2, detector.getReplayed());
+
+        assertNotNull(detector.filter(first, request("TERM0001", 2)), "Other STAN");
+        assertNotNull(detector.filter(first, request("TERM0002", 1)), "Other terminal");
+    }
+
+    @Test
+    void testExpiresAndStaysBounded() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(50, 1024);
+        CollectingSource source = new CollectingSource();
+        detector.filter(source, request("TERM0001", 1)).send(response(request("TERM0001", 1), "00"));
+        Thread.sleep(80);
+        assertNotNull(detector.filter(source, request("TERM0001", 1)), "Processed again after the window");
+
+        DuplicateDetector small = new DuplicateDetector(60000, 1024);
+        for (int stan = 1; stan <= 100000; stan++) {
+            assertNotNull(small.filter(source, request("TERM" + (stan % 10), stan)));
+        }
+        assertTrue(small.getEvicted() > 90000, "Full table overwrites its oldest entries");
+        assertNotNull(small.filter(source, request("TERM1", 1)), "Oldest request forgotten");
+    }
+
+    @Test
+    void testDroppedOriginalReleasesRetransmissions() throws Exception {
+        DuplicateDetector detector = new DuplicateDetector(60000, 1024);
+        RecordingSource first = new RecordingSource(0);
+        RecordingSource retries = new RecordingSource(0);
+
+        ISOSource tracked = detector.filter(first, request("TERM0001", 1));
+        for (int i = 0; i < 100; i++) {
+            assertNull(detector.filter(retries, request("TERM0001", 1)));
+        }
+        assertEquals(84, retries.noResponse.get(), "Only a bounded number of retransmissions wait");
+
+        RequestSource.noResponse(tracked);
+        assertEquals(1, first.noResponse.get());
+        assertEquals(100, retries.noResponse.get(), "Waiting retransmissions are given up with the original");
+
+        RecordingSource again = new RecordingSource(1);
+        ISOSource retracked = detector.filter(again, request("TERM0001", 1));
+        assertNotNull(retracked, "The next retransmission is processed");
+        assertNull(detector.filter(retries, request("TERM0001", 1)), "Later ones wait for it again");
+        retracked.send(response(request("TERM0001", 1), "00"));
+        assertEquals("00", again.codes.get("000001"));
+        assertEquals("00", retries.codes.get("000001"));
+    }
+
+    @Test
+    void testWithheldResponseIsReplayedNotPostedAgain() throws Exception {
+        Element dead = new Element("profile");
+        dead.setAttribute("name", "dead");
+        dead.setAttribute("type", "fixed");
+        dead.setAttribute("no-response", "1");
+        Element rule = new Element("rule");
+        rule.setAttribute("mti", "0200");
+        rule.setAttribute("profile", "dead");
+        IssuerLatency latency = new IssuerLatency("test-withheld", Collections.singletonList(dead),
+                Collections.singletonList(rule), 1, 1);
+        AccountLedger ledger = new AccountLedger(null, 100000);
+        ISO87RequestListener listener = new ISO87RequestListener("test-withheld");
+        listener.setLedger(ledger);
+        listener.setIssuerLatency(latency);
+        listener.setDuplicateDetector(new DuplicateDetector(60000, 1024));
+        try {
+            ISOMsg purchase = request("TERM0001", 1);
+            purchase.set(2, "4111111111111111");
+            purchase.set(3, "000000");
+            purchase.set(4, "000000001000");
+
+            RecordingSource first = new RecordingSource(0);
+            listener.process(first, (ISOMsg) purchase.clone());
+            assertTrue(first.codes.isEmpty(), "The issuer profile drops the response");
+            assertEquals(99000, ledger.getBalance("4111111111111111"));
+
+            RecordingSource retry = new RecordingSource(1);
+            listener.process(retry, (ISOMsg) purchase.clone());
+            assertEquals("00", retry.codes.get("000001"), "Answered with the withheld response");
+            assertEquals(99000, ledger.getBalance("4111111111111111"), "Debited once");
+            assertEquals(1, latency.getDropped());
+        } finally {
+            latency.stop();
+        }
+    }
+}
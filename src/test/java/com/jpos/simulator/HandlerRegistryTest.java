@@ -0,0 +1,50 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.dispatch.HandlerRegistry;
+import com.jpos.simulator.server.dispatch.RequestHandler;
+import org.jpos.iso.ISOMsg;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HandlerRegistryTest {
+
+    private static final RequestHandler NOOP = (source, m) -> {
+    };
+
+    private static ISOMsg msg(String mti, int field, String value) throws Exception {
+        ISOMsg m = new ISOMsg(mti);
+        if (value != null) {
+            m.set(field, value);
+        }
+        return m;
+    }
+
+    @Test
+    void testResolvesByMtiAndCode() throws Exception {
+        HandlerRegistry registry = new HandlerRegistry(NOOP)
+                .register("0200", "Financial", NOOP)
+                .register("0200", 3, "310000", "Balance Inquiry", NOOP)
+                .register("0200", 3, "000000", "Purchase", NOOP)
+                .register("0800", 70, "301", "Echo", NOOP);
+
+        assertEquals("Purchase", registry.resolve(msg("0200", 3, "000000")).getName());
+        assertEquals("Balance Inquiry", registry.resolve(msg("0200", 3, "310000")).getName());
+        assertEquals("Financial", registry.resolve(msg("0200", 3, "999999")).getName());
+        assertEquals("Financial", registry.resolve(msg("0200", 3, null)).getName());
+        assertEquals("Echo", registry.resolve(msg("0800", 70, "301")).getName());
+        assertEquals("Unknown", registry.resolve(msg("0800", 70, "999")).getName());
+        assertEquals("Unknown", registry.resolve(msg("0600", 3, "000000")).getName());
+    }
+
+    @Test
+    void testRegisterReplacesAndRejectsSecondCodeField() throws Exception {
+        HandlerRegistry registry = new HandlerRegistry(NOOP)
+                .register("1804", 24, "801", "Echo", NOOP);
+        registry.register("1804", 24, "801", "Echo v2", NOOP);
+        assertEquals("Echo v2", registry.resolve(msg("1804", 24, "801")).getName());
+
+        assertThrows(IllegalArgumentException.class, () -> registry.register("1804", 70, "301", "Echo", NOOP));
+        assertThrows(IllegalArgumentException.class, () -> registry.register("18A4", "Bad", NOOP));
+    }
+}
@@ -0,0 +1,110 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.load.HostLogReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HostLogReaderTest {
+
+    private static final String LOG =
+            "<log realm=\"iso87-channel/127.0.0.1:58666\" at=\"2026-10-17T23:39:16.446479045\">\n"
+            + "  <receive>\n"
+            + "    <isomsg direction=\"incoming\">\n"
+            + "      <field id=\"0\" value=\"0200\"/>\n"
+            + "      <field id=\"11\" value=\"000123\"/>\n"
+            + "      <field id=\"52\" value=\"0102030405060708\" type=\"binary\"/>\n"
+            + "    </isomsg>\n"
+            + "  </receive>\n"
+            + "</log>\n"
+            + "<log realm=\"iso87-channel/127.0.0.1:58666\" at=\"2026-10-17T23:39:16.447000000\">\n"
+            + "  <send>\n"
+            + "    <isomsg direction=\"outgoing\">\n"
+            + "      <field id=\"0\" value=\"0210\"/>\n"
+            + "    </isomsg>\n"
+            + "  </send>\n"
+            + "</log>\n"
+            + "<log realm=\"iso87-channel/127.0.0.1:58666\" at=\"2026-10-17T23:39:16.946479045\">\n"
+            + "  <receive>\n"
+            + "    <isomsg direction=\"incoming\">\n"
+            + "      <field id=\"0\" value=\"0400\"/>\n"
+            + "      <field id=\"11\" value=\"000124\"/>\n"
+            + "    </isomsg>\n"
+            + "  </receive>\n"
+            + "</log>\n"
+            + "<log realm=\"iso87-channel/127.0.0.1:58666\" at=\"2026-10-17T23:39:17.0\">\n"
+            + "  <receive>\n"
+            + "    <isomsg direction=\"inc";
+
+    @Test
+    void testReadsRequestsWithTimestamps() throws Exception {
+        File log = File.createTempFile("host", ".log");
+        log.deleteOnExit();
+        Files.write(log.toPath(), LOG.getBytes(StandardCharsets.UTF_8));
+
+        try (HostLogReader reader = new HostLogReader(log.getPath(), "iso87-channel")) {
+            HostLogReader.Captured first = reader.next();
+            assertNotNull(first);
+            assertEquals("0200", first.getMessage().getMTI());
+            assertEquals("000123", first.getMessage().getString(11));
+            assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, first.getMessage().getBytes(52));
+
+            HostLogReader.Captured second = reader.next();
+            assertNotNull(second, "Responses are skipped, the reversal is next");
+            assertEquals("0400", second.getMessage().getMTI());
+            assertEquals(500000000L, second.getAtNanos() - first.getAtNanos());
+
+            assertNull(reader.next(), "Truncated tail ends the log");
+        }
+    }
+
+    @Test
+    void testRealmFilter() throws Exception {
+        File log = File.createTempFile("host", ".log");
+        log.deleteOnExit();
+        Files.write(log.toPath(), LOG.getBytes(StandardCharsets.UTF_8));
+
+        try (HostLogReader reader = new HostLogReader(log.getPath(), "iso93-channel")) {
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void testBadEntriesAreSkipped() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<log realm=\"iso87-channel\" at=\"2026-10-17T23:39:16.0\">\n")
+                    .append("  <receive><isomsg><field id=\"x\" value=\"0200\"/></isomsg></receive>\n")
+                    .append("</log>\n");
+        }
+        File log = File.createTempFile("host", ".log");
+        log.deleteOnExit();
+        Files.write(log.toPath(), (sb + LOG).getBytes(StandardCharsets.UTF_8));
+
+        try (HostLogReader reader = new HostLogReader(log.getPath(), null)) {
+            HostLogReader.Captured first = reader.next();
+            assertNotNull(first);
+            assertEquals("000123", first.getMessage().getString(11));
+            assertEquals(20000, reader.getSkipped());
+        }
+    }
+
+    @Test
+    void testCorruptEntryIsReported() throws Exception {
+        String corrupt = LOG.replace("<send>", "<send <");
+        File log = File.createTempFile("host", ".log");
+        log.deleteOnExit();
+        Files.write(log.toPath(), corrupt.getBytes(StandardCharsets.UTF_8));
+
+        try (HostLogReader reader = new HostLogReader(log.getPath(), null)) {
+            assertNotNull(reader.next());
+            IOException e = assertThrows(IOException.class, reader::next);
+            assertTrue(e.getMessage().contains("line 11"), e.getMessage());
+        }
+    }
+}
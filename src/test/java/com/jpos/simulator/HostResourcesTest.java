@@ -0,0 +1,36 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.HostResources;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.util.BlockingQueue;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("deprecation")
+public class HostResourcesTest {
+
+    @Test
+    void testEndpointCannotCloseSharedPool() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("max-sessions", "4");
+        cfg.put("hsm-threads", "0");
+        cfg.put("pool-monitor-interval", "0");
+        HostResources resources = new HostResources("test-host", cfg);
+
+        org.jpos.util.ThreadPool first = resources.getSessionPool();
+        org.jpos.util.ThreadPool second = resources.getSessionPool();
+        assertEquals(4, second.getMaxPoolSize());
+        first.close(); // what ISOServer.shutdown does to its pool
+
+        CountDownLatch ran = new CountDownLatch(1);
+        second.execute(ran::countDown);
+        assertTrue(ran.await(2, TimeUnit.SECONDS), "The other endpoint's sessions still run");
+
+        resources.close();
+        assertThrows(BlockingQueue.Closed.class, () -> second.execute(() -> { }));
+    }
+}
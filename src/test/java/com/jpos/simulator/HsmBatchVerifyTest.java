@@ -0,0 +1,86 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.security.JceHsmEngine;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HsmBatchVerifyTest {
+
+    private static final String PAN = "4123456789012345";
+
+    private final HsmSimulator hsm = new HsmSimulator();
+    private final JceHsmEngine engine = hsm.getEngine();
+
+    private static String pan(int i) {
+        return "45321157620" + String.format("%05d", i);
+    }
+
+    @Test
+    void testParallelCvvBatch() {
+        int n = 10000;
+        String[] pans = new String[n];
+        String[] expiries = new String[n];
+        String[] serviceCodes = new String[n];
+        String[] cvvs = new String[n];
+        for (int i = 0; i < n; i++) {
+            pans[i] = pan(i);
+            expiries[i] = "2912";
+            serviceCodes[i] = "101";
+            cvvs[i] = engine.cvv(pans[i], "2912", "101");
+            if (i % 7 == 0) {
+                cvvs[i] = (char) ('0' + (cvvs[i].charAt(0) - '0' + 1) % 10) + cvvs[i].substring(1);
+            }
+        }
+        BitSet verified = hsm.verifyCVVBatch(pans, expiries, serviceCodes, cvvs);
+        assertEquals(n - (n + 6) / 7, verified.cardinality());
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 7 != 0, verified.get(i), "entry " + i);
+        }
+    }
+
+    @Test
+    void testParallelPvvBatch() {
+        int n = HsmSimulator.PARALLEL_BATCH + 100;
+        String[] pans = new String[n];
+        byte[][] blocks = new byte[n][];
+        String[] pvvs = new String[n];
+        for (int i = 0; i < n; i++) {
+            pans[i] = pan(i);
+            blocks[i] = engine.encryptPinBlock(i % 5 == 0 ? "9999" : "1234", pans[i], JceHsmEngine.FORMAT_ISO0);
+            pvvs[i] = engine.pvv(pans[i], "1234", engine.getPvki());
+        }
+        BitSet verified = hsm.verifyPVVBatch(pans, blocks, pvvs);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i % 5 != 0, verified.get(i), "entry " + i);
+        }
+    }
+
+    @Test
+    void testSmallBatchAndInvalidEntries() {
+        String cvv = engine.cvv(PAN, "2912", "101");
+        BitSet verified = hsm.verifyCVVBatch(new String[] { PAN, "12", PAN },
+                new String[] { "2912", "2912", "29" }, new String[] { "101", "101", "101" },
+                new String[] { cvv, cvv, cvv });
+        assertEquals(1, verified.cardinality());
+        assertTrue(verified.get(0));
+
+        String pvv = engine.pvv(PAN, "1234", engine.getPvki());
+        verified = hsm.verifyPVVBatch(new String[] { PAN, PAN },
+                new byte[][] { engine.encryptPinBlock("1234", PAN, JceHsmEngine.FORMAT_ISO0), new byte[3] },
+                new String[] { pvv, pvv });
+        assertTrue(verified.get(0));
+        assertFalse(verified.get(1));
+    }
+
+    @Test
+    void testMismatchedLengths() {
+        assertThrows(IllegalArgumentException.class,
+                () -> hsm.verifyPVVBatch(new String[2], new byte[1][], new String[2]));
+        assertThrows(IllegalArgumentException.class,
+                () -> hsm.verifyCVVBatch(new String[2], new String[2], new String[2], new String[3]));
+    }
+}
@@ -0,0 +1,199 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.security.HsmServer;
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.security.JceHsmEngine;
+import com.jpos.simulator.security.RemoteHsmAdapter;
+import com.jpos.simulator.server.HostResources;
+import com.jpos.simulator.server.dispatch.HsmStage;
+import com.jpos.simulator.server.listener.ISO87RequestListener;
+import org.jpos.iso.ISOMsg;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.security.EncryptedPIN;
+import org.jpos.security.SMException;
+import org.jpos.security.SecureKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HsmServerTest {
+
+    private static final String PAN = "4123456789012345";
+
+    private static HsmServer start(int port, long commandLatency) throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("workers", "4");
+        cfg.put("command-latency", String.valueOf(commandLatency));
+        return new HsmServer(port, new HsmSimulator(), cfg);
+    }
+
+    @Test
+    void testCommands() throws Exception {
+        HsmServer server = start(18500, 0);
+        RemoteHsmAdapter hsm = new RemoteHsmAdapter("localhost", 18500, 2, 2000);
+        try {
+            String pvv = hsm.generatePVV(PAN, "4321");
+            EncryptedPIN right = hsm.encryptPIN("4321", PAN);
+            assertTrue(hsm.verifyPVV(right, null, null, null, 0, pvv));
+            assertFalse(hsm.verifyPVV(hsm.encryptPIN("1111", PAN), null, null, null, 0, pvv));
+
+            String cvv = hsm.getEngine().cvv(PAN, "2912", "101");
+            assertTrue(hsm.verifyCVV(PAN, null, null, "101", "2912", cvv));
+            assertFalse(hsm.verifyCVV(PAN, null, null, "000", "2912", cvv));
+
+            EncryptedPIN iso4 = hsm.translatePIN(right, null, null, JceHsmEngine.FORMAT_ISO4);
+            assertEquals(16, iso4.getPINBlock().length);
+            assertTrue(hsm.verifyPVV(iso4, null, null, null, 0, pvv));
+
+            SecureKey key = hsm.generateKey((short) 128, "ZPK");
+            assertEquals(16, key.getKeyBytes().length);
+            assertEquals(JceHsmEngine.kcv(key.getKeyBytes()), hsm.calculateKCV(key));
+            assertTrue(server.getCommandCount() >= 7);
+        } finally {
+            hsm.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPipelinedOverFewConnections() throws Exception {
+        // 20 ms per command: 400 commands would take 8 s if each connection waited for its answer
+        HsmServer server = start(18501, 20);
+        RemoteHsmAdapter hsm = new RemoteHsmAdapter("localhost", 18501, 2, 5000);
+        ExecutorService callers = Executors.newFixedThreadPool(50);
+        try {
+            String cvv = hsm.getEngine().cvv(PAN, "2912", "101");
+            long start = System.nanoTime();
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                results.add(callers.submit(() -> hsm.verifyCVV(PAN, null, null, "101", "2912", cvv)));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            assertTrue(elapsedMs < 4000, "Commands overlap on each connection: " + elapsedMs + " ms");
+            assertEquals(2, server.getConnectionCount());
+            assertEquals(0, hsm.getOutstanding());
+        } finally {
+            callers.shutdown();
+            hsm.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testBatchPipelinedFromCallingThread() throws Exception {
+        // 20 ms per command: one command at a time would take a minute
+        HsmServer server = start(18502, 20);
+        RemoteHsmAdapter hsm = new RemoteHsmAdapter("localhost", 18502, 2, 5000);
+        try {
+            int n = 3000;
+            String[] pans = new String[n];
+            String[] expiries = new String[n];
+            String[] serviceCodes = new String[n];
+            String[] cvvs = new String[n];
+            String cvv = hsm.getEngine().cvv(PAN, "2912", "101");
+            String wrong = cvv.equals("000") ? "001" : "000";
+            for (int i = 0; i < n; i++) {
+                pans[i] = PAN;
+                expiries[i] = "2912";
+                serviceCodes[i] = "101";
+                cvvs[i] = i % 7 == 0 ? wrong : cvv;
+            }
+            long start = System.nanoTime();
+            BitSet verified = hsm.verifyCVVBatch(pans, expiries, serviceCodes, cvvs);
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            for (int i = 0; i < n; i++) {
+                assertEquals(i % 7 != 0, verified.get(i), "entry " + i);
+            }
+            assertTrue(elapsedMs < 5000, "Batch commands overlap: " + elapsedMs + " ms");
+            assertEquals(0, hsm.getOutstanding());
+        } finally {
+            hsm.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testTimedOutCommandKeepsItsHeader() throws Exception {
+        HsmServer server = start(18503, 300);
+        RemoteHsmAdapter hsm = new RemoteHsmAdapter("localhost", 18503, 1, 50);
+        try {
+            String cvv = hsm.getEngine().cvv(PAN, "2912", "101");
+            assertThrows(SMException.class, () -> hsm.verifyCVV(PAN, null, null, "101", "2912", cvv));
+            assertEquals(1, hsm.getOutstanding(), "Reserved until the late response arrives");
+
+            long deadline = System.currentTimeMillis() + 2000;
+            while (hsm.getOutstanding() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, hsm.getOutstanding(), "The late response frees the header");
+        } finally {
+            hsm.close();
+            server.stop();
+        }
+    }
+
+    private static ISOMsg cvvOnlyPurchase(HsmSimulator hsm, String stan) throws Exception {
+        ISOMsg m = new ISOMsg("0200");
+        m.set(2, PAN);
+        m.set(3, "000000");
+        m.set(4, "000000001000");
+        m.set(11, stan);
+        m.set(14, "2912");
+        m.set(41, "TERM0001");
+        m.set(48, "CVV=" + hsm.getEngine().cvv(PAN, "2912", "101"));
+        return m;
+    }
+
+    @Test
+    void testStalledOrUnreachableHsmDeclinesWith91() throws Exception {
+        // The HSM accepts the command but answers long after the adapter gives up
+        HsmServer server = start(18504, 2000);
+        RemoteHsmAdapter stalled = new RemoteHsmAdapter("localhost", 18504, 1, 200);
+        RemoteHsmAdapter unreachable = new RemoteHsmAdapter("localhost", 18505, 1, 200);
+        HsmStage stage = new HsmStage("test-hsm", 2, 16, 1000);
+        try {
+            ISO87RequestListener listener = new ISO87RequestListener("test-stalled-hsm");
+            listener.setHsm(stalled);
+            RecordingSource source = new RecordingSource(1);
+            listener.process(source, cvvOnlyPurchase(stalled, "000001"));
+            assertEquals(HsmStage.TIMED_OUT, source.codes.get("000001"), "Never approved without the CVV check");
+
+            listener.setHsm(unreachable);
+            listener.setHsmStage(stage);
+            source = new RecordingSource(1);
+            listener.process(source, cvvOnlyPurchase(unreachable, "000002"));
+            assertTrue(source.latch.await(2, TimeUnit.SECONDS));
+            assertEquals(HsmStage.TIMED_OUT, source.codes.get("000002"), "Connection refused");
+        } finally {
+            stage.stop();
+            stalled.close();
+            unreachable.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRemoteTimeoutCoversCheckTimeout() {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("hsm-remote", "localhost:18506");
+        cfg.put("hsm-timeout", "2000");
+        cfg.put("hsm-check-timeout", "2500");
+        assertThrows(IllegalArgumentException.class, () -> new HostResources("test-host", cfg));
+
+        SimpleConfiguration derived = new SimpleConfiguration();
+        derived.put("hsm-remote", "localhost:18506");
+        derived.put("hsm-check-timeout", "800");
+        assertEquals(800, RemoteHsmAdapter.forConfiguration(derived).getTimeout(), "Derived from the check timeout");
+    }
+}
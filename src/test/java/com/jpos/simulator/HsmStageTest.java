@@ -0,0 +1,115 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.dispatch.HsmStage;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HsmStageTest {
+
+    private static ISOMsg request(int stan) throws Exception {
+        ISOMsg m = new ISOMsg("0200");
+        m.set(11, String.format("%06d", stan));
+        return m;
+    }
+
+    private static void respond(ISOSource source, ISOMsg m, String responseCode) throws ISOException, IOException {
+        ISOMsg response = (ISOMsg) m.clone();
+        response.set(39, responseCode);
+        source.send(response);
+    }
+
+    @Test
+    void testChecksRunOffTheCallingThread() throws Exception {
+        HsmStage stage = new HsmStage("test-hsm", 2, 16, 2000);
+        try {
+            RecordingSource source = new RecordingSource(2);
+            Thread caller = Thread.currentThread();
+            stage.submit(source, request(1), m -> {
+                assertNotSame(caller, Thread.currentThread());
+                return null;
+            }, (s, m) -> respond(s, m, "00"), HsmStageTest::respond);
+            stage.submit(source, request(2), m -> "55", (s, m) -> respond(s, m, "00"), HsmStageTest::respond);
+            assertTrue(source.latch.await(2, TimeUnit.SECONDS));
+            assertEquals("00", source.codes.get("000001"));
+            assertEquals("55", source.codes.get("000002"));
+            assertEquals(2, stage.getSubmitted());
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    void testFullStageRejectsAndSlowChecksTimeOut() throws Exception {
+        HsmStage stage = new HsmStage("test-hsm", 1, 2, 100);
+        CountDownLatch hsm = new CountDownLatch(1);
+        HsmStage.Check stuck = m -> {
+            try {
+                hsm.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        };
+        try {
+            RecordingSource source = new RecordingSource(3);
+            for (int i = 1; i <= 3; i++) {
+                stage.submit(source, request(i), stuck, (s, m) -> respond(s, m, "00"), HsmStageTest::respond);
+            }
+            assertEquals(HsmStage.REJECTED, source.codes.get("000003"), "No room left, declined at once");
+            assertTrue(source.latch.await(2, TimeUnit.SECONDS));
+            assertEquals(HsmStage.TIMED_OUT, source.codes.get("000001"));
+            assertEquals(HsmStage.TIMED_OUT, source.codes.get("000002"));
+            assertEquals(1, stage.getRejected());
+            assertEquals(2, stage.getTimedOut());
+            assertEquals(2, stage.getPending(), "Timed out checks hold their slot until they end");
+
+            hsm.countDown();
+            long deadline = System.currentTimeMillis() + 2000;
+            while (stage.getPending() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, stage.getPending());
+            assertEquals(3, source.codes.size(), "A late check does not answer a second time");
+
+            RecordingSource after = new RecordingSource(1);
+            stage.submit(after, request(4), m -> null, (s, m) -> respond(s, m, "00"), HsmStageTest::respond);
+            assertTrue(after.latch.await(2, TimeUnit.SECONDS));
+            assertEquals("00", after.codes.get("000004"));
+        } finally {
+            stage.stop();
+        }
+    }
+
+    @Test
+    void testFailedCheckOrHandlerIsDeclined() throws Exception {
+        HsmStage stage = new HsmStage("test-hsm", 2, 16, 0);
+        try {
+            RecordingSource source = new RecordingSource(3);
+            stage.submit(source, request(1), m -> {
+                throw new IllegalStateException("HSM down");
+            }, (s, m) -> respond(s, m, "00"), HsmStageTest::respond);
+            stage.submit(source, request(2), m -> null, (s, m) -> {
+                throw new IOException("ledger unavailable");
+            }, HsmStageTest::respond);
+            stage.submit(source, request(3), m -> null, (s, m) -> {
+                respond(s, m, "00");
+                throw new IllegalStateException("after the response");
+            }, HsmStageTest::respond);
+            assertTrue(source.latch.await(2, TimeUnit.SECONDS));
+            assertEquals(HsmStage.REJECTED, source.codes.get("000001"));
+            assertEquals(HsmStage.REJECTED, source.codes.get("000002"));
+            assertEquals("00", source.codes.get("000003"), "Already answered, not declined as well");
+            assertEquals(2, stage.getFailed());
+        } finally {
+            stage.stop();
+        }
+    }
+}
@@ -7,13 +7,19 @@ import org.jpos.util.Logger;
 import org.jpos.util.SimpleLogListener;
 import com.jpos.simulator.client.ISO87ClientApp;
 import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.load.LoadStats;
+import com.jpos.simulator.load.OpenLoopScheduler;
+import com.jpos.simulator.load.ScenarioLoader;
+import com.jpos.simulator.load.ScenarioStep;
 import com.jpos.simulator.server.ISO87ServerApp;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.AfterAll;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.Socket;
 
 public class ISO87ClientTest {
@@ -254,4 +260,49 @@ public class ISO87ClientTest {
             fail("Exception: " + e.getMessage());
         }
     }
+
+    @Test
+    void testTemplatePurchasesCarryEachCard() throws Exception {
+        File file = File.createTempFile("scenario", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println("<scenario name=\"template-purchase\" client=\"" + ISO87ClientApp.class.getName() + "\">");
+            pw.println("  <step name=\"Purchase\" builder=\"createPurchaseMsg\"/>");
+            pw.println("</scenario>");
+        }
+        ScenarioStep step = ScenarioLoader.load(file.getPath(), true).getSteps()[0];
+        for (int i = 0; i < 10; i++) {
+            ISOMsg response = step.execute(channel);
+            assertTrue(step.isTemplate(), "Purchases are sent from the template");
+            assertNotEquals("55", response.getString(39), "PIN block patched for the card");
+            assertNotEquals("N7", response.getString(39), "CVV patched for the card");
+            assertNotEquals("05", response.getString(39));
+        }
+    }
+
+    @Test
+    void testOriginalIsCountedAndThinkTimeIsNotTimed() throws Exception {
+        File file = File.createTempFile("scenario", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println("<scenario name=\"reversal\" client=\"" + ISO87ClientApp.class.getName() + "\">");
+            pw.println("  <step name=\"Purchase Reversal\" builder=\"createPurchaseReversalMsg\""
+                    + " original=\"createPurchaseMsg\" think-ms=\"1000\"/>");
+            pw.println("</scenario>");
+        }
+        ScenarioStep step = ScenarioLoader.load(file.getPath()).getSteps()[0];
+        assertEquals(1000, step.getThinkMillis());
+
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(1);
+        LoadStats stats = new LoadStats();
+        scheduler.start();
+        long start = System.nanoTime();
+        ISOMsg response = scheduler.execute(step, channel, stats);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertNotNull(response);
+        assertTrue(elapsedMs < 1000, "The step does not pause itself: " + elapsedMs + " ms");
+        assertEquals(1, stats.getSent(), "The original is a transaction of its own");
+        assertEquals(2, stats.getResponseTime().getCount(), "Each leg is timed");
+        assertTrue(stats.getResponseTime().getMax() < 1_000_000_000L, "Think time is not latency");
+    }
 }
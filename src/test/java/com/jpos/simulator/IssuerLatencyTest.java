@@ -0,0 +1,83 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.latency.IssuerLatency;
+import com.jpos.simulator.server.latency.LatencyProfile;
+import org.jdom2.Element;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IssuerLatencyTest {
+
+    private static Element element(String name, String... attributes) {
+        Element e = new Element(name);
+        for (int i = 0; i < attributes.length; i += 2) {
+            e.setAttribute(attributes[i], attributes[i + 1]);
+        }
+        return e;
+    }
+
+    private static ISOMsg request(String mti, String proc, String pan, int stan) throws Exception {
+        ISOMsg m = new ISOMsg(mti);
+        m.set(2, pan);
+        m.set(3, proc);
+        m.set(11, String.format("%06d", stan));
+        return m;
+    }
+
+    @Test
+    void testRulesDelayDropAndPassThrough() throws Exception {
+        IssuerLatency latency = new IssuerLatency("test",
+                Arrays.asList(element("profile", "name", "slow", "type", "fixed", "delay", "150"),
+                        element("profile", "name", "dead", "type", "fixed", "no-response", "1")),
+                Arrays.asList(element("rule", "bin", "5", "profile", "dead"),
+                        element("rule", "mti", "0200", "proc", "000000", "profile", "slow")),
+                1, 2);
+        try {
+            RecordingSource source = new RecordingSource(2);
+            long start = System.nanoTime();
+
+            ISOMsg purchase = request("0200", "000000", "4111111111111111", 1);
+            ISOSource shaped = latency.shape(source, purchase);
+            assertNotSame(source, shaped);
+            shaped.send(request("0210", "000000", "4111111111111111", 1));
+
+            ISOMsg balance = request("0200", "310000", "4111111111111111", 2);
+            assertSame(source, latency.shape(source, balance), "No rule matches, answered at once");
+            source.send(request("0210", "310000", "4111111111111111", 2));
+
+            ISOMsg mastercard = request("0200", "000000", "5500000000000004", 3);
+            latency.shape(source, mastercard).send(request("0210", "000000", "5500000000000004", 3));
+
+            assertTrue(source.latch.await(2, TimeUnit.SECONDS));
+            long delayMs = TimeUnit.NANOSECONDS.toMillis(source.sentAt.get("000001") - start);
+            assertTrue(delayMs >= 145 && delayMs < 1000, "Delayed about 150 ms: " + delayMs);
+            assertFalse(source.sentAt.containsKey("000003"), "First matching rule drops the response");
+            assertEquals(1, source.noResponse.get(), "The dropped request is given up");
+            assertEquals(1, latency.getDelayed());
+            assertEquals(1, latency.getDropped());
+            assertEquals(0, latency.getPending());
+        } finally {
+            latency.stop();
+        }
+    }
+
+    @Test
+    void testLongTailMatchesMedianAndP99() {
+        LatencyProfile profile = LatencyProfile.longTail("tail", 400, 3000, 0);
+        long[] samples = new long[20000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = profile.sample();
+        }
+        Arrays.sort(samples);
+        long median = samples[samples.length / 2];
+        long p99 = samples[samples.length * 99 / 100];
+        assertTrue(median > 360 && median < 440, "median " + median);
+        assertTrue(p99 > 2400 && p99 < 3700, "p99 " + p99);
+    }
+}
@@ -0,0 +1,120 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.security.HsmSimulator;
+import com.jpos.simulator.security.JceHsmEngine;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.ISOUtil;
+import org.jpos.security.EncryptedPIN;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JceHsmEngineTest {
+
+    private static final String PAN = "4123456789012345";
+
+    private static JceHsmEngine engine(String pinBlockFormat) {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("cvk", "0123456789ABCDEFFEDCBA9876543210");
+        cfg.put("pin-block-format", pinBlockFormat);
+        return new JceHsmEngine(cfg);
+    }
+
+    @Test
+    void testVisaCvvVector() {
+        JceHsmEngine engine = engine("0");
+        assertEquals("561", engine.cvv(PAN, "8701", "101"));
+        assertNotEquals(engine.cvv(PAN, "8701", "101"), engine.cvv(PAN, "8701", "000"), "CVV2 uses service code 000");
+    }
+
+    @Test
+    void testVerifyWithoutStrings() {
+        JceHsmEngine engine = engine("0");
+        assertTrue(engine.verifyCvv(PAN, "8701", "101", "561"));
+        assertFalse(engine.verifyCvv(PAN, "8701", "101", "562"));
+        assertFalse(engine.verifyCvv(PAN, "8701", "101", "56"));
+
+        String pvv = engine.pvv(PAN, "4321", 1);
+        byte[] block = engine.encryptPinBlock("4321", PAN, JceHsmEngine.FORMAT_ISO0);
+        assertTrue(engine.verifyPvv(block, PAN, JceHsmEngine.FORMAT_ISO0, 1, pvv));
+        assertFalse(engine.verifyPvv(block, PAN, JceHsmEngine.FORMAT_ISO0, 2, pvv));
+        assertFalse(engine.verifyPvv(engine.encryptPinBlock("4322", PAN, JceHsmEngine.FORMAT_ISO0), PAN,
+                JceHsmEngine.FORMAT_ISO0, 1, pvv));
+    }
+
+    @Test
+    void testKeyCheckValue() {
+        assertEquals("08D7B4", JceHsmEngine.kcv(ISOUtil.hex2byte("0123456789ABCDEFFEDCBA9876543210")));
+    }
+
+    @Test
+    void testIso0PinBlockIsEncrypted() {
+        JceHsmEngine engine = engine("0");
+        HsmSimulator hsm = new HsmSimulator(engine);
+        byte[] block = engine.encryptPinBlock("1234", PAN, JceHsmEngine.FORMAT_ISO0);
+        assertEquals(8, block.length);
+        assertFalse(ISOUtil.hexString(block).equals(ISOUtil.hexString(hsm.generateISO0PinBlock("1234", PAN))));
+        assertEquals("1234", engine.decryptPin(block, PAN, JceHsmEngine.FORMAT_ISO0));
+        assertNotEquals("1234", engine.decryptPin(block, "5412340358517705", JceHsmEngine.FORMAT_ISO0));
+    }
+
+    @Test
+    void testIso4PinBlock() {
+        JceHsmEngine engine = engine("4");
+        byte[] first = engine.encryptPinBlock("123456", PAN, JceHsmEngine.FORMAT_ISO4);
+        byte[] second = engine.encryptPinBlock("123456", PAN, JceHsmEngine.FORMAT_ISO4);
+        assertEquals(16, first.length);
+        assertFalse(ISOUtil.hexString(first).equals(ISOUtil.hexString(second)), "Random fill");
+        assertEquals("123456", engine.decryptPin(first, PAN, JceHsmEngine.FORMAT_ISO4));
+        assertEquals("123456", engine.decryptPin(second, PAN, JceHsmEngine.FORMAT_ISO4));
+    }
+
+    @Test
+    void testPvvVerification() throws Exception {
+        HsmSimulator hsm = new HsmSimulator(engine("0"));
+        String pvv = hsm.generatePVV(PAN, "4321");
+        assertEquals(4, pvv.length());
+
+        EncryptedPIN right = hsm.encryptPIN("4321", PAN);
+        EncryptedPIN wrong = hsm.encryptPIN("4322", PAN);
+        assertEquals(pvv, hsm.calculatePVV(right, null, null, 0));
+        assertTrue(hsm.verifyPVV(right, null, null, null, 0, pvv));
+        assertFalse(hsm.verifyPVV(wrong, null, null, null, 0, pvv));
+
+        EncryptedPIN iso4 = hsm.translatePIN(right, null, null, JceHsmEngine.FORMAT_ISO4);
+        assertTrue(hsm.verifyPVV(iso4, null, null, null, 0, pvv));
+    }
+
+    @Test
+    void testCiphersArePerThread() throws Exception {
+        JceHsmEngine engine = engine("0");
+        String expected = engine.pvv(PAN, "4321", 1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        byte[] block = engine.encryptPinBlock("4321", PAN, JceHsmEngine.FORMAT_ISO0);
+                        String pin = engine.decryptPin(block, PAN, JceHsmEngine.FORMAT_ISO0);
+                        if (!expected.equals(engine.pvv(PAN, pin, 1)) || !"561".equals(engine.cvv(PAN, "8701", "101"))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
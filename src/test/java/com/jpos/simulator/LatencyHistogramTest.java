@@ -0,0 +1,88 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.metrics.LatencyHistogram;
+import com.jpos.simulator.metrics.LatencyRecorder;
+import org.jpos.iso.ISOMsg;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.record(v * 1000); // 1us .. 100ms
+        }
+
+        assertEquals(100000, h.getCount());
+        assertEquals(100000L * 1000, h.getMax());
+        assertWithin(50000L * 1000, h.getValueAtPercentile(50));
+        assertWithin(90000L * 1000, h.getValueAtPercentile(90));
+        assertWithin(99000L * 1000, h.getValueAtPercentile(99));
+        assertWithin(99900L * 1000, h.getValueAtPercentile(99.9));
+        assertEquals(h.getMax(), h.getValueAtPercentile(100));
+    }
+
+    @Test
+    void testMergeAcrossThreads() throws Exception {
+        LatencyHistogram[] perThread = new LatencyHistogram[4];
+        Thread[] threads = new Thread[perThread.length];
+        for (int t = 0; t < threads.length; t++) {
+            LatencyHistogram h = perThread[t] = new LatencyHistogram();
+            long base = t * 1_000_000L;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    h.record(base + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram h : perThread) {
+            merged.add(h);
+        }
+        assertEquals(40000, merged.getCount());
+        assertEquals(3_000_000L + 9999, merged.getMax());
+        assertWithin(1_000_000L, merged.getValueAtPercentile(50));
+    }
+
+    @Test
+    void testRecorderKeysByMtiAndProcessingCode() throws Exception {
+        LatencyRecorder recorder = LatencyRecorder.get("recorder-test");
+        recorder.record(message("0200", "000000"), 1000);
+        recorder.record(message("0200", "000000"), 2000);
+        recorder.record(message("0200", "310000"), 3000);
+        recorder.record(message("0800", null), 4000);
+        recorder.record(message("0200", "31"), 5000);
+        recorder.recordError(message("0200", "000000"), 6000);
+
+        Map<String, LatencyHistogram> histograms = recorder.getHistograms();
+        assertEquals(2, histograms.get("0200/000000").getCount());
+        assertEquals(1, histograms.get("0200/310000").getCount());
+        assertEquals(1, histograms.get("0800/-").getCount());
+        assertEquals(1, histograms.get("0200/31").getCount(), "Not six digits: keyed by string");
+        assertEquals(1, histograms.get("0200/000000/error").getCount());
+        assertEquals(5, histograms.size());
+    }
+
+    private static ISOMsg message(String mti, String procCode) throws Exception {
+        ISOMsg m = new ISOMsg(mti);
+        if (procCode != null) {
+            m.set(3, procCode);
+        }
+        return m;
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        double error = Math.abs(actual - expected) / (double) expected;
+        assertTrue(error < 0.02, "expected ~" + expected + " but was " + actual);
+    }
+}
@@ -0,0 +1,118 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.ISOTransaction;
+import com.jpos.simulator.load.LoadGenerator;
+import com.jpos.simulator.load.LoadStats;
+import com.jpos.simulator.server.listener.ISO87RequestListener;
+import com.jpos.simulator.server.nio.NioServer;
+import org.apache.commons.cli.ParseException;
+import org.jpos.core.SimpleConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTest {
+
+    private static final ISOTransaction ECHO = ISO87ClientApp::sendEcho;
+    private static final ISOTransaction LOGON = ISO87ClientApp::sendLogon;
+
+    private static Map<String, ISOTransaction> menu() {
+        Map<String, ISOTransaction> menu = new LinkedHashMap<>();
+        menu.put("Echo", ECHO);
+        menu.put("Logon", LOGON);
+        return menu;
+    }
+
+    // The ISO87 client channel, pointed at a test port
+    private static String clientConfig(int port) throws Exception {
+        File file = File.createTempFile("client", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println("<channel class=\"org.jpos.iso.channel.ASCIIChannel\""
+                    + " packager=\"org.jpos.iso.packager.GenericPackager\">");
+            pw.println("  <property name=\"packager-config\" value=\"src/main/resources/xml/packager/iso87.xml\"/>");
+            pw.println("  <property name=\"host\" value=\"localhost\"/>");
+            pw.println("  <property name=\"port\" value=\"" + port + "\"/>");
+            pw.println("</channel>");
+        }
+        return file.getPath();
+    }
+
+    @Test
+    void testCommandLine() throws Exception {
+        LoadGenerator generator = LoadGenerator.parse("test", "client.xml", menu(),
+                new String[] { "-c", "4", "-t", "0", "-d", "5", "-x", "2,1" });
+        assertEquals(4, generator.getConnections());
+        assertEquals(0, generator.getTps(), "-t 0 runs unthrottled");
+        assertEquals(5000, generator.getDurationMillis());
+        assertFalse(generator.isOpenLoop());
+        assertEquals(2, generator.getTransactions().size());
+        assertSame(LOGON, generator.getTransactions().get(0), "-x picks menu entries in the given order");
+        assertSame(ECHO, generator.getTransactions().get(1));
+
+        assertTrue(LoadGenerator.parse("test", "client.xml", menu(), new String[] { "-t", "500", "-o" })
+                .isOpenLoop());
+        assertThrows(IllegalArgumentException.class,
+                () -> LoadGenerator.parse("test", "client.xml", menu(), new String[] { "-t", "0", "-o" }),
+                "An open loop needs a rate");
+        assertThrows(ParseException.class,
+                () -> LoadGenerator.parse("test", "client.xml", menu(), new String[] { "-x", "3" }));
+        assertThrows(ParseException.class,
+                () -> LoadGenerator.parse("test", "client.xml", menu(), new String[] { "--no-such-option" }));
+        assertNull(LoadGenerator.parse("test", "client.xml", menu(), new String[] { "-l" }), "Only lists the menu");
+    }
+
+    @Test
+    void testWorkersPaceToTheTargetRate() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("event-loops", "2");
+        NioServer server = new NioServer("load-test", 18030,
+                ChannelFactory.createChannel("src/main/resources/xml/channel/iso87/server.xml"),
+                new ISO87RequestListener("load-test"), cfg);
+        server.start();
+        try {
+            LoadGenerator generator = new LoadGenerator("test", clientConfig(18030),
+                    Collections.singletonList(ECHO), 2, 50, 2000);
+            LoadStats stats = generator.start();
+            assertTrue(stats.getSent() >= 80 && stats.getSent() <= 110, "About 50 TPS for 2 s: " + stats.getSent());
+            assertEquals(stats.getSent(), stats.getApproved(), "Every echo approved");
+            assertEquals(0, stats.getErrors());
+            assertEquals(stats.getSent(), stats.getResponseTime().getCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testWorkerThatCannotConnect() throws Exception {
+        LoadGenerator generator = new LoadGenerator("test", clientConfig(18031), Collections.singletonList(ECHO),
+                2, 0, 300);
+        LoadStats stats = generator.start();
+        assertEquals(0, stats.getSent(), "The run ends without sending");
+    }
+
+    @Test
+    void testStatsCounting() {
+        LoadStats stats = new LoadStats();
+        stats.recordResponse("00");
+        stats.recordResponse("51");
+        stats.recordResponse(null);
+        stats.recordError();
+        stats.recordLatency(2_000_000, 1_000_000);
+        assertEquals(4, stats.getSent());
+        assertEquals(1, stats.getApproved());
+        assertEquals(2, stats.getDeclined(), "A response without DE 39 is not an approval");
+        assertEquals(1, stats.getErrors());
+        assertEquals(1, stats.getResponseTime().getCount());
+        assertTrue(stats.getResponseTime().getMax() >= 2_000_000);
+        assertTrue(stats.getServiceTime().getMax() < 2_000_000);
+    }
+}
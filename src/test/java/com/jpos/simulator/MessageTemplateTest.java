@@ -0,0 +1,136 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.card.CardInfo;
+import com.jpos.simulator.card.CardRepository;
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.core.MessageTemplate;
+import com.jpos.simulator.terminal.Terminal;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.PostChannel;
+import org.jpos.iso.packager.GenericPackager;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageTemplateTest {
+
+    @Test
+    void testStampPatchesVariableFields() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        ISOMsg prototype = ISO87ClientApp.createEchoMsg();
+        MessageTemplate template = MessageTemplate.compile(prototype, packager);
+
+        Terminal terminal = new Terminal(41, "TERM0042", "MERCHANT0000042", 41);
+        ISOMsg m = new ISOMsg();
+        m.setPackager(packager);
+        m.unpack(template.stamp(terminal));
+
+        assertEquals("0800", m.getMTI());
+        assertEquals("000042", m.getString(11));
+        assertEquals("TERM0042", m.getString(41).trim());
+        assertEquals("MERCHANT0000042", m.getString(42).trim());
+        assertEquals(prototype.getString(70), m.getString(70));
+    }
+
+    @Test
+    void testStampPatchesCardFields() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        ISOMsg prototype = ISO87ClientApp.createPurchaseMsg();
+        MessageTemplate template = MessageTemplate.compile(prototype, packager);
+        Terminal terminal = new Terminal(41, "TERM0042", "MERCHANT0000042", 41);
+        assertTrue(template.hasCardFields());
+        assertThrows(IllegalStateException.class, () -> template.stamp(terminal), "Same card on every request");
+
+        CardInfo other = null;
+        for (CardInfo card : CardRepository.getDefault().getCards()) {
+            if (!card.getPan().equals(prototype.getString(2))) {
+                other = card;
+                break;
+            }
+        }
+        assertNotNull(other);
+        ISOMsg card = ISO87ClientApp.createCardFields(other);
+        assertEquals(MessageTemplate.shape(prototype), MessageTemplate.shape(card));
+
+        ISOMsg m = new ISOMsg();
+        m.setPackager(packager);
+        m.unpack(template.stamp(terminal, card));
+        assertEquals("0200", m.getMTI());
+        assertEquals("000042", m.getString(11));
+        assertTrue(m.getString(37).endsWith("0000421"));
+        assertEquals(m.getString(7).substring(4), m.getString(12));
+        assertEquals(m.getString(7).substring(0, 4), m.getString(13));
+        assertEquals(other.getPan(), m.getString(2));
+        assertEquals(other.getExpiry(), m.getString(14));
+        assertEquals(other.getPvv(), m.getString(44));
+        assertEquals("CVV=" + other.getCvd(), m.getString(48));
+        assertArrayEquals(card.getBytes(52), m.getBytes(52));
+        assertEquals(prototype.getString(4), m.getString(4));
+
+        ISOMsg longer = (ISOMsg) card.clone();
+        longer.set(2, other.getPan() + "123");
+        assertNotEquals(MessageTemplate.shape(card), MessageTemplate.shape(longer));
+        assertThrows(IllegalArgumentException.class, () -> template.stamp(terminal, longer),
+                "Another PAN length needs its own template");
+        ISOMsg noPin = (ISOMsg) card.clone();
+        noPin.unset(52);
+        assertThrows(IllegalArgumentException.class, () -> template.stamp(terminal, noPin));
+    }
+
+    @Test
+    void testChannelTemplateCarriesCardData() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        MessageTemplate template = MessageTemplate.compile(ISO87ClientApp.createPurchaseMsg(), new ASCIIChannel(packager));
+        assertTrue(template.hasCardFields());
+        for (int field : new int[] { 2, 14, 44, 48, 52 }) {
+            assertTrue(template.isPatchable(field), "DE " + field);
+        }
+        assertFalse(MessageTemplate.compile(ISO87ClientApp.createEchoMsg(), new ASCIIChannel(packager))
+                .hasCardFields());
+    }
+
+    @Test
+    void testStampRefusesUnexpectedFieldLength() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        ISOMsg prototype = ISO87ClientApp.createEchoMsg();
+        prototype.set(37, "12345"); // stamping writes a 12 character RRN
+        MessageTemplate template = MessageTemplate.compile(prototype, packager);
+        assertThrows(IllegalStateException.class,
+                () -> template.stamp(new Terminal(0, "TERM0001", "MERCHANT0000001", 0)));
+    }
+
+    @Test
+    void testPatchRequiresSameLength() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        ISOMsg prototype = ISO87ClientApp.createPurchaseMsg();
+        MessageTemplate template = MessageTemplate.compile(prototype, packager);
+
+        String pan = prototype.getString(2);
+        String otherPan = pan.substring(0, pan.length() - 1) + (pan.endsWith("9") ? "0" : "9");
+        byte[] image = template.newImage();
+        template.patch(image, 2, otherPan);
+        ISOMsg m = new ISOMsg();
+        m.setPackager(packager);
+        m.unpack(image);
+        assertEquals(otherPan, m.getString(2));
+
+        assertThrows(IllegalArgumentException.class, () -> template.patch(image, 2, pan + "0"));
+        assertThrows(IllegalArgumentException.class, () -> template.patch(image, 4, "000000002000"));
+    }
+
+    @Test
+    void testFramedForChannel() throws Exception {
+        GenericPackager packager = new GenericPackager("src/main/resources/xml/packager/iso87.xml");
+        ISOMsg prototype = ISO87ClientApp.createPurchaseMsg();
+        byte[] body = MessageTemplate.compile(prototype, packager).newImage();
+
+        byte[] ascii = MessageTemplate.compile(prototype, new ASCIIChannel(packager)).newImage();
+        assertEquals(String.format("%04d", body.length), new String(ascii, 0, 4));
+        assertEquals(body.length + 4, ascii.length);
+
+        byte[] post = MessageTemplate.compile(prototype, new PostChannel(packager)).newImage();
+        assertEquals(body.length, ((post[0] & 0xFF) << 8) | (post[1] & 0xFF));
+        assertEquals(body.length + 2, post.length);
+    }
+}
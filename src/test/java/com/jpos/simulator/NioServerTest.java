@@ -0,0 +1,188 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.client.ISO93ClientApp;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.server.listener.ISO87RequestListener;
+import com.jpos.simulator.server.listener.ISO93RequestListener;
+import com.jpos.simulator.server.nio.NioServer;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISORequestListener;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+
+    private static NioServer start(String serverXml, int port, ISORequestListener listener) throws Exception {
+        return start(serverXml, port, listener, new SimpleConfiguration());
+    }
+
+    private static NioServer start(String serverXml, int port, ISORequestListener listener, SimpleConfiguration cfg)
+            throws Exception {
+        cfg.put("event-loops", "2");
+        NioServer server = new NioServer("nio-test", port, ChannelFactory.createChannel(serverXml), listener, cfg);
+        server.start();
+        return server;
+    }
+
+    private static BaseChannel client(String clientXml, int port) throws Exception {
+        BaseChannel channel = (BaseChannel) ChannelFactory.createChannel(clientXml);
+        channel.setPort(port);
+        channel.connect();
+        return channel;
+    }
+
+    @Test
+    void testAsciiFraming() throws Exception {
+        NioServer server = start("src/main/resources/xml/channel/iso87/server.xml", 18005, new ISO87RequestListener());
+        try {
+            BaseChannel channel = client("src/main/resources/xml/channel/iso87/client.xml", 18005);
+            for (int i = 0; i < 20; i++) {
+                ISOMsg request = ISO87ClientApp.createEchoMsg();
+                channel.send(request);
+                ISOMsg response = channel.receive();
+                assertEquals("0810", response.getMTI());
+                assertEquals(request.getString(11), response.getString(11));
+            }
+            assertEquals(1, server.getConnectionCount());
+            channel.disconnect();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testBinaryFramingSplitAcrossReads() throws Exception {
+        NioServer server = start("src/main/resources/xml/channel/iso93/server.xml", 19005, new ISO93RequestListener());
+        try {
+            BaseChannel packer = (BaseChannel) ChannelFactory.createChannel("src/main/resources/xml/channel/iso93/client.xml");
+            ISOMsg request = ISO93ClientApp.createEchoMsg();
+            request.setPackager(packer.getPackager());
+            byte[] body = request.pack();
+
+            try (Socket socket = new Socket("localhost", 19005)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                // Two frames written one byte at a time
+                for (int n = 0; n < 2; n++) {
+                    out.write(body.length >> 8);
+                    out.flush();
+                    Thread.sleep(5);
+                    out.write(body.length & 0xFF);
+                    for (byte b : body) {
+                        out.write(b);
+                        out.flush();
+                    }
+                }
+
+                InputStream in = socket.getInputStream();
+                for (int n = 0; n < 2; n++) {
+                    int length = in.read() << 8 | in.read();
+                    byte[] frame = new byte[length];
+                    int read = 0;
+                    while (read < length) {
+                        read += in.read(frame, read, length - read);
+                    }
+                    ISOMsg response = new ISOMsg();
+                    response.setPackager(packer.getPackager());
+                    response.unpack(frame);
+                    assertEquals("1814", response.getMTI());
+                    assertEquals("00", response.getString(39));
+                }
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static boolean waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return condition.getAsBoolean();
+    }
+
+    @Test
+    void testConnectionLimitHoldsForABurst() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("max-connections", "3");
+        NioServer server = start("src/main/resources/xml/channel/iso87/server.xml", 18006, new ISO87RequestListener(),
+                cfg);
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < 20; i++) {
+                sockets.add(new Socket("localhost", 18006));
+            }
+            int open = 0;
+            for (Socket socket : sockets) {
+                socket.setSoTimeout(200);
+                try {
+                    if (socket.getInputStream().read() < 0) {
+                        continue; // refused
+                    }
+                } catch (java.net.SocketTimeoutException e) {
+                    open++;
+                } catch (IOException e) {
+                    // refused with a reset
+                }
+            }
+            assertEquals(3, open, "Only max-connections stay open");
+            assertEquals(3, server.getConnectionCount());
+            assertEquals(3, server.getPeakConnections());
+
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            assertTrue(waitFor(() -> server.getConnectionCount() == 0), "Closed connections are released");
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testClientThatDoesNotReadIsDisconnected() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("max-write-queue", "65536");
+        NioServer server = start("src/main/resources/xml/channel/iso87/server.xml", 18007, new ISO87RequestListener(),
+                cfg);
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", 18007));
+            BaseChannel packer = (BaseChannel) ChannelFactory.createChannel("src/main/resources/xml/channel/iso87/client.xml");
+            ISOMsg request = ISO87ClientApp.createEchoMsg();
+            request.setPackager(packer.getPackager());
+            byte[] body = request.pack();
+            byte[] frame = new byte[4 + body.length];
+            System.arraycopy(String.format("%04d", body.length).getBytes(), 0, frame, 0, 4);
+            System.arraycopy(body, 0, frame, 4, body.length);
+
+            OutputStream out = socket.getOutputStream();
+            try {
+                // Responses pile up while nothing is read
+                for (int i = 0; i < 200000 && server.getConnectionCount() > 0; i++) {
+                    out.write(frame);
+                }
+            } catch (IOException e) {
+                // The server has hung up
+            }
+            assertTrue(waitFor(() -> server.getConnectionCount() == 0), "Session closed once its queue is full");
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.load.LoadStats;
+import com.jpos.simulator.load.OpenLoopScheduler;
+import org.jpos.iso.ISOException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OpenLoopSchedulerTest {
+
+    @Test
+    void testIntendedStartsFollowTheRate() throws Exception {
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(1000);
+        assertEquals(1_000_000, scheduler.getIntervalNanos());
+        assertThrows(IllegalStateException.class, scheduler::nextIntendedStart, "No slots before start()");
+
+        scheduler.start(5_000);
+        assertEquals(5_000, scheduler.nextIntendedStart());
+        assertEquals(1_005_000, scheduler.nextIntendedStart());
+        assertEquals(2_005_000, scheduler.nextIntendedStart());
+
+        Set<Long> claimed = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    claimed.add(scheduler.nextIntendedStart());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(4000, claimed.size(), "Every slot claimed once");
+        for (long n = 3; n < 4003; n++) {
+            assertTrue(claimed.contains(5_000 + n * 1_000_000), "Slot " + n);
+        }
+    }
+
+    @Test
+    void testLatencyChargedFromIntendedStart() throws Exception {
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(1);
+        LoadStats stats = new LoadStats();
+        // The first slot was due a second ago: the server "stalled" for that long
+        scheduler.start(System.nanoTime() - 1_000_000_000L);
+        scheduler.execute(channel -> null, null, stats);
+        assertTrue(stats.getResponseTime().getMax() >= 990_000_000L, "Response time includes the backlog");
+        assertTrue(stats.getServiceTime().getMax() < 500_000_000L, "Service time does not");
+
+        OpenLoopScheduler failing = new OpenLoopScheduler(1000);
+        failing.start();
+        assertThrows(ISOException.class, () -> failing.execute(channel -> {
+            throw new ISOException("no response");
+        }, null, stats));
+        assertEquals(2, stats.getResponseTime().getCount(), "Failures are timed as well");
+    }
+}
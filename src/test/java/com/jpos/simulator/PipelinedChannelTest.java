@@ -0,0 +1,93 @@
+package com.jpos.simulator;
+
+import org.jpos.iso.ISOMsg;
+import org.jpos.util.Logger;
+import org.jpos.util.SimpleLogListener;
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.core.ChannelFactory;
+import com.jpos.simulator.core.PipelinedChannel;
+import com.jpos.simulator.server.ISO87ServerApp;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.AfterAll;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class PipelinedChannelTest {
+
+    private static PipelinedChannel pipelined;
+    private static boolean serverStartedByTest = false;
+
+    @BeforeAll
+    static void setupChannel() throws Exception {
+        Logger logger = new Logger();
+        logger.addListener(new SimpleLogListener(System.out));
+
+        if (isPortAvailable(8005)) {
+            System.out.println("ISO87 Server not running. Starting it for pipelined channel tests...");
+            ISO87ServerApp.startServer(logger);
+            serverStartedByTest = true;
+        }
+
+        pipelined = new PipelinedChannel(ChannelFactory.createChannel("src/main/resources/xml/channel/iso87/client.xml"),
+                5000);
+        pipelined.start();
+    }
+
+    @AfterAll
+    static void teardownChannel() {
+        pipelined.close();
+        if (serverStartedByTest) {
+            ISO87ServerApp.stopServer();
+        }
+    }
+
+    private static boolean isPortAvailable(int port) {
+        try (Socket ignored = new Socket("localhost", port)) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Test
+    void testManyInFlightOnOneChannel() throws Exception {
+        System.out.println("\n[INTEGRATION TEST] testManyInFlightOnOneChannel - 50 echoes without waiting...");
+        List<ISOMsg> requests = new ArrayList<>();
+        List<CompletableFuture<ISOMsg>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            ISOMsg m = ISO87ClientApp.createEchoMsg();
+            m.set(11, String.format("%06d", 900000 + i));
+            requests.add(m);
+            futures.add(pipelined.send(m));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            ISOMsg response = futures.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals("00", response.getString(39));
+            assertEquals(requests.get(i).getString(11), response.getString(11));
+        }
+        assertEquals(0, pipelined.getInFlight());
+    }
+
+    @Test
+    void testResponsesMatchedByTerminalStanAndRrn() throws Exception {
+        System.out.println("\n[INTEGRATION TEST] testResponsesMatchedByTerminalStanAndRrn - pipelined purchases...");
+        ISOMsg first = ISO87ClientApp.createPurchaseMsg();
+        ISOMsg second = ISO87ClientApp.createBalanceInquiryMsg();
+        CompletableFuture<ISOMsg> f1 = pipelined.send(first);
+        CompletableFuture<ISOMsg> f2 = pipelined.send(second);
+
+        ISOMsg r1 = f1.get(10, TimeUnit.SECONDS);
+        ISOMsg r2 = f2.get(10, TimeUnit.SECONDS);
+        assertEquals(first.getString(37), r1.getString(37));
+        assertEquals(second.getString(37), r2.getString(37));
+        assertEquals(PipelinedChannel.correlationKey(first), PipelinedChannel.correlationKey(r1));
+    }
+}
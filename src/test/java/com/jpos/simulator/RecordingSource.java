@@ -0,0 +1,39 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.core.RequestSource;
+import org.jpos.iso.ISOMsg;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Records the response code and send time of each response (by STAN) and counts requests given up. */
+class RecordingSource implements RequestSource {
+    final ConcurrentHashMap<String, String> codes = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<String, Long> sentAt = new ConcurrentHashMap<>();
+    final AtomicInteger noResponse = new AtomicInteger();
+    final CountDownLatch latch;
+
+    /** @param expected responses {@link #latch} waits for */
+    RecordingSource(int expected) {
+        latch = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void send(ISOMsg m) {
+        sentAt.put(m.getString(11), System.nanoTime());
+        String code = m.getString(39);
+        codes.put(m.getString(11), code != null ? code : "");
+        latch.countDown();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public void noResponse() {
+        noResponse.incrementAndGet();
+    }
+}
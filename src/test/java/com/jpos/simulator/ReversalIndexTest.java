@@ -0,0 +1,110 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.server.ledger.AccountLedger;
+import com.jpos.simulator.server.ledger.ReversalIndex;
+import org.jpos.iso.ISOMsg;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReversalIndexTest {
+
+    private static final String PAN = "4111110000000001";
+
+    private static ISOMsg purchase(int stan) throws Exception {
+        return purchase(stan, PAN, "TERM0001");
+    }
+
+    private static ISOMsg purchase(int stan, String pan, String terminalId) throws Exception {
+        ISOMsg m = new ISOMsg("0200");
+        m.set(2, pan);
+        m.set(3, "000000");
+        m.set(4, "000000002500");
+        m.set(7, "1018120000");
+        m.set(11, String.format("%06d", stan));
+        m.set(32, "123456");
+        m.set(41, terminalId);
+        m.set(42, "MERCHANT0000001");
+        return m;
+    }
+
+    @Test
+    void testReverseDuplicateAndUnknown() throws Exception {
+        AccountLedger ledger = new AccountLedger(null, 10000);
+        ReversalIndex index = new ReversalIndex(60000, 1000);
+
+        ISOMsg purchase = purchase(1);
+        assertTrue(ledger.authorize("000000", PAN, purchase.getString(4)).isApproved());
+        index.record(purchase);
+        assertEquals(7500, ledger.getBalance(PAN));
+
+        ISOMsg reversal = ISO87ClientApp.createPurchaseReversalMsg(purchase, null);
+        assertEquals("00", index.reverse(reversal, ledger));
+        assertEquals(10000, ledger.getBalance(PAN), "Original debit undone");
+        assertEquals("00", index.reverse(reversal, ledger), "Duplicate reversal is approved again");
+        assertEquals(10000, ledger.getBalance(PAN), "but not posted twice");
+
+        assertEquals("25", index.reverse(ISO87ClientApp.createPurchaseReversalMsg(purchase(2), null), ledger));
+        reversal.unset(90);
+        assertEquals("30", index.reverse(reversal, ledger));
+        assertEquals(1, index.getReversed());
+        assertEquals(1, index.getDuplicates());
+        assertEquals(1, index.getUnknown());
+    }
+
+    @Test
+    void testOldestGenerationIsDropped() throws Exception {
+        ReversalIndex index = new ReversalIndex(60000, 100);
+        for (int stan = 1; stan <= 200; stan++) {
+            index.record(purchase(stan));
+        }
+        assertTrue(index.size() <= 100, "Bounded: " + index.size());
+        assertEquals("25", index.reverse(ISO87ClientApp.createPurchaseReversalMsg(purchase(1), null), null));
+        assertEquals("00", index.reverse(ISO87ClientApp.createPurchaseReversalMsg(purchase(200), null), null));
+    }
+
+    @Test
+    void testTerminalsSharingStan() throws Exception {
+        String otherPan = "4111110000000002";
+        AccountLedger ledger = new AccountLedger(null, 10000);
+        ReversalIndex index = new ReversalIndex(60000, 1000);
+
+        // Same STAN, DE 7 and DE 32 from two terminals: two authorizations, not one
+        ISOMsg first = purchase(42, PAN, "TERM0001");
+        ISOMsg second = purchase(42, otherPan, "TERM0002");
+        for (ISOMsg m : new ISOMsg[] { first, second }) {
+            assertTrue(ledger.authorize("000000", m.getString(2), m.getString(4)).isApproved());
+            index.record(m);
+        }
+        assertEquals(2, index.size());
+
+        assertEquals("00", index.reverse(ISO87ClientApp.createPurchaseReversalMsg(first, null), ledger));
+        assertEquals(10000, ledger.getBalance(PAN));
+        assertEquals(7500, ledger.getBalance(otherPan), "The other terminal's purchase stays");
+        assertEquals("00", index.reverse(ISO87ClientApp.createPurchaseReversalMsg(second, null), ledger));
+        assertEquals(10000, ledger.getBalance(otherPan));
+        assertEquals(2, index.getReversed());
+    }
+
+    @Test
+    void testReversalMustMatchPanAndAmount() throws Exception {
+        AccountLedger ledger = new AccountLedger(null, 10000);
+        ReversalIndex index = new ReversalIndex(60000, 1000);
+        ISOMsg purchase = purchase(7);
+        ledger.authorize("000000", PAN, purchase.getString(4));
+        index.record(purchase);
+
+        ISOMsg reversal = ISO87ClientApp.createPurchaseReversalMsg(purchase, null);
+        reversal.set(4, "000000009999");
+        assertEquals("25", index.reverse(reversal, ledger));
+        reversal.set(4, purchase.getString(4));
+        reversal.set(2, "4111110000000002");
+        assertEquals("25", index.reverse(reversal, ledger));
+        assertEquals(7500, ledger.getBalance(PAN), "Nothing credited");
+
+        reversal.set(2, PAN);
+        assertEquals("00", index.reverse(reversal, ledger));
+        assertEquals(10000, ledger.getBalance(PAN));
+    }
+}
@@ -0,0 +1,74 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.load.ScenarioLoader;
+import com.jpos.simulator.load.ScenarioPlan;
+import com.jpos.simulator.load.ScenarioStep;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScenarioPlanTest {
+
+    private static final String CLIENT = "com.jpos.simulator.client.ISO87ClientApp";
+
+    private static File writeScenario(String clientAttribute, String... steps) throws Exception {
+        File file = File.createTempFile("scenario", ".xml");
+        file.deleteOnExit();
+        try (PrintWriter pw = new PrintWriter(file)) {
+            pw.println("<scenario name=\"test-mix\"" + clientAttribute + ">");
+            for (String step : steps) {
+                pw.println("  <step " + step + "/>");
+            }
+            pw.println("</scenario>");
+        }
+        return file;
+    }
+
+    @Test
+    void testAliasTableReproducesWeights() throws Exception {
+        File file = writeScenario(" client=\"" + CLIENT + "\"",
+                "name=\"Echo\" builder=\"createEchoMsg\" weight=\"70\"",
+                "name=\"Logon\" builder=\"createLogonMsg\" weight=\"20\"",
+                "name=\"Logoff\" builder=\"createLogoffMsg\" weight=\"9\"",
+                "name=\"Rare\" builder=\"createEchoMsg\" weight=\"1\"",
+                "name=\"Off\" builder=\"createEchoMsg\" weight=\"0\"");
+        ScenarioPlan plan = ScenarioLoader.load(file.getPath());
+        assertEquals(4, plan.getSteps().length, "Zero weight steps are left out");
+
+        Map<String, Integer> picks = new HashMap<>();
+        int draws = 400000;
+        for (int i = 0; i < draws; i++) {
+            picks.merge(plan.next().getName(), 1, Integer::sum);
+        }
+        for (ScenarioStep step : plan.getSteps()) {
+            double share = picks.getOrDefault(step.getName(), 0) * 100.0 / draws;
+            assertEquals(step.getWeight(), share, Math.max(0.3, step.getWeight() * 0.02),
+                    step.getName() + " picked " + share + "%");
+        }
+    }
+
+    @Test
+    void testInvalidScenariosAreReported() throws Exception {
+        IllegalArgumentException noClient = assertThrows(IllegalArgumentException.class,
+                () -> ScenarioLoader.load(writeScenario("", "name=\"Echo\" builder=\"createEchoMsg\"").getPath()));
+        assertTrue(noClient.getMessage().contains("Step Echo") && noClient.getMessage().contains("client"),
+                noClient.getMessage());
+
+        ScenarioPlan perStep = ScenarioLoader.load(writeScenario("",
+                "name=\"Echo\" builder=\"createEchoMsg\" client=\"" + CLIENT + "\"").getPath());
+        assertEquals("Echo", perStep.getSteps()[0].getName(), "A step may name its own client");
+
+        IllegalArgumentException noBuilder = assertThrows(IllegalArgumentException.class,
+                () -> ScenarioLoader.load(writeScenario(" client=\"" + CLIENT + "\"",
+                        "name=\"Echo\" builder=\"createNothing\"").getPath()));
+        assertTrue(noBuilder.getMessage().contains("createNothing"), noBuilder.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> ScenarioLoader.load(
+                writeScenario(" client=\"com.example.Missing\"", "builder=\"createEchoMsg\"").getPath()));
+    }
+}
@@ -0,0 +1,117 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.metrics.LatencyRecorder;
+import com.jpos.simulator.metrics.MetricsHttpServer;
+import com.jpos.simulator.metrics.ServerMetrics;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOSource;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerMetricsTest {
+
+    private static final ISOSource NOWHERE = new ISOSource() {
+        @Override
+        public void send(ISOMsg m) {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+    };
+
+    @Test
+    void testCountersJmxAndPrometheus() throws Exception {
+        ServerMetrics metrics = ServerMetrics.get("metrics-test");
+        LatencyRecorder latency = LatencyRecorder.get("metrics-test");
+        for (int i = 0; i < 3; i++) {
+            ServerMetrics.Request request = metrics.start(NOWHERE, new ISOMsg("0200"), latency);
+            ISOMsg response = new ISOMsg("0210");
+            response.set(39, i == 0 ? "51" : "00");
+            request.send(response);
+            request.failed(); // already answered: neither an error nor a second decrement
+        }
+        metrics.start(NOWHERE, new ISOMsg("0800"), latency);
+        metrics.start(NOWHERE, new ISOMsg("0800"), latency).noResponse();
+        metrics.start(NOWHERE, new ISOMsg("0800"), latency).failed();
+        metrics.hsm(ServerMetrics.Check.PVV, ServerMetrics.Result.FAIL);
+
+        assertEquals(6, metrics.getRequests());
+        assertEquals(Long.valueOf(2), metrics.getResponsesByCode().get("00"));
+        assertEquals(1, metrics.getInFlight(), "Only the unanswered 0800 is still in flight");
+        assertEquals(1, metrics.getErrors());
+        assertEquals(3, latency.getHistograms().get("0200/-").getCount(), "Latency recorded when answered");
+        assertEquals(1, latency.getHistograms().get("0800/-/error").getCount());
+        assertNull(latency.getHistograms().get("0800/-"), "Nothing recorded for unanswered requests");
+
+        ObjectName name = new ObjectName("com.jpos.simulator:type=ServerMetrics,name=\"metrics-test\"");
+        assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Requests"));
+
+        MetricsHttpServer server = new MetricsHttpServer("127.0.0.1", 0);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(
+                    "http://127.0.0.1:" + server.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0;) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            String page = body.toString("UTF-8");
+            assertTrue(page.contains("jpos_sim_requests_total{server=\"metrics-test\",mti=\"0200\"} 3"), page);
+            assertTrue(page.contains("jpos_sim_responses_total{server=\"metrics-test\",code=\"51\"} 1"), page);
+            assertTrue(page.contains("jpos_sim_in_flight{server=\"metrics-test\"} 1"), page);
+            assertTrue(page.contains("jpos_sim_hsm_total{server=\"metrics-test\",check=\"pvv\",result=\"fail\"} 1"),
+                    page);
+            assertTrue(page.contains("jpos_sim_hsm_total{server=\"metrics-test\",check=\"cvv\",result=\"ok\"} 0"),
+                    page);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testResetKeepsCountingAndInFlight() throws Exception {
+        ServerMetrics metrics = ServerMetrics.get("metrics-reset-test");
+        LatencyRecorder latency = LatencyRecorder.get("metrics-reset-test");
+        ServerMetrics.Request open = metrics.start(NOWHERE, new ISOMsg("0200"), latency);
+        metrics.hsm(ServerMetrics.Check.CVV, ServerMetrics.Result.OK);
+        metrics.reset();
+
+        assertEquals(0, metrics.getRequests());
+        assertEquals(Long.valueOf(0), metrics.getHsmResults().get("cvv_ok"));
+        assertEquals(1, metrics.getInFlight());
+
+        metrics.start(NOWHERE, new ISOMsg("0200"), latency).noResponse();
+        metrics.hsm(ServerMetrics.Check.CVV, ServerMetrics.Result.OK);
+        open.noResponse();
+        assertEquals(Long.valueOf(1), metrics.getRequestsByMti().get("0200"));
+        assertEquals(Long.valueOf(1), metrics.getHsmResults().get("cvv_ok"));
+        assertEquals(0, metrics.getInFlight());
+    }
+
+    @Test
+    void testLabelValuesAreEscaped() throws Exception {
+        ServerMetrics metrics = ServerMetrics.get("metrics-\"escape\"-test");
+        ServerMetrics.Request request = metrics.start(NOWHERE, new ISOMsg("0200"),
+                LatencyRecorder.get("metrics-escape-test"));
+        ISOMsg response = new ISOMsg("0210");
+        response.set(39, "a\\b\n\"");
+        request.send(response);
+
+        String page = MetricsHttpServer.render();
+        assertTrue(page.contains("jpos_sim_responses_total{server=\"metrics-\\\"escape\\\"-test\","
+                + "code=\"a\\\\b\\n\\\"\"} 1"), page);
+    }
+}
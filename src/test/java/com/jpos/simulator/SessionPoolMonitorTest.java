@@ -0,0 +1,70 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.SessionPoolMonitor;
+import org.jpos.core.SimpleConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("deprecation")
+public class SessionPoolMonitorTest {
+
+    @Test
+    void testDisabledByZeroInterval() {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("pool-monitor-interval", "0");
+        org.jpos.util.ThreadPool pool = new org.jpos.util.ThreadPool(1, 2, "test-monitor-off");
+        try {
+            assertNull(SessionPoolMonitor.start("test-monitor-off", pool, () -> 0, cfg));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void testReportsPeakAndSaturation() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("pool-monitor-interval", "20");
+        org.jpos.util.ThreadPool pool = new org.jpos.util.ThreadPool(2, 2, "test-monitor");
+        CountDownLatch release = new CountDownLatch(1);
+        SessionPoolMonitor monitor = SessionPoolMonitor.start("test-monitor", pool, () -> 2, cfg);
+        try {
+            Thread.sleep(100);
+            assertEquals(0, monitor.getExhaustedMillis(), "Idle pool");
+
+            for (int i = 0; i < 2; i++) {
+                pool.execute(() -> {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            long deadline = System.currentTimeMillis() + 2000;
+            while (monitor.getExhaustedMillis() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(monitor.getExhaustedMillis() > 0, "Every session busy counts as saturated");
+            assertEquals(2, monitor.getPeakActive());
+
+            release.countDown();
+            deadline = System.currentTimeMillis() + 2000;
+            while (pool.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(60);
+            long exhausted = monitor.getExhaustedMillis();
+            Thread.sleep(100);
+            assertEquals(exhausted, monitor.getExhaustedMillis(), "No longer saturated");
+            assertEquals(2, monitor.getPeakActive(), "The peak is kept");
+        } finally {
+            release.countDown();
+            monitor.stop();
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.server.SessionPools;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.iso.ISOServer;
+import org.jpos.iso.channel.XMLChannel;
+import org.jpos.iso.packager.XMLPackager;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("deprecation")
+public class SessionPoolsTest {
+
+    @Test
+    void testPlatformPoolSizing() {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("min-sessions", "50");
+        cfg.put("max-sessions", "8");
+        org.jpos.util.ThreadPool pool = SessionPools.create("test-sessions", cfg);
+        try {
+            assertEquals(8, pool.getMaxPoolSize());
+            assertTrue(pool.getPoolSize() <= 8, "min-sessions is capped by max-sessions");
+        } finally {
+            pool.close();
+        }
+
+        cfg.put("thread-mode", "virtual");
+        pool = SessionPools.create("test-sessions", cfg);
+        try {
+            assertEquals(8, pool.getMaxPoolSize(), "max-sessions bounds virtual sessions too");
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void testConnectionsRefusedWhileEverySessionIsBusy() throws Exception {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("min-sessions", "1");
+        cfg.put("max-sessions", "1");
+        org.jpos.util.ThreadPool pool = SessionPools.create("test-sessions", cfg);
+        ISOServer server = new ISOServer(18510, new XMLChannel(new XMLPackager()), pool);
+        Thread thread = new Thread(server, "test-iso-server");
+        thread.setDaemon(true);
+        thread.start();
+        Socket first = null;
+        try {
+            first = connect(18510, 2000);
+            assertNotNull(first, "The first connection takes the only session");
+
+            // ISOServer closes its listening socket instead of queueing in the backlog
+            long deadline = System.currentTimeMillis() + 2000;
+            boolean refused = false;
+            while (!refused && System.currentTimeMillis() < deadline) {
+                try (Socket extra = new Socket("localhost", 18510)) {
+                    Thread.sleep(20);
+                } catch (ConnectException e) {
+                    refused = true;
+                }
+            }
+            assertTrue(refused, "Connections are refused while every session is busy");
+
+        } finally {
+            if (first != null) {
+                first.close();
+            }
+            server.shutdown();
+            pool.close();
+        }
+    }
+
+    private static Socket connect(int port, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                return new Socket("localhost", port);
+            } catch (IOException e) {
+                Thread.sleep(20);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,68 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.client.ISO87ClientApp;
+import com.jpos.simulator.client.ISO93ClientApp;
+import com.jpos.simulator.core.PipelinedChannel;
+import com.jpos.simulator.terminal.Terminal;
+import com.jpos.simulator.terminal.TerminalPool;
+import org.jpos.iso.ISOMsg;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TerminalPoolTest {
+
+    @Test
+    void testConcurrentStansAreUnique() throws Exception {
+        Terminal terminal = new Terminal(0, "TERM0001", "MERCHANT0000001", 0);
+        Set<Integer> stans = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    assertTrue(stans.add(terminal.nextStan()), "Duplicate STAN");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(400000, stans.size());
+    }
+
+    @Test
+    void testStanWrapsToOne() {
+        Terminal terminal = new Terminal(0, "TERM0001", "MERCHANT0000001", Terminal.MAX_STAN - 1);
+        assertEquals("999999", terminal.nextStanString());
+        assertEquals("000001", terminal.nextStanString());
+    }
+
+    @Test
+    void testRoundRobinAndLookup() {
+        TerminalPool pool = new TerminalPool(6, 3);
+        assertEquals("TERM0001", pool.next().getTerminalId());
+        assertEquals("TERM0002", pool.next().getTerminalId());
+        assertEquals("MERCHANT0000002", pool.get(3).getMerchantId());
+        assertSame(pool.get(5), pool.get("TERM0006 "));
+        assertNull(pool.get("TERM0007"));
+        for (int i = 0; i < 4; i++) {
+            pool.next();
+        }
+        assertEquals("TERM0001", pool.next().getTerminalId());
+    }
+
+    @Test
+    void testMessagesWithoutCardCarryTheirTerminal() throws Exception {
+        Set<String> keys = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 1000; i++) {
+            ISOMsg echo = ISO87ClientApp.createEchoMsg();
+            assertTrue(echo.hasField(41) && echo.hasField(42));
+            assertTrue(keys.add(PipelinedChannel.correlationKey(echo)), "Key reused: " + echo.getString(11));
+            assertTrue(keys.add(PipelinedChannel.correlationKey(ISO93ClientApp.createEchoMsg())));
+        }
+    }
+}
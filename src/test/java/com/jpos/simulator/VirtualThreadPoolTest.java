@@ -0,0 +1,95 @@
+package com.jpos.simulator;
+
+import com.jpos.simulator.core.VirtualThreads;
+import com.jpos.simulator.load.LoadGenerator;
+import com.jpos.simulator.server.SessionPools;
+import com.jpos.simulator.server.VirtualThreadPool;
+import org.jpos.core.SimpleConfiguration;
+import org.jpos.util.BlockingQueue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+@SuppressWarnings("deprecation")
+public class VirtualThreadPoolTest {
+
+    @Test
+    void testPlatformThreadsUnlessVirtualRequested() {
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("max-sessions", "6");
+        assertNull(VirtualThreadPool.forConfiguration("test-pool", cfg), "Not requested");
+        org.jpos.util.ThreadPool pool = SessionPools.create("test-pool", cfg);
+        try {
+            assertFalse(pool instanceof VirtualThreadPool);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    void testPlatformThreadsWhenVirtualUnsupported() {
+        assumeFalse(VirtualThreads.isSupported(), "Runtime has virtual threads");
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("thread-mode", "virtual");
+        cfg.put("max-sessions", "6");
+        assertNull(VirtualThreadPool.forConfiguration("test-pool", cfg));
+        org.jpos.util.ThreadPool pool = SessionPools.create("test-pool", cfg);
+        try {
+            assertFalse(pool instanceof VirtualThreadPool, "Falls back to platform threads");
+            assertEquals(6, pool.getMaxPoolSize());
+        } finally {
+            pool.close();
+        }
+        assertThrows(UnsupportedOperationException.class, () -> VirtualThreads.newThreadFactory("test-"));
+        LoadGenerator generator = new LoadGenerator("test", "client.xml", new ArrayList<>(), 1, 0, 0);
+        assertThrows(IllegalArgumentException.class, () -> generator.setVirtualThreads(true));
+        generator.setVirtualThreads(false);
+    }
+
+    @Test
+    void testSessionsRunOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported(), "Runtime has no virtual threads");
+        SimpleConfiguration cfg = new SimpleConfiguration();
+        cfg.put("thread-mode", "virtual");
+        cfg.put("max-sessions", "3");
+        org.jpos.util.ThreadPool pool = VirtualThreadPool.forConfiguration("test-pool", cfg);
+        assertTrue(pool instanceof VirtualThreadPool);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 3; i++) {
+            pool.execute(() -> {
+                threads.add(Thread.currentThread().toString());
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        assertEquals(3, pool.getActiveCount());
+        assertEquals(0, pool.getIdleCount(), "max-sessions reached: ISOServer stops accepting");
+        for (String t : threads) {
+            assertTrue(t.startsWith("VirtualThread"), t);
+        }
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, pool.getIdleCount());
+        pool.close();
+        assertThrows(BlockingQueue.Closed.class, () -> pool.execute(() -> { }));
+    }
+}